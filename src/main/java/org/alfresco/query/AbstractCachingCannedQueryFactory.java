@@ -18,7 +18,16 @@
  */
 package org.alfresco.query;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.util.ConcurrentMaxSizeMap;
+import org.alfresco.util.EqualsHelper;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * Caching support extension for {@link CannedQueryFactory} implementations.
@@ -26,14 +35,119 @@ import java.util.List;
  * Depending on the parameters provided, this class may choose to pick up existing results
  * and re-use them for later page requests; the client will not have knowledge of the
  * shortcuts.
- * 
- * TODO: This is work-in-progress
+ * <p/>
+ * The first execution runs the {@link #getCannedQueryImpl(CannedQueryParameters) raw query} without paging
+ * and keeps the filtered and sorted results against the
+ * {@link CannedQueryResults#getQueryExecutionId() query execution ID}.  Later requests that pass the same
+ * {@link CannedQueryParameters#getQueryExecutionId() query execution ID}, parameter bean and sorting are paged
+ * from the kept results, provided that they are made with the same {@link #getPermissionContext() permissions}.
+ * Results are kept for a limited {@link #setTimeToLive(long) time} and the total number of results kept is
+ * {@link #setMaxCachedResults(int) limited}.
  * 
  * @author Derek Hulley
  * @since 4.0
  */
 public abstract class AbstractCachingCannedQueryFactory<R> extends AbstractCannedQueryFactory<R>
 {
+    private static Log logger = LogFactory.getLog(AbstractCachingCannedQueryFactory.class);
+    
+    private long timeToLive = 60000L;
+    private int maxCachedResults = 100000;
+    
+    private ConcurrentMaxSizeMap<String, CachedResults<R>> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    
+    /**
+     * @param timeToLive        the time in milliseconds for which results are kept after the query that
+     *                          produced them was executed (default <b>60000</b>)
+     */
+    public void setTimeToLive(long timeToLive)
+    {
+        if (timeToLive <= 0)
+        {
+            throw new IllegalArgumentException("timeToLive must be positive.");
+        }
+        this.timeToLive = timeToLive;
+    }
+    
+    /**
+     * Limit the memory taken by the cache.  The results of a query that returns more than this are not kept.
+     * 
+     * @param maxCachedResults  the maximum total number of results kept across all queries (default <b>100000</b>)
+     */
+    public void setMaxCachedResults(int maxCachedResults)
+    {
+        if (maxCachedResults <= 0)
+        {
+            throw new IllegalArgumentException("maxCachedResults must be positive.");
+        }
+        this.maxCachedResults = maxCachedResults;
+    }
+    
+    /**
+     * Registers the instance and creates the results cache
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        super.afterPropertiesSet();
+        cache = new ConcurrentMaxSizeMap<String, CachedResults<R>>(
+                maxCachedResults,
+                new ConcurrentMaxSizeMap.Weigher<String, CachedResults<R>>()
+                {
+                    @Override
+                    public long weigh(String key, CachedResults<R> value)
+                    {
+                        return Math.max(1, value.results.size());
+                    }
+                },
+                false,
+                1);
+    }
+    
+    /**
+     * @return              the number of executions that were served from kept results
+     */
+    public long getCacheHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * @return              the number of executions that had to run the raw query
+     */
+    public long getCacheMissCount()
+    {
+        return missCount.get();
+    }
+    
+    /**
+     * @return              the number of query executions with results kept
+     */
+    public int getCachedQueryCount()
+    {
+        return cache.size();
+    }
+    
+    /**
+     * @return              the total number of results kept
+     */
+    public long getCachedResultCount()
+    {
+        return cache.getWeight();
+    }
+    
+    /**
+     * Discard the results kept for a query execution e.g. when the underlying data is known to have changed
+     * 
+     * @param queryExecutionId  the query execution ID given with the results
+     */
+    public void invalidate(String queryExecutionId)
+    {
+        cache.remove(queryExecutionId);
+    }
+    
     /**
      * Base implementation that provides a caching facade around the query.
      * 
@@ -42,7 +156,16 @@ public abstract class AbstractCachingCannedQueryFactory<R> extends AbstractCanne
     @Override
     public final CannedQuery<R> getCannedQuery(CannedQueryParameters parameters)
     {
-        throw new UnsupportedOperationException();
+        if (cache == null)
+        {
+            throw new IllegalStateException("The factory has not been initialized: " + this);
+        }
+        String queryExecutionId = parameters.getQueryExecutionId();
+        if (queryExecutionId == null)
+        {
+            queryExecutionId = getQueryExecutionId(parameters);
+        }
+        return new CannedQueryCacheFacade(parameters, queryExecutionId);
     }
     
     /**
@@ -55,24 +178,127 @@ public abstract class AbstractCachingCannedQueryFactory<R> extends AbstractCanne
      */
     protected abstract CannedQuery<R> getCannedQueryImpl(CannedQueryParameters parameters);
     
-    private class CannedQueryCacheFacade<R> extends AbstractCannedQuery<R>
+    /**
+     * Derived classes must implement this method to identify the permissions with which the raw queries filter
+     * their results, usually the name of the authenticated user or the set of authorities of the caller.
+     * Kept results are only given to callers with an equal permission context.  Queries that do not check
+     * permissions may return a constant.
+     * <p/>
+     * This is called by the thread that executes the query.
+     * 
+     * @return              the permission context of the caller (must implement <tt>equals</tt>)
+     */
+    protected abstract Object getPermissionContext();
+    
+    /**
+     * Get the kept results of a previous execution, provided that they have not expired and were produced
+     * by the same query
+     */
+    private CachedResults<R> getCachedResults(String queryExecutionId, CannedQueryParameters parameters, Object permissionContext)
+    {
+        CachedResults<R> cached = cache.get(queryExecutionId);
+        if (cached != null && System.currentTimeMillis() - cached.createdTime > timeToLive)
+        {
+            cache.remove(queryExecutionId, cached);
+            cached = null;
+        }
+        if (cached != null && cached.matches(parameters, permissionContext))
+        {
+            hitCount.incrementAndGet();
+            return cached;
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+    
+    /**
+     * The filtered and sorted results of a query execution
+     */
+    private static class CachedResults<R>
     {
-        private final AbstractCannedQuery<R> delegate;
+        private final Object parameterBean;
+        private final CannedQuerySortDetails sortDetails;
+        private final int totalResultCountMax;
+        private final Object permissionContext;
+        private final List<R> results;
+        private final Pair<Integer, Integer> totalCount;
+        private final long createdTime;
         
-        private CannedQueryCacheFacade(CannedQueryParameters params, AbstractCannedQuery<R> delegate)
+        private CachedResults(
+                CannedQueryParameters parameters, Object permissionContext,
+                List<R> results, Pair<Integer, Integer> totalCount)
         {
-            super(params);
-            this.delegate = delegate;
+            this.parameterBean = parameters.getParameterBean();
+            this.sortDetails = parameters.getSortDetails();
+            this.totalResultCountMax = parameters.getTotalResultCountMax();
+            this.permissionContext = permissionContext;
+            this.results = Collections.unmodifiableList(results);
+            this.totalCount = totalCount;
+            this.createdTime = System.currentTimeMillis();
+        }
+        
+        private boolean matches(CannedQueryParameters parameters, Object permissionContext)
+        {
+            return EqualsHelper.nullSafeEquals(parameterBean, parameters.getParameterBean())
+                    && sortDetails.getSortPairs().equals(parameters.getSortDetails().getSortPairs())
+                    && totalResultCountMax == parameters.getTotalResultCountMax()
+                    && EqualsHelper.nullSafeEquals(this.permissionContext, permissionContext);
+        }
+    }
+    
+    private class CannedQueryCacheFacade extends AbstractCannedQuery<R>
+    {
+        private final String queryExecutionId;
+        private Pair<Integer, Integer> totalCount;
+        
+        private CannedQueryCacheFacade(CannedQueryParameters params, String queryExecutionId)
+        {
+            super(params, queryExecutionId);
+            this.queryExecutionId = queryExecutionId;
         }
         
         @Override
         protected List<R> queryAndFilter(CannedQueryParameters parameters)
         {
-            // Copy the parameters and remove all references to paging.
-            // The underlying query will return full or filtered results (possibly also sorted)
-            // but will not apply page limitations
-            
-            throw new UnsupportedOperationException();
+            Object permissionContext = getPermissionContext();
+            CachedResults<R> cached = getCachedResults(queryExecutionId, parameters, permissionContext);
+            if (cached == null)
+            {
+                // Copy the parameters and remove all references to paging.
+                // The underlying query will return full or filtered results (possibly also sorted)
+                // but will not apply page limitations
+                CannedQueryParameters unpagedParameters = new CannedQueryParameters(
+                        parameters.getParameterBean(),
+                        null,
+                        parameters.getSortDetails(),
+                        parameters.getTotalResultCountMax(),
+                        queryExecutionId);
+                CannedQueryResults<R> results = getCannedQueryImpl(unpagedParameters).execute();
+                List<R> allResults = new ArrayList<R>(results.getPagedResultCount());
+                for (List<R> page : results.getPages())
+                {
+                    allResults.addAll(page);
+                }
+                Pair<Integer, Integer> resultsTotalCount = null;
+                if (parameters.getTotalResultCountMax() > 0)
+                {
+                    resultsTotalCount = results.getTotalResultCount();
+                }
+                cached = new CachedResults<R>(parameters, permissionContext, allResults, resultsTotalCount);
+                cache.put(queryExecutionId, cached);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Cached " + allResults.size() + " results of query execution " + queryExecutionId);
+                }
+            }
+            totalCount = cached.totalCount;
+            return cached.results;
+        }
+        
+        @Override
+        protected Pair<Integer, Integer> getTotalResultCount(List<R> results)
+        {
+            return (totalCount == null) ? super.getTotalResultCount(results) : totalCount;
         }
     }
 }
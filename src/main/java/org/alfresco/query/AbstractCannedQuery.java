@@ -18,10 +18,20 @@
  */
 package org.alfresco.query;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.util.GUID;
@@ -36,9 +46,43 @@ import org.alfresco.util.ParameterCheck;
  */
 public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
 {
+    /**
+     * How the {@link #getTotalResultCount(List) total result count} is worked out when it is requested.
+     * 
+     * @see AbstractCannedQuery#getTotalCountStrategy()
+     */
+    public static enum TotalCountStrategy
+    {
+        /** All results are read and checked so that the count is exact */
+        EXACT,
+        /**
+         * Results are read up to the {@link CannedQueryParameters#getTotalResultCountMax() maximum requested};
+         * if there are more the count is <tt>(lower bound, null)</tt>
+         */
+        CAPPED,
+        /**
+         * As {@link #CAPPED}, but if there are more results the upper bound is estimated from the proportion of
+         * results read that passed the permission checks
+         */
+        ESTIMATED,
+        /**
+         * As {@link #CAPPED}, while an exact count is {@link AbstractCannedQuery#queryTotalResultCount(CannedQueryParameters)
+         * queried} in the background and given by {@link AsyncTotalCountResults#getTotalResultCountFuture()}
+         */
+        ASYNCHRONOUS
+    }
+    
     private final CannedQueryParameters parameters;
     private final String queryExecutionId;
     private CannedQueryResults<R> results;
+    /** <tt>true</tt> if reading stopped before the streamed or sorted results ran out */
+    private boolean resultsTruncated;
+    /** The number of results that have been through the post-query permission checks */
+    private volatile int permissionCheckCount;
+    /** The number of checked results that passed the post-query permission checks */
+    private int permissionAcceptCount;
+    /** The number of results before permission checks, or <tt>-1</tt> if not known */
+    private int candidateCount = -1;
     
     /**
      * Construct the canned query given the original parameters applied.
@@ -48,10 +92,22 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
      * @param parameters            the original query parameters
      */
     protected AbstractCannedQuery(CannedQueryParameters parameters)
+    {
+        this(parameters, null);
+    }
+    
+    /**
+     * Construct the canned query given the original parameters applied and the query execution ID
+     * to give to the results.
+     * 
+     * @param parameters            the original query parameters
+     * @param queryExecutionId      the query execution ID or <tt>null</tt> to generate a random GUID
+     */
+    protected AbstractCannedQuery(CannedQueryParameters parameters, String queryExecutionId)
     {
         ParameterCheck.mandatory("parameters", parameters);
         this.parameters = parameters;
-        this.queryExecutionId = GUID.generate();
+        this.queryExecutionId = (queryExecutionId == null) ? GUID.generate() : queryExecutionId;
     }
 
     @Override
@@ -60,6 +116,17 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
         return parameters;
     }
     
+    /**
+     * Get the number of candidate results that have been passed to {@link #checkPermissions(List)}.
+     * When permission checks are expensive, compare this with the number of results returned.
+     * 
+     * @return              the number of results checked by the default post-query permission filtering
+     */
+    public int getPermissionCheckCount()
+    {
+        return permissionCheckCount;
+    }
+    
     @Override
     public String toString()
     {
@@ -76,30 +143,35 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
                     "This query instance has already by used." +
                     "  It can only be used to query once.");
         }
-        
-        // Get the raw query results
-        List<R> rawResults = queryAndFilter(parameters);
-        if (rawResults == null)
+        if (parameters.getPageDetails().getCursor() != null && !isCursorPagingSupported())
         {
-            throw new AlfrescoRuntimeException("Execution returned 'null' results");
+            throw new CannedQueryException("Query does not support paging with a cursor: " + this);
         }
         
-        // Apply sorting
-        if (isApplyPostQuerySorting())
+        List<R> rawResults;
+        if (isStreamingQuery())
         {
-            rawResults = applyPostQuerySorting(rawResults, parameters.getSortDetails());
+            // Pull only as many results as are needed
+            rawResults = streamAndFilter();
         }
-        
-        // Apply permissions
-        if (isApplyPostQueryPermissions())
+        else
         {
-            // Work out the number of results required
-            int requestedCount = parameters.getResultsRequired();
-            rawResults = applyPostQueryPermissions(rawResults, requestedCount);
+            // Get the raw query results
+            rawResults = queryAndFilter(parameters);
+            if (rawResults == null)
+            {
+                throw new AlfrescoRuntimeException("Execution returned 'null' results");
+            }
+            
+            candidateCount = rawResults.size();
+            
+            // Apply sorting and permissions
+            rawResults = sortAndFilter(rawResults);
         }
 
         // Get total count
         final Pair<Integer, Integer> totalCount = getTotalResultCount(rawResults);
+        final Future<Pair<Integer, Integer>> totalCountFuture = getTotalResultCountFuture(totalCount);
         
         // Apply paging
         CannedQueryPageDetails pagingDetails = parameters.getPageDetails();
@@ -115,7 +187,10 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
         // Has more items beyond requested pages ? ... ie. at least one more page (with at least one result)
         final boolean hasMoreItems = (rawResults.size() > pagingDetails.getResultsRequiredForPaging());
         
-        results = new CannedQueryResults<R>()
+        // Cursor to the page after the last returned result
+        final String nextCursor = hasMoreItems ? getNextCursor(finalPages) : null;
+        
+        class Results implements CannedQueryResults<R>, CursorPagingResults, AsyncTotalCountResults
         {
             @Override
             public CannedQuery<R> getOriginatingQuery()
@@ -190,10 +265,224 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
             {
                 return hasMoreItems;
             }
-        };
+            
+            @Override
+            public String getNextCursor()
+            {
+                return nextCursor;
+            }
+            
+            @Override
+            public Future<Pair<Integer, Integer>> getTotalResultCountFuture()
+            {
+                if (parameters.getTotalResultCountMax() > 0)
+                {
+                    return totalCountFuture;
+                }
+                else
+                {
+                    throw new IllegalStateException("Total results were not requested in parameters.");
+                }
+            }
+        }
+        results = new Results();
         return results;
     }
     
+    /**
+     * Get the number of results to read and check, allowing for the {@link #getTotalCountStrategy() count strategy}
+     */
+    private int getResultsRequired()
+    {
+        if (parameters.getTotalResultCountMax() > 0 && getTotalCountStrategy() == TotalCountStrategy.EXACT)
+        {
+            return Integer.MAX_VALUE;
+        }
+        return parameters.getResultsRequired();
+    }
+    
+    /**
+     * Start counting all the results in the background if the {@link #getTotalCountStrategy() count strategy}
+     * is {@link TotalCountStrategy#ASYNCHRONOUS asynchronous}
+     * 
+     * @param totalCount            the count of the results that have been read
+     * @return                      the count that will be available later, or the given count if it is final
+     */
+    private Future<Pair<Integer, Integer>> getTotalResultCountFuture(final Pair<Integer, Integer> totalCount)
+    {
+        boolean counted = (totalCount != null && totalCount.getFirst() != null
+                && totalCount.getFirst().equals(totalCount.getSecond()));
+        if (parameters.getTotalResultCountMax() > 0
+                && getTotalCountStrategy() == TotalCountStrategy.ASYNCHRONOUS
+                && !counted)
+        {
+            Executor executor = getTotalResultCountExecutor();
+            if (executor == null)
+            {
+                throw new CannedQueryException("An executor is needed to count results asynchronously: " + this);
+            }
+            FutureTask<Pair<Integer, Integer>> task = new FutureTask<Pair<Integer, Integer>>(new Callable<Pair<Integer, Integer>>()
+            {
+                @Override
+                public Pair<Integer, Integer> call() throws Exception
+                {
+                    int count = queryTotalResultCount(parameters);
+                    return new Pair<Integer, Integer>(count, count);
+                }
+            });
+            executor.execute(task);
+            return task;
+        }
+        FutureTask<Pair<Integer, Integer>> task = new FutureTask<Pair<Integer, Integer>>(new Callable<Pair<Integer, Integer>>()
+        {
+            @Override
+            public Pair<Integer, Integer> call() throws Exception
+            {
+                return totalCount;
+            }
+        });
+        task.run();
+        return task;
+    }
+    
+    /**
+     * Build the cursor to the page after the last of the given pages
+     * 
+     * @param pages                 the pages being returned
+     * @return                      the cursor or <tt>null</tt> if cursors are not supported or there are no results
+     */
+    private String getNextCursor(List<List<R>> pages)
+    {
+        if (!isCursorPagingSupported() || pages.isEmpty())
+        {
+            return null;
+        }
+        List<R> lastPage = pages.get(pages.size() - 1);
+        if (lastPage.isEmpty())
+        {
+            return null;
+        }
+        return PagingCursor.encode(getSortKeyValues(lastPage.get(lastPage.size() - 1)));
+    }
+    
+    /**
+     * Read the {@link #queryAndStream(CannedQueryParameters) streamed results}, applying sorting and permissions,
+     * until enough results have been gathered to satisfy the paging requirements.
+     * <p/>
+     * Permissions are applied to batches of no more than the number of results still required.
+     * If post-query sorting is required, all results have to be read before they can be sorted.
+     * 
+     * @return                      the sorted and permission-checked results, before paging
+     */
+    private List<R> streamAndFilter()
+    {
+        Iterator<R> iterator = queryAndStream(parameters);
+        if (iterator == null)
+        {
+            throw new AlfrescoRuntimeException("Execution returned 'null' results");
+        }
+        try
+        {
+            if (isApplyPostQuerySorting())
+            {
+                List<R> rawResults = new ArrayList<R>();
+                while (iterator.hasNext())
+                {
+                    rawResults.add(iterator.next());
+                }
+                return sortAndFilter(rawResults);
+            }
+            return pullResults(iterator);
+        }
+        finally
+        {
+            if (iterator instanceof Closeable)
+            {
+                try
+                {
+                    ((Closeable) iterator).close();
+                }
+                catch (IOException e)
+                {
+                    throw new AlfrescoRuntimeException("Failed to close streamed query results", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Apply post-query sorting and permissions to the full results.
+     * <p/>
+     * If there is a {@link #getPostQuerySortComparator(CannedQuerySortDetails) sort comparator} and not all
+     * results are required, the results are heaped and only pulled off in sort order until enough have passed
+     * the permission checks: <tt>O(n + k log n)</tt> rather than <tt>O(n log n)</tt> for <tt>k</tt> results.
+     * 
+     * @param rawResults            all the query results
+     * @return                      the sorted and permission-checked results, before paging
+     */
+    private List<R> sortAndFilter(List<R> rawResults)
+    {
+        // Apply sorting
+        if (isApplyPostQuerySorting())
+        {
+            Comparator<R> comparator = getPostQuerySortComparator(parameters.getSortDetails());
+            if (comparator == null)
+            {
+                rawResults = applyPostQuerySorting(rawResults, parameters.getSortDetails());
+            }
+            else if (getResultsRequired() < rawResults.size())
+            {
+                // Only select the results that are needed
+                return pullResults(new SortedSelectionIterator<R>(rawResults, comparator));
+            }
+            else
+            {
+                rawResults = new ArrayList<R>(rawResults);
+                Collections.sort(rawResults, comparator);
+            }
+        }
+        
+        // Apply permissions
+        if (isApplyPostQueryPermissions())
+        {
+            // Work out the number of results required
+            int requestedCount = getResultsRequired();
+            rawResults = applyPostQueryPermissions(rawResults, requestedCount);
+        }
+        return rawResults;
+    }
+    
+    /**
+     * Pull results, applying permissions in batches, until enough have been gathered to satisfy the
+     * paging requirements or the results run out.
+     * 
+     * @param iterator              the results in their final order
+     * @return                      the permission-checked results, before paging
+     */
+    private List<R> pullResults(Iterator<R> iterator)
+    {
+        boolean applyPermissions = isApplyPostQueryPermissions();
+        int requestedCount = getResultsRequired();
+        List<R> rawResults = new ArrayList<R>(Math.min(requestedCount, 1024));  // Prevent memory blow-out
+        while (rawResults.size() < requestedCount && iterator.hasNext())
+        {
+            if (!applyPermissions)
+            {
+                rawResults.add(iterator.next());
+                continue;
+            }
+            int batchSize = requestedCount - rawResults.size();
+            List<R> batch = new ArrayList<R>(Math.min(batchSize, 1024));
+            while (batch.size() < batchSize && iterator.hasNext())
+            {
+                batch.add(iterator.next());
+            }
+            rawResults.addAll(applyPostQueryPermissions(batch, batchSize));
+        }
+        resultsTruncated = iterator.hasNext();
+        return rawResults;
+    }
+    
     /**
      * Implement the basic query, returning either filtered or all results.
      * <p/>
@@ -204,9 +493,41 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
      *  {@link #applyPostQueryPaging(List, CannedQueryPageDetails)}) can
      * be used to trim the results as required.
      * 
+     * Queries that {@link #isStreamingQuery() stream} their results implement
+     * {@link #queryAndStream(CannedQueryParameters)} instead.
+     * 
      * @param parameters            the full parameters to be used for execution
      */
-    protected abstract List<R> queryAndFilter(CannedQueryParameters parameters);
+    protected List<R> queryAndFilter(CannedQueryParameters parameters)
+    {
+        throw new UnsupportedOperationException("Override this method if the query does not stream results.");
+    }
+    
+    /**
+     * Override to have results pulled from {@link #queryAndStream(CannedQueryParameters)} rather than
+     * loaded up front by {@link #queryAndFilter(CannedQueryParameters)}.
+     * 
+     * @return              <tt>true</tt> to stream results (default <tt>false</tt>)
+     */
+    protected boolean isStreamingQuery()
+    {
+        return false;
+    }
+    
+    /**
+     * Implement the basic query, returning an iterator over either filtered or all results.
+     * <p/>
+     * Results are only read until the {@link CannedQueryParameters#getResultsRequired() required number}
+     * have passed the post-query permission checks, so the implementation should fetch them lazily e.g. from
+     * a database cursor.  If the iterator is {@link Closeable} it is closed once reading stops.
+     * 
+     * @param parameters            the full parameters to be used for execution
+     * @return                      an iterator over the results
+     */
+    protected Iterator<R> queryAndStream(CannedQueryParameters parameters)
+    {
+        throw new UnsupportedOperationException("Override this method if results are streamed.");
+    }
     
     /**
      * Override to get post-query calls to do sorting.
@@ -218,6 +539,20 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
         return false;
     }
     
+    /**
+     * Override to sort with a comparator rather than {@link #applyPostQuerySorting(List, CannedQuerySortDetails)}.
+     * When only the first pages of a large result set are required, only the results that are needed are put
+     * into order.  Results that compare as equal keep their query order.
+     * 
+     * @param sortDetails           details of the sorting requirements
+     * @return                      the sort order of the results or <tt>null</tt> (default) to sort using
+     *                              {@link #applyPostQuerySorting(List, CannedQuerySortDetails)}
+     */
+    protected Comparator<R> getPostQuerySortComparator(CannedQuerySortDetails sortDetails)
+    {
+        return null;
+    }
+    
     /**
      * Called before {@link #applyPostQueryPermissions(List, int)} to allow the results to be sorted prior to permission checks.
      * Note that the query implementation may optimally sort results during retrieval, in which case this method does not need to be implemented.
@@ -249,12 +584,167 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
      * Permission evaluations should continue until the requested number of results are retrieved
      * or all available results have been examined.
      * 
+     * <p/>
+     * The default implementation passes the results to {@link #checkPermissions(List)} in batches of no more than
+     * {@link #getPostQueryPermissionBatchSize()} and stops as soon as the requested number have been accepted.
+     * Each batch is also limited to the number of results still required, so no more results are checked than
+     * if they were checked one at a time.
+     * 
      * @param results               the results to apply permissions to
      * @param requestedCount        the minimum number of results to pass the permission checks
      *                              in order to fully satisfy the paging requirements
      * @return                      the remaining results (as a single "page") after permissions have been applied
      */
     protected List<R> applyPostQueryPermissions(List<R> results, int requestedCount)
+    {
+        int batchSize = Math.max(1, getPostQueryPermissionBatchSize());
+        List<R> permitted = new ArrayList<R>(Math.min(results.size(), requestedCount));
+        int position = 0;
+        while (permitted.size() < requestedCount && position < results.size())
+        {
+            int count = Math.min(Math.min(batchSize, requestedCount - permitted.size()), results.size() - position);
+            List<R> batch = results.subList(position, position + count);
+            position += count;
+            boolean[] allowed = checkPermissions(batch);
+            permissionCheckCount += count;
+            for (int i = 0; i < count; i++)
+            {
+                if (allowed[i])
+                {
+                    permitted.add(batch.get(i));
+                    permissionAcceptCount++;
+                }
+            }
+        }
+        if (position < results.size())
+        {
+            // Checks stopped before the results ran out
+            resultsTruncated = true;
+        }
+        return permitted;
+    }
+    
+    /**
+     * Get the maximum number of results to check for permissions at a time.
+     * 
+     * @return              the maximum number of results passed to {@link #checkPermissions(List)} (default 100)
+     */
+    protected int getPostQueryPermissionBatchSize()
+    {
+        return 100;
+    }
+    
+    /**
+     * Override to check each batch of results using the threads of an executor.
+     * <p/>
+     * Permission checks usually depend on the current user, so the executor must run the checks in the
+     * security context of the thread executing the query.
+     * 
+     * @return              the executor to check permissions with or <tt>null</tt> (default) to check them
+     *                      in the thread executing the query
+     */
+    protected Executor getPostQueryPermissionExecutor()
+    {
+        return null;
+    }
+    
+    /**
+     * @return              the maximum number of parts that a batch of results is split into when checking permissions
+     *                      using the {@link #getPostQueryPermissionExecutor() executor} (default: the number of processors)
+     */
+    protected int getPostQueryPermissionParallelism()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    /**
+     * Check the permissions of a batch of results.  Override to check the results in bulk.
+     * <p/>
+     * The default implementation calls {@link #isPermitted(Object)} for each result, splitting the batch across
+     * the {@link #getPostQueryPermissionExecutor() executor} if there is one.  The first part of the batch is
+     * checked by the calling thread.
+     * 
+     * @param results               the results to check
+     * @return                      whether each result passed the permission checks, in the order of the results
+     */
+    protected boolean[] checkPermissions(final List<R> results)
+    {
+        final boolean[] allowed = new boolean[results.size()];
+        Executor executor = getPostQueryPermissionExecutor();
+        int parallelism = Math.min(getPostQueryPermissionParallelism(), results.size());
+        if (executor == null || parallelism < 2)
+        {
+            for (int i = 0; i < allowed.length; i++)
+            {
+                allowed[i] = isPermitted(results.get(i));
+            }
+            return allowed;
+        }
+        
+        int partSize = (results.size() + parallelism - 1) / parallelism;
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(parallelism);
+        for (int start = partSize; start < results.size(); start += partSize)
+        {
+            final int from = start;
+            final int to = Math.min(start + partSize, results.size());
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for (int i = from; i < to; i++)
+                    {
+                        allowed[i] = isPermitted(results.get(i));
+                    }
+                    return null;
+                }
+            });
+            executor.execute(task);
+            tasks.add(task);
+        }
+        try
+        {
+            for (int i = 0; i < partSize; i++)
+            {
+                allowed[i] = isPermitted(results.get(i));
+            }
+            for (FutureTask<Void> task : tasks)
+            {
+                task.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while checking permissions", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AlfrescoRuntimeException("Failed to check permissions", e.getCause());
+        }
+        finally
+        {
+            for (FutureTask<Void> task : tasks)
+            {
+                task.cancel(false);
+            }
+        }
+        return allowed;
+    }
+    
+    /**
+     * Check the permissions of a single result.  This may be called by the threads of the
+     * {@link #getPostQueryPermissionExecutor() permission executor}, so it must not synchronize on the query,
+     * which is locked while it executes.
+     * 
+     * @param result                the result to check
+     * @return                      <tt>true</tt> if the result passes the permission checks
+     */
+    protected boolean isPermitted(R result)
     {
         throw new UnsupportedOperationException("Override this method if post-query filtering is required.");
     }
@@ -262,7 +752,11 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
     /**
      * Get the total number of available results after querying, filtering, sorting and permission checking.
      * <p/>
-     * The default implementation assumes that the given results are the final total possible.
+     * The default implementation assumes that the given results are the final total possible unless
+     * {@link #isStreamingQuery() streamed}, {@link #getPostQuerySortComparator(CannedQuerySortDetails) selected}
+     * or {@link #applyPostQueryPermissions(List, int) permission-checked} results stopped being read early.
+     * The upper bound is then unknown, or estimated if the {@link #getTotalCountStrategy() count strategy}
+     * is {@link TotalCountStrategy#ESTIMATED}.
      * 
      * @param results               the results after filtering and sorting, but before paging
      * @return                      pair representing (a) the total number of results and
@@ -274,7 +768,87 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
     protected Pair<Integer, Integer> getTotalResultCount(List<R> results)
     {
         Integer size = results.size();
-        return new Pair<Integer, Integer>(size, size);
+        if (!resultsTruncated)
+        {
+            return new Pair<Integer, Integer>(size, size);
+        }
+        if (getTotalCountStrategy() == TotalCountStrategy.ESTIMATED && candidateCount >= 0)
+        {
+            // Assume that the rest of the results pass the permission checks in the same proportion
+            double passRate = 1.0;
+            if (isApplyPostQueryPermissions())
+            {
+                passRate = (permissionCheckCount == 0) ? -1.0 : (double) permissionAcceptCount / permissionCheckCount;
+            }
+            if (passRate >= 0.0)
+            {
+                int estimate = (int) Math.min(Math.round(candidateCount * passRate), Integer.MAX_VALUE);
+                return new Pair<Integer, Integer>(size, Math.max(size, estimate));
+            }
+        }
+        return new Pair<Integer, Integer>(size, null);
+    }
+    
+    /**
+     * Override to choose how the total result count is worked out when it is requested.
+     * 
+     * @return              the count strategy (default {@link TotalCountStrategy#CAPPED})
+     */
+    protected TotalCountStrategy getTotalCountStrategy()
+    {
+        return TotalCountStrategy.CAPPED;
+    }
+    
+    /**
+     * Count all the results that would pass the permission checks, for
+     * {@link TotalCountStrategy#ASYNCHRONOUS asynchronous} counts.  This is called by a thread of the
+     * {@link #getTotalResultCountExecutor() count executor} while or after the query executes, so it must not
+     * rely on state of the query execution.
+     * 
+     * @param parameters            the full parameters used for execution
+     * @return                      the exact number of results
+     */
+    protected int queryTotalResultCount(CannedQueryParameters parameters)
+    {
+        throw new UnsupportedOperationException("Override this method if results are counted asynchronously.");
+    }
+    
+    /**
+     * @return              the executor for {@link TotalCountStrategy#ASYNCHRONOUS asynchronous} counts
+     *                      (default <tt>null</tt>)
+     */
+    protected Executor getTotalResultCountExecutor()
+    {
+        return null;
+    }
+    
+    /**
+     * Override to support {@link PagingCursor keyset paging}.  When the
+     * {@link CannedQueryPageDetails#getCursor() page details} have a cursor, the query must only return
+     * results that sort after its {@link CannedQueryPageDetails#getCursorValues() values}, ideally by seeking
+     * straight to them.  The results are then given a cursor to the following page.
+     * <p/>
+     * Queries that do not support cursors fail if they are given one.
+     * 
+     * @return              <tt>true</tt> if the query supports cursors (default <tt>false</tt>)
+     * 
+     * @see #getSortKeyValues(Object)
+     */
+    protected boolean isCursorPagingSupported()
+    {
+        return false;
+    }
+    
+    /**
+     * Get the values that a result is sorted on, which are used to build the cursor to the following page.
+     * The values must identify a single result, so the sort keys should end with a unique key.
+     * 
+     * @param result                the last result of a page
+     * @return                      the sort key values of the result, in sort order
+     */
+    protected List<? extends Object> getSortKeyValues(R result)
+    {
+        throw new UnsupportedOperationException("Override this method if cursor paging is supported.");
     }
     
     /**
@@ -344,4 +918,90 @@ public abstract class AbstractCannedQuery<R> implements CannedQuery<R>
         // Done
         return pages;
     }
+    
+    /**
+     * Iterates over results in sort order by pulling them off a heap, so that the cost of heaping the results is
+     * linear and each result read costs <tt>O(log n)</tt>.  Equal results are returned in their original order.
+     * 
+     * @param <R>           the type of the results
+     */
+    private static class SortedSelectionIterator<R> implements Iterator<R>
+    {
+        private final List<R> results;
+        private final Comparator<R> comparator;
+        /** Indexes of the results not yet returned, as a binary heap */
+        private final int[] heap;
+        private int size;
+        
+        private SortedSelectionIterator(List<R> results, Comparator<R> comparator)
+        {
+            this.results = (results instanceof RandomAccess) ? results : new ArrayList<R>(results);
+            this.comparator = comparator;
+            this.size = results.size();
+            this.heap = new int[size];
+            for (int i = 0; i < size; i++)
+            {
+                heap[i] = i;
+            }
+            for (int i = size / 2 - 1; i >= 0; i--)
+            {
+                siftDown(i);
+            }
+        }
+        
+        private boolean precedes(int index, int otherIndex)
+        {
+            int compare = comparator.compare(results.get(index), results.get(otherIndex));
+            return compare < 0 || (compare == 0 && index < otherIndex);
+        }
+        
+        private void siftDown(int position)
+        {
+            int index = heap[position];
+            while (true)
+            {
+                int child = 2 * position + 1;
+                if (child >= size)
+                {
+                    break;
+                }
+                if (child + 1 < size && precedes(heap[child + 1], heap[child]))
+                {
+                    child++;
+                }
+                if (!precedes(heap[child], index))
+                {
+                    break;
+                }
+                heap[position] = heap[child];
+                position = child;
+            }
+            heap[position] = index;
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            return size > 0;
+        }
+        
+        @Override
+        public R next()
+        {
+            if (size == 0)
+            {
+                throw new NoSuchElementException();
+            }
+            int index = heap[0];
+            heap[0] = heap[--size];
+            siftDown(0);
+            return results.get(index);
+        }
+        
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
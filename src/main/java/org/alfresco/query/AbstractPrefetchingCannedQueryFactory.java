@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.query;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.util.ConcurrentMaxSizeMap;
+import org.alfresco.util.EqualsHelper;
+import org.alfresco.util.Pair;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Prefetching support extension for {@link CannedQueryFactory} implementations.
+ * <p/>
+ * When a page of results is returned and there are more, the query for the following page is run in the background
+ * by the {@link #setExecutor(Executor) executor} and its results kept briefly against the
+ * {@link CannedQueryResults#getQueryExecutionId() query execution ID}.  A request for that page that passes the
+ * query execution ID back, with the same {@link #getPermissionContext() permissions}, is answered with the kept
+ * results.  Prefetching is off unless an executor is set.
+ * <p/>
+ * The executor should be bounded; prefetches that it rejects are skipped.  Queries are run by the threads of
+ * the executor, so the executor must run them in the security and transaction context that the queries need,
+ * usually that of the thread that requested the previous page.
+ * 
+ * @param <R>           the type of the results
+ * 
+ * @since 5.1.3
+ */
+public abstract class AbstractPrefetchingCannedQueryFactory<R> extends AbstractCannedQueryFactory<R>
+{
+    private static Log logger = LogFactory.getLog(AbstractPrefetchingCannedQueryFactory.class);
+    
+    private Executor executor;
+    private long timeToLive = 10000L;
+    private int maxPrefetchedPages = 100;
+    
+    private ConcurrentMaxSizeMap<String, Prefetch<R>> prefetched;
+    private final AtomicLong prefetchCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong wastedCount = new AtomicLong();
+    
+    /**
+     * @param executor          the executor with which to prefetch pages or <tt>null</tt> (default) to not prefetch
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+    
+    /**
+     * @param timeToLive        the time in milliseconds for which a prefetched page is kept (default <b>10000</b>)
+     */
+    public void setTimeToLive(long timeToLive)
+    {
+        if (timeToLive <= 0)
+        {
+            throw new IllegalArgumentException("timeToLive must be positive.");
+        }
+        this.timeToLive = timeToLive;
+    }
+    
+    /**
+     * @param maxPrefetchedPages    the maximum number of prefetched pages kept (default <b>100</b>)
+     */
+    public void setMaxPrefetchedPages(int maxPrefetchedPages)
+    {
+        if (maxPrefetchedPages <= 0)
+        {
+            throw new IllegalArgumentException("maxPrefetchedPages must be positive.");
+        }
+        this.maxPrefetchedPages = maxPrefetchedPages;
+    }
+    
+    /**
+     * Registers the instance and creates the store of prefetched pages
+     */
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        super.afterPropertiesSet();
+        prefetched = new ConcurrentMaxSizeMap<String, Prefetch<R>>(maxPrefetchedPages);
+    }
+    
+    /**
+     * @return              the number of pages that were prefetched
+     */
+    public long getPrefetchCount()
+    {
+        return prefetchCount.get();
+    }
+    
+    /**
+     * @return              the number of prefetches that were skipped because the executor rejected them
+     */
+    public long getRejectedPrefetchCount()
+    {
+        return rejectedCount.get();
+    }
+    
+    /**
+     * @return              the number of follow-up requests answered with a prefetched page
+     */
+    public long getPrefetchHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * @return              the number of follow-up requests (with a query execution ID) that had to run the query
+     */
+    public long getPrefetchMissCount()
+    {
+        return missCount.get();
+    }
+    
+    /**
+     * @return              the proportion of follow-up requests answered with a prefetched page
+     */
+    public double getPrefetchHitRate()
+    {
+        long hits = hitCount.get();
+        long requests = hits + missCount.get();
+        return (requests == 0) ? 0.0 : (double) hits / requests;
+    }
+    
+    /**
+     * @return              the number of prefetched pages that were not used because a different page was requested,
+     *                      they expired or were discarded to make room.  Prefetches cancelled before they started
+     *                      are not counted, except when discarded to make room.
+     */
+    public long getWastedPrefetchCount()
+    {
+        return wastedCount.get() + ((prefetched == null) ? 0L : prefetched.getEvictionCount());
+    }
+    
+    /**
+     * Base implementation that provides a prefetching facade around the query.
+     * 
+     * @return              a facade query that answers from a prefetched page if it can
+     */
+    @Override
+    public final CannedQuery<R> getCannedQuery(CannedQueryParameters parameters)
+    {
+        if (prefetched == null)
+        {
+            throw new IllegalStateException("The factory has not been initialized: " + this);
+        }
+        String queryExecutionId = parameters.getQueryExecutionId();
+        if (queryExecutionId == null)
+        {
+            queryExecutionId = getQueryExecutionId(parameters);
+        }
+        return new CannedQueryPrefetchFacade(parameters, queryExecutionId);
+    }
+    
+    /**
+     * Derived classes must implement this method to provide the raw query that supports the given
+     * parameters.
+     * 
+     * @param parameters    the query parameters as given by the client
+     * @return              the query that will generate the results
+     */
+    protected abstract CannedQuery<R> getCannedQueryImpl(CannedQueryParameters parameters);
+    
+    /**
+     * Derived classes must implement this method to identify the permissions with which the raw queries filter
+     * their results, usually the name of the authenticated user or the set of authorities of the caller.
+     * Prefetched pages are only given to callers with an equal permission context.  Queries that do not check
+     * permissions may return a constant.
+     * <p/>
+     * This is called by the thread that executes the query.
+     * 
+     * @return              the permission context of the caller (must implement <tt>equals</tt>)
+     */
+    protected abstract Object getPermissionContext();
+    
+    /**
+     * Take the prefetched results of a query, if they were prefetched for the same parameters
+     * 
+     * @return              the prefetched results or <tt>null</tt> if the query must be run
+     */
+    private CannedQueryResults<R> takePrefetched(String queryExecutionId, CannedQueryParameters parameters, Object permissionContext)
+    {
+        Prefetch<R> prefetch = prefetched.remove(queryExecutionId);
+        if (prefetch == null)
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (System.currentTimeMillis() - prefetch.createdTime > timeToLive || !prefetch.matches(parameters, permissionContext))
+        {
+            if (!prefetch.cancelIfNotStarted())
+            {
+                wastedCount.incrementAndGet();
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (prefetch.cancelIfNotStarted())
+        {
+            // It had not started, so it is quicker to run the query here than to wait for it
+            missCount.incrementAndGet();
+            return null;
+        }
+        try
+        {
+            CannedQueryResults<R> results = prefetch.task.get();
+            hitCount.incrementAndGet();
+            return results;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CannedQueryException("Interrupted while waiting for a prefetched page", e);
+        }
+        catch (CancellationException e)
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Prefetch of query execution " + queryExecutionId + " failed; running the query again", e.getCause());
+            }
+            wastedCount.incrementAndGet();
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+    
+    /**
+     * Start fetching the page following the given results
+     */
+    private void prefetchNextPage(
+            String queryExecutionId, CannedQueryParameters parameters, Object permissionContext,
+            CannedQueryResults<R> results)
+    {
+        if (executor == null || !results.hasMoreItems())
+        {
+            return;
+        }
+        CannedQueryPageDetails pageDetails = parameters.getPageDetails();
+        if (pageDetails.getPageSize() == CannedQueryPageDetails.DEFAULT_PAGE_SIZE)
+        {
+            return;
+        }
+        CannedQueryPageDetails nextPageDetails;
+        String nextCursor = (results instanceof CursorPagingResults) ? ((CursorPagingResults) results).getNextCursor() : null;
+        if (pageDetails.getCursor() != null && nextCursor != null)
+        {
+            nextPageDetails = new CannedQueryPageDetails(
+                    pageDetails.getSkipResults(), pageDetails.getPageSize(),
+                    pageDetails.getPageNumber(), pageDetails.getPageCount(),
+                    nextCursor);
+        }
+        else
+        {
+            // Clients page either by skipping results or by page number
+            int pageNumber = pageDetails.getPageNumber();
+            int skipResults = pageDetails.getSkipResults();
+            if (pageNumber == CannedQueryPageDetails.DEFAULT_PAGE_NUMBER)
+            {
+                long nextSkipResults = (long) skipResults + (long) pageDetails.getPageSize() * pageDetails.getPageCount();
+                if (nextSkipResults >= Integer.MAX_VALUE)
+                {
+                    return;
+                }
+                skipResults = (int) nextSkipResults;
+            }
+            else
+            {
+                pageNumber += pageDetails.getPageCount();
+            }
+            nextPageDetails = new CannedQueryPageDetails(
+                    skipResults, pageDetails.getPageSize(),
+                    pageNumber, pageDetails.getPageCount(),
+                    pageDetails.getCursor());
+        }
+        final CannedQueryParameters nextParameters = new CannedQueryParameters(
+                parameters.getParameterBean(),
+                nextPageDetails,
+                parameters.getSortDetails(),
+                parameters.getTotalResultCountMax(),
+                queryExecutionId);
+        Prefetch<R> prefetch = new Prefetch<R>(nextParameters, permissionContext, new Callable<CannedQueryResults<R>>()
+        {
+            @Override
+            public CannedQueryResults<R> call() throws Exception
+            {
+                return getCannedQueryImpl(nextParameters).execute();
+            }
+        });
+        Prefetch<R> previous = prefetched.put(queryExecutionId, prefetch);
+        if (previous != null)
+        {
+            if (!previous.cancelIfNotStarted())
+            {
+                // It was already being fetched and nothing will take it now
+                wastedCount.incrementAndGet();
+            }
+        }
+        try
+        {
+            executor.execute(prefetch.task);
+            prefetchCount.incrementAndGet();
+        }
+        catch (RejectedExecutionException e)
+        {
+            prefetch.cancelIfNotStarted();
+            prefetched.remove(queryExecutionId, prefetch);
+            rejectedCount.incrementAndGet();
+        }
+    }
+    
+    /**
+     * A page being fetched in the background
+     */
+    private static class Prefetch<R>
+    {
+        private final CannedQueryParameters parameters;
+        private final Object permissionContext;
+        private final FutureTask<CannedQueryResults<R>> task;
+        private final long createdTime;
+        /** Set by whichever comes first: the executor running the task or a request that no longer needs it */
+        private final AtomicBoolean started = new AtomicBoolean();
+        
+        private Prefetch(
+                CannedQueryParameters parameters, Object permissionContext,
+                Callable<CannedQueryResults<R>> query)
+        {
+            this.parameters = parameters;
+            this.permissionContext = permissionContext;
+            this.task = new FutureTask<CannedQueryResults<R>>(query)
+            {
+                @Override
+                public void run()
+                {
+                    if (started.compareAndSet(false, true))
+                    {
+                        super.run();
+                    }
+                }
+            };
+            this.createdTime = System.currentTimeMillis();
+        }
+        
+        /**
+         * Stop the task from running if the executor has not started it.  A task that is running is left to
+         * finish, as the query cannot be interrupted safely.
+         * 
+         * @return              <tt>true</tt> if the task will not run
+         */
+        private boolean cancelIfNotStarted()
+        {
+            if (started.compareAndSet(false, true))
+            {
+                task.cancel(false);
+                return true;
+            }
+            return false;
+        }
+        
+        private boolean matches(CannedQueryParameters other, Object otherPermissionContext)
+        {
+            CannedQueryPageDetails pageDetails = parameters.getPageDetails();
+            CannedQueryPageDetails otherPageDetails = other.getPageDetails();
+            return EqualsHelper.nullSafeEquals(permissionContext, otherPermissionContext)
+                    && EqualsHelper.nullSafeEquals(parameters.getParameterBean(), other.getParameterBean())
+                    && parameters.getSortDetails().getSortPairs().equals(other.getSortDetails().getSortPairs())
+                    && parameters.getTotalResultCountMax() == other.getTotalResultCountMax()
+                    && pageDetails.getSkipResults() == otherPageDetails.getSkipResults()
+                    && pageDetails.getPageSize() == otherPageDetails.getPageSize()
+                    && pageDetails.getPageNumber() == otherPageDetails.getPageNumber()
+                    && pageDetails.getPageCount() == otherPageDetails.getPageCount()
+                    && EqualsHelper.nullSafeEquals(pageDetails.getCursor(), otherPageDetails.getCursor());
+        }
+    }
+    
+    private class CannedQueryPrefetchFacade implements CannedQuery<R>
+    {
+        private final CannedQueryParameters parameters;
+        private final String queryExecutionId;
+        private CannedQueryResults<R> results;
+        
+        private CannedQueryPrefetchFacade(CannedQueryParameters parameters, String queryExecutionId)
+        {
+            this.parameters = parameters;
+            this.queryExecutionId = queryExecutionId;
+        }
+        
+        @Override
+        public CannedQueryParameters getParameters()
+        {
+            return parameters;
+        }
+        
+        @Override
+        public synchronized CannedQueryResults<R> execute()
+        {
+            if (results != null)
+            {
+                throw new IllegalStateException(
+                        "This query instance has already by used." +
+                        "  It can only be used to query once.");
+            }
+            Object permissionContext = getPermissionContext();
+            CannedQueryResults<R> delegateResults = null;
+            if (parameters.getQueryExecutionId() != null)
+            {
+                delegateResults = takePrefetched(queryExecutionId, parameters, permissionContext);
+            }
+            if (delegateResults == null)
+            {
+                delegateResults = getCannedQueryImpl(parameters).execute();
+            }
+            results = new PrefetchFacadeResults(this, delegateResults);
+            prefetchNextPage(queryExecutionId, parameters, permissionContext, delegateResults);
+            return results;
+        }
+        
+        @Override
+        public String toString()
+        {
+            return "CannedQueryPrefetchFacade [parameters=" + parameters + ", queryExecutionId=" + queryExecutionId + "]";
+        }
+    }
+    
+    /**
+     * Results of the query behind the facade, given the query execution ID that the next request must pass back
+     */
+    private class PrefetchFacadeResults implements CannedQueryResults<R>, CursorPagingResults, AsyncTotalCountResults
+    {
+        private final CannedQueryPrefetchFacade query;
+        private final CannedQueryResults<R> delegate;
+        
+        private PrefetchFacadeResults(CannedQueryPrefetchFacade query, CannedQueryResults<R> delegate)
+        {
+            this.query = query;
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public CannedQuery<R> getOriginatingQuery()
+        {
+            return query;
+        }
+        
+        @Override
+        public String getQueryExecutionId()
+        {
+            return query.queryExecutionId;
+        }
+        
+        @Override
+        public List<R> getPage()
+        {
+            return delegate.getPage();
+        }
+        
+        @Override
+        public boolean hasMoreItems()
+        {
+            return delegate.hasMoreItems();
+        }
+        
+        @Override
+        public Pair<Integer, Integer> getTotalResultCount()
+        {
+            return delegate.getTotalResultCount();
+        }
+        
+        @Override
+        public int getPagedResultCount()
+        {
+            return delegate.getPagedResultCount();
+        }
+        
+        @Override
+        public int getPageCount()
+        {
+            return delegate.getPageCount();
+        }
+        
+        @Override
+        public R getSingleResult()
+        {
+            return delegate.getSingleResult();
+        }
+        
+        @Override
+        public List<List<R>> getPages()
+        {
+            return delegate.getPages();
+        }
+        
+        @Override
+        public String getNextCursor()
+        {
+            return (delegate instanceof CursorPagingResults) ? ((CursorPagingResults) delegate).getNextCursor() : null;
+        }
+        
+        @Override
+        public Future<Pair<Integer, Integer>> getTotalResultCountFuture()
+        {
+            if (delegate instanceof AsyncTotalCountResults)
+            {
+                return ((AsyncTotalCountResults) delegate).getTotalResultCountFuture();
+            }
+            FutureTask<Pair<Integer, Integer>> task = new FutureTask<Pair<Integer, Integer>>(new Callable<Pair<Integer, Integer>>()
+            {
+                @Override
+                public Pair<Integer, Integer> call() throws Exception
+                {
+                    return delegate.getTotalResultCount();
+                }
+            });
+            task.run();
+            return task;
+        }
+    }
+}
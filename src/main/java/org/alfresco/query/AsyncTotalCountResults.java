@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.query;
+
+import java.util.concurrent.Future;
+
+import org.alfresco.util.Pair;
+
+/**
+ * Interface for results whose total count may be worked out after the results are returned.
+ * 
+ * @see AbstractCannedQuery.TotalCountStrategy#ASYNCHRONOUS
+ * 
+ * @since 5.1.3
+ */
+public interface AsyncTotalCountResults
+{
+    /**
+     * Get the total result count once it is available.  The value is as described for
+     * {@link PagingResults#getTotalResultCount()}.
+     * 
+     * @return      the total result count, which may still be being counted
+     * @throws IllegalStateException if the total count was not requested
+     */
+    public Future<Pair<Integer, Integer>> getTotalResultCountFuture();
+}
@@ -18,12 +18,16 @@
  */
 package org.alfresco.query;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Details for canned queries supporting paged results.
  * <p/>
  * Results are {@link #skipResults skipped}, chopped into pages of
  * {@link #pageSize appropriate size} before the {@link #pageCount start page}
- * and {@link #pageNumber number} are returned.
+ * and {@link #pageNumber number} are returned.  If there is a {@link #cursor}, results
+ * are skipped from the position it marks rather than from the first result.
  * 
  * @author Derek Hulley
  * @since 4.0
@@ -39,6 +43,7 @@ public class CannedQueryPageDetails
     private final int pageSize;
     private final int pageNumber;
     private final int pageCount;
+    private final String cursor;
     
     /**
      * Construct with defaults
@@ -81,11 +86,29 @@ public class CannedQueryPageDetails
      *                                  (default <b>{@link #DEFAULT_PAGE_COUNT}</b>)
      */
     public CannedQueryPageDetails(int skipResults, int pageSize, int pageNumber, int pageCount)
+    {
+        this(skipResults, pageSize, pageNumber, pageCount, null);
+    }
+    
+    /**
+     * @param skipResults               results to skip after the cursor
+     *                                  (default <b>{@link #DEFAULT_SKIP_RESULTS}</b>)
+     * @param pageSize                  the size of each page
+     *                                  (default <b>{@link #DEFAULT_PAGE_SIZE}</b>)
+     * @param pageNumber                the first page number to return
+     *                                  (default <b>{@link #DEFAULT_PAGE_NUMBER}</b>)
+     * @param pageCount                 the number of pages to return
+     *                                  (default <b>{@link #DEFAULT_PAGE_COUNT}</b>)
+     * @param cursor                    a {@link PagingCursor cursor} to the last result of a previous page
+     *                                  or <tt>null</tt> to start from the first result
+     */
+    public CannedQueryPageDetails(int skipResults, int pageSize, int pageNumber, int pageCount, String cursor)
     {
         this.skipResults = skipResults;
         this.pageSize = pageSize;
         this.pageNumber = pageNumber;
         this.pageCount = pageCount;
+        this.cursor = cursor;
         
         // Do some checks
         if (skipResults < 0)
@@ -113,7 +136,7 @@ public class CannedQueryPageDetails
      */
     public CannedQueryPageDetails(PagingRequest pagingRequest)
     {
-        this(pagingRequest.getSkipCount(), pagingRequest.getMaxItems());
+        this(pagingRequest.getSkipCount(), pagingRequest.getMaxItems(), DEFAULT_PAGE_NUMBER, DEFAULT_PAGE_COUNT, pagingRequest.getCursor());
     }
     
     @Override
@@ -125,6 +148,7 @@ public class CannedQueryPageDetails
           .append(", pageSize=").append(pageSize)
           .append(", pageCount=").append(pageCount)
           .append(", pageNumber=").append(pageNumber)
+          .append(", cursor=").append(cursor)
           .append("]");
         return sb.toString();
     }
@@ -165,6 +189,31 @@ public class CannedQueryPageDetails
         return pageCount;
     }
     
+    /**
+     * Get the cursor to the last result of a previous page
+     * @return                          the cursor or <tt>null</tt> to start from the first result
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+    
+    /**
+     * Get the sort key values held by the {@link #getCursor() cursor}.  Queries that support cursors
+     * only return results that sort after these values.
+     * @return                          the sort key values of the last result of the previous page
+     *                                  (empty if there is no cursor)
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public List<Object> getCursorValues()
+    {
+        if (cursor == null)
+        {
+            return Collections.emptyList();
+        }
+        return PagingCursor.decode(cursor);
+    }
+    
     /**
      * Calculate the number of results that would be required to satisy this paging request.
      * Note that the skip size can significantly increase this number even if the page sizes
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.query;
+
+/**
+ * Interface for results that can give a {@link PagingCursor cursor} to the next page of results.
+ * 
+ * @see PagingRequest#setCursor(String)
+ * 
+ * @since 5.1.3
+ */
+public interface CursorPagingResults
+{
+    /**
+     * @return      a cursor to pass back to get the page following these results or <tt>null</tt> if there
+     *              are no more results or the query does not support cursors
+     */
+    public String getNextCursor();
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.util.Pair;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Canned query that merges the sorted results of several other canned queries, for example the children of
+ * several parent nodes or the results of several shards.
+ * <p/>
+ * Each source is a factory and the parameter bean to give it.  The source queries are given the sorting of this
+ * query and asked only for as many results as this query needs for its pages; they can be run in parallel by
+ * {@link #setExecutor(Executor) an executor}.  Their results are merged, in the order given by the comparator,
+ * and paged.  If this query applies permissions and rejects enough results for a source to run out, the
+ * next results of that source are fetched by running another query of the source.
+ * <p/>
+ * The total result count is worked out from the merged results, as for any other query, so that it allows for the
+ * permissions applied by this query and for results that several sources return.  When not all the merged results
+ * are read, the sum of the counts of the sources is given as the upper bound.
+ * <p/>
+ * The comparator must order results in the same way as the sources do for the sort details of the parameters.
+ * Results that compare as equal are returned in the order of the sources.
+ * 
+ * @param <R>           the type of the results
+ * 
+ * @since 5.1.3
+ */
+public class MergingCannedQuery<R> extends AbstractCannedQuery<R>
+{
+    private final List<Pair<CannedQueryFactory<R>, Object>> sources;
+    private final Comparator<R> comparator;
+    private Executor executor;
+    private Integer sourceTotalCountMax;
+    private final AtomicInteger sourceQueryCount = new AtomicInteger();
+    
+    /**
+     * @param parameters            the parameters of the merged query
+     * @param sources               the factories and parameter beans of the queries to merge
+     * @param comparator            the sort order of the results of the sources
+     */
+    public MergingCannedQuery(
+            CannedQueryParameters parameters,
+            List<Pair<CannedQueryFactory<R>, Object>> sources,
+            Comparator<R> comparator)
+    {
+        super(parameters);
+        ParameterCheck.mandatory("sources", sources);
+        ParameterCheck.mandatory("comparator", comparator);
+        this.sources = new ArrayList<Pair<CannedQueryFactory<R>, Object>>(sources);
+        this.comparator = comparator;
+    }
+    
+    /**
+     * @param executor              the executor with which to run the source queries in parallel or <tt>null</tt>
+     *                              (default) to run them in the thread executing this query
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+    
+    /**
+     * @return                      the number of source queries that were executed
+     */
+    public int getSourceQueryCount()
+    {
+        return sourceQueryCount.get();
+    }
+    
+    @Override
+    protected boolean isStreamingQuery()
+    {
+        return true;
+    }
+    
+    @Override
+    protected Iterator<R> queryAndStream(CannedQueryParameters parameters)
+    {
+        int resultsRequired = parameters.getResultsRequired();
+        List<Source> merged = new ArrayList<Source>(sources.size());
+        for (int i = 0; i < sources.size(); i++)
+        {
+            merged.add(new Source(i, resultsRequired));
+        }
+        fetchAll(merged);
+        
+        if (parameters.getTotalResultCountMax() > 0)
+        {
+            sourceTotalCountMax = sumTotalResultCountMax(merged);
+        }
+        return new MergeIterator(merged);
+    }
+    
+    /**
+     * Counts the merged results, using the counts of the sources for the upper bound if it is not known otherwise
+     */
+    @Override
+    protected Pair<Integer, Integer> getTotalResultCount(List<R> results)
+    {
+        Pair<Integer, Integer> count = super.getTotalResultCount(results);
+        if (count.getSecond() == null && sourceTotalCountMax != null)
+        {
+            count = new Pair<Integer, Integer>(count.getFirst(), Math.max(count.getFirst(), sourceTotalCountMax));
+        }
+        return count;
+    }
+    
+    /**
+     * Fetch the first results of each source, using the executor if there is one
+     */
+    private void fetchAll(List<Source> merged)
+    {
+        if (executor == null || merged.size() < 2)
+        {
+            for (Source source : merged)
+            {
+                source.fetch();
+            }
+            return;
+        }
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(merged.size() - 1);
+        for (final Source source : merged.subList(1, merged.size()))
+        {
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    source.fetch();
+                    return null;
+                }
+            });
+            executor.execute(task);
+            tasks.add(task);
+        }
+        try
+        {
+            merged.get(0).fetch();
+            for (FutureTask<Void> task : tasks)
+            {
+                task.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while executing source queries", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AlfrescoRuntimeException("Failed to execute source query", e.getCause());
+        }
+        finally
+        {
+            for (FutureTask<Void> task : tasks)
+            {
+                task.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * Add up the upper bounds of the total counts of the sources
+     * 
+     * @return              the most results that the sources can give or <tt>null</tt> if it is not known
+     */
+    private Integer sumTotalResultCountMax(List<Source> merged)
+    {
+        long upper = 0L;
+        for (Source source : merged)
+        {
+            Pair<Integer, Integer> count = source.totalCount;
+            if (count == null || count.getSecond() == null)
+            {
+                return null;
+            }
+            upper += count.getSecond();
+        }
+        return (int) Math.min(upper, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * The results of one of the source queries, fetched a chunk at a time
+     */
+    private class Source
+    {
+        private final int index;
+        private final int chunkSize;
+        private int fetched;
+        private Iterator<R> results = Collections.<R>emptyList().iterator();
+        private boolean hasMoreItems = true;
+        private Pair<Integer, Integer> totalCount;
+        private R head;
+        
+        private Source(int index, int chunkSize)
+        {
+            this.index = index;
+            this.chunkSize = chunkSize;
+        }
+        
+        /**
+         * Run the source query for the next chunk of results
+         */
+        private void fetch()
+        {
+            Pair<CannedQueryFactory<R>, Object> source = sources.get(index);
+            CannedQueryParameters sourceParameters = new CannedQueryParameters(
+                    source.getSecond(),
+                    new CannedQueryPageDetails(fetched, chunkSize, 1, 1),
+                    getParameters().getSortDetails(),
+                    fetched == 0 ? getParameters().getTotalResultCountMax() : 0,
+                    null);
+            CannedQueryResults<R> sourceResults = source.getFirst().getCannedQuery(sourceParameters).execute();
+            sourceQueryCount.incrementAndGet();
+            if (fetched == 0 && getParameters().getTotalResultCountMax() > 0)
+            {
+                totalCount = sourceResults.getTotalResultCount();
+            }
+            List<R> chunk = new ArrayList<R>(sourceResults.getPagedResultCount());
+            for (List<R> page : sourceResults.getPages())
+            {
+                chunk.addAll(page);
+            }
+            fetched += chunk.size();
+            results = chunk.iterator();
+            hasMoreItems = sourceResults.hasMoreItems() && !chunk.isEmpty();
+        }
+        
+        /**
+         * Move to the next result, fetching more if necessary
+         * 
+         * @return              <tt>true</tt> if there is a next result
+         */
+        private boolean advance()
+        {
+            if (!results.hasNext() && hasMoreItems)
+            {
+                fetch();
+            }
+            if (results.hasNext())
+            {
+                head = results.next();
+                return true;
+            }
+            head = null;
+            return false;
+        }
+    }
+    
+    /**
+     * Merges the sources by keeping them in a heap, ordered by their next result.  A source is only
+     * moved on when another result is asked for, so that no more source results are fetched than needed.
+     */
+    private class MergeIterator implements Iterator<R>
+    {
+        private final PriorityQueue<Source> heap;
+        /** The source of the last result returned, which has yet to be moved on */
+        private Source last;
+        
+        private MergeIterator(List<Source> merged)
+        {
+            heap = new PriorityQueue<Source>(Math.max(1, merged.size()), new Comparator<Source>()
+            {
+                @Override
+                public int compare(Source source1, Source source2)
+                {
+                    int compare = comparator.compare(source1.head, source2.head);
+                    return (compare != 0) ? compare : (source1.index - source2.index);
+                }
+            });
+            for (Source source : merged)
+            {
+                if (source.advance())
+                {
+                    heap.add(source);
+                }
+            }
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            if (last != null)
+            {
+                if (last.advance())
+                {
+                    heap.add(last);
+                }
+                last = null;
+            }
+            return !heap.isEmpty();
+        }
+        
+        @Override
+        public R next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            last = heap.poll();
+            return last.head;
+        }
+        
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Builds and reads the opaque cursors used for keyset paging.
+ * <p/>
+ * A cursor holds the sort key values of the last result of a page.  Queries that support cursors
+ * return the results that sort after those values, so that a following page is found by seeking
+ * rather than by skipping all the results before it.
+ * <p/>
+ * Values may be <tt>null</tt>, {@link String}, {@link Long}, {@link Integer}, {@link Double},
+ * {@link Boolean} or {@link Date}.  Cursors are URL-safe and are read without deserializing objects,
+ * so cursors passed in by clients can be trusted to produce no more than a list of such values.
+ * 
+ * @since 5.1.3
+ */
+public final class PagingCursor
+{
+    private static final int FORMAT_VERSION = 1;
+    /** The most values that a cursor can hold */
+    public static final int MAX_VALUES = Short.MAX_VALUE;
+    
+    private PagingCursor()
+    {
+    }
+    
+    /**
+     * Build a cursor from the sort key values of a result
+     * 
+     * @param values                the sort key values, in sort order
+     * @return                      an opaque, URL-safe cursor
+     * @throws IllegalArgumentException if a value is not of a supported type or there are more than
+     *                              {@link #MAX_VALUES} values
+     */
+    public static String encode(List<? extends Object> values)
+    {
+        if (values.size() > MAX_VALUES)
+        {
+            throw new IllegalArgumentException("Too many paging cursor values: " + values.size());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(FORMAT_VERSION);
+            out.writeShort(values.size());
+            for (Object value : values)
+            {
+                if (value == null)
+                {
+                    out.writeByte('N');
+                }
+                else if (value instanceof String)
+                {
+                    out.writeByte('S');
+                    out.writeUTF((String) value);
+                }
+                else if (value instanceof Long)
+                {
+                    out.writeByte('J');
+                    out.writeLong((Long) value);
+                }
+                else if (value instanceof Integer)
+                {
+                    out.writeByte('I');
+                    out.writeInt((Integer) value);
+                }
+                else if (value instanceof Double)
+                {
+                    out.writeByte('D');
+                    out.writeDouble((Double) value);
+                }
+                else if (value instanceof Boolean)
+                {
+                    out.writeByte('Z');
+                    out.writeBoolean((Boolean) value);
+                }
+                else if (value instanceof Date)
+                {
+                    out.writeByte('T');
+                    out.writeLong(((Date) value).getTime());
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unsupported paging cursor value type: " + value.getClass());
+                }
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // Not possible with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return Base64.encodeBase64URLSafeString(bytes.toByteArray());
+    }
+    
+    /**
+     * Read the sort key values from a cursor
+     * 
+     * @param cursor                a cursor built by {@link #encode(List)}
+     * @return                      the sort key values, in sort order
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public static List<Object> decode(String cursor)
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(cursor)));
+        try
+        {
+            if (in.readByte() != FORMAT_VERSION)
+            {
+                throw new IllegalArgumentException("Invalid paging cursor: " + cursor);
+            }
+            int count = in.readShort();
+            if (count < 0)
+            {
+                throw new IllegalArgumentException("Invalid paging cursor: " + cursor);
+            }
+            List<Object> values = new ArrayList<Object>(count);
+            for (int i = 0; i < count; i++)
+            {
+                byte type = in.readByte();
+                switch (type)
+                {
+                    case 'N':
+                        values.add(null);
+                        break;
+                    case 'S':
+                        values.add(in.readUTF());
+                        break;
+                    case 'J':
+                        values.add(in.readLong());
+                        break;
+                    case 'I':
+                        values.add(in.readInt());
+                        break;
+                    case 'D':
+                        values.add(in.readDouble());
+                        break;
+                    case 'Z':
+                        values.add(in.readBoolean());
+                        break;
+                    case 'T':
+                        values.add(new Date(in.readLong()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid paging cursor: " + cursor);
+                }
+            }
+            if (in.available() > 0)
+            {
+                throw new IllegalArgumentException("Invalid paging cursor: " + cursor);
+            }
+            return Collections.unmodifiableList(values);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Invalid paging cursor: " + cursor, e);
+        }
+    }
+}
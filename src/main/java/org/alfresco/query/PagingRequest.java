@@ -34,6 +34,7 @@ public class PagingRequest
     
     private int requestTotalCountMax = 0; // request total count up to a given max (0 => do not request total count)
     private String queryExecutionId;
+    private String cursor;
 
     /**
      * Construct a page request
@@ -138,6 +139,28 @@ public class PagingRequest
         this.requestTotalCountMax = requestTotalCountMax;
     }
     
+    /**
+     * Get the cursor from which the page starts.  The {@link #getSkipCount() skip count} is applied after it.
+     * 
+     * @return          the {@link CursorPagingResults#getNextCursor() cursor} returned with the previous page
+     *                  or <tt>null</tt> to start from the first result
+     */
+    public String getCursor()
+    {
+        return cursor;
+    }
+    
+    /**
+     * Start the page after the last result of a previous page rather than skipping results.  Queries
+     * that support cursors can then seek straight to the page.  Must be called before the paging query is run.
+     * 
+     * @param cursor    the {@link CursorPagingResults#getNextCursor() cursor} returned with the previous page
+     */
+    public void setCursor(String cursor)
+    {
+        this.cursor = cursor;
+    }
+    
     /**
      * Get a unique ID associated with these query results.  This must be available before and
      * after execution i.e. it must depend on the type of query and the query parameters
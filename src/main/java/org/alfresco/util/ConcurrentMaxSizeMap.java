@@ -0,0 +1,658 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe map that evicts the least recently used entries to keep its size, or total weight, to a
+ * specified maximum.  It can be used in place of a synchronized {@link MaxSizeMap}.
+ * <p>
+ * Reads do not block: values are held in a {@link ConcurrentHashMap} and the recency of a read is only recorded if
+ * the lock of the key's segment is free.  Writes lock one segment.  Each segment is bounded separately, so eviction
+ * is approximately least recently used across the whole map.
+ * <p>
+ * With frequency admission, a new key that would require an eviction is only admitted if it has been used more
+ * often than the entry that would be evicted, according to a compact frequency sketch of recent reads and writes
+ * (including reads of absent keys).  This keeps frequently used entries from being flushed out by a scan of keys
+ * that are used once.  A {@link #put(Object, Object) put} that is not admitted leaves the map unchanged.
+ * <p>
+ * <tt>null</tt> keys and values are not supported.
+ *
+ * @param <K>           the key type
+ * @param <V>           the value type
+ *
+ * @since 5.1.3
+ */
+public class ConcurrentMaxSizeMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
+{
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    /** Segments are only split further while they would each hold at least this weight */
+    private static final long MIN_SEGMENT_WEIGHT = 16L;
+
+    /**
+     * Calculates the weight of an entry, counted against the maximum weight of the map
+     */
+    public interface Weigher<K, V>
+    {
+        /**
+         * @return          the weight of the entry, at least <tt>1</tt>
+         */
+        long weigh(K key, V value);
+    }
+
+    private final ConcurrentHashMap<K, V> map;
+    private final Segment<K>[] segments;
+    private final int segmentShift;
+    private final Weigher<? super K, ? super V> weigher;
+
+    /**
+     * @param maxSize               the maximum number of entries
+     */
+    public ConcurrentMaxSizeMap(int maxSize)
+    {
+        this(maxSize, null, false, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxSize               the maximum number of entries
+     * @param frequencyAdmission    <tt>true</tt> to only admit new keys that are used more often than the entries that
+     *                              they would replace
+     */
+    public ConcurrentMaxSizeMap(int maxSize, boolean frequencyAdmission)
+    {
+        this(maxSize, null, frequencyAdmission, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param maxWeight             the maximum total weight of the entries
+     * @param weigher               calculates the weight of each entry or <tt>null</tt> for each entry to weigh <tt>1</tt>
+     * @param frequencyAdmission    <tt>true</tt> to only admit new keys that are used more often than the entries that
+     *                              they would replace
+     * @param concurrencyLevel      the expected number of concurrently writing threads
+     */
+    public ConcurrentMaxSizeMap(long maxWeight, Weigher<? super K, ? super V> weigher, boolean frequencyAdmission, int concurrencyLevel)
+    {
+        if (maxWeight <= 0)
+        {
+            throw new IllegalArgumentException("maxWeight must be positive.");
+        }
+        if (concurrencyLevel <= 0)
+        {
+            throw new IllegalArgumentException("concurrencyLevel must be positive.");
+        }
+        int segmentBits = 0;
+        while ((1 << (segmentBits + 1)) <= concurrencyLevel && (maxWeight >> (segmentBits + 1)) >= MIN_SEGMENT_WEIGHT && segmentBits < 16)
+        {
+            segmentBits++;
+        }
+        int segmentCount = 1 << segmentBits;
+        this.segmentShift = 32 - segmentBits;
+        @SuppressWarnings("unchecked")
+        Segment<K>[] segments = (Segment<K>[]) new Segment<?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            long segmentWeight = maxWeight / segmentCount + (i < maxWeight % segmentCount ? 1 : 0);
+            segments[i] = new Segment<K>(segmentWeight, frequencyAdmission);
+        }
+        this.segments = segments;
+        this.map = new ConcurrentHashMap<K, V>(16, 0.75f, segmentCount);
+        this.weigher = weigher;
+    }
+
+    private static int hash(Object key)
+    {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h * 0x9E3779B9;
+    }
+
+    private Segment<K> segmentFor(int hash)
+    {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private long weigh(K key, V value)
+    {
+        if (weigher == null)
+        {
+            return 1L;
+        }
+        long weight = weigher.weigh(key, value);
+        if (weight < 1)
+        {
+            throw new IllegalArgumentException("Weight of key " + key + " must be at least 1: " + weight);
+        }
+        return weight;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        V value = map.get(key);
+        int hash = hash(key);
+        Segment<K> segment = segmentFor(hash);
+        if (value == null)
+        {
+            segment.missCount.incrementAndGet();
+        }
+        else
+        {
+            segment.hitCount.incrementAndGet();
+        }
+        // Recording the read is best effort: it is skipped rather than wait for a writer
+        if (segment.lock.tryLock())
+        {
+            try
+            {
+                if (value != null)
+                {
+                    segment.order.get(key);
+                }
+                if (segment.sketch != null)
+                {
+                    segment.sketch.increment(hash);
+                }
+            }
+            finally
+            {
+                segment.lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value)
+    {
+        return map.containsValue(value);
+    }
+
+    @Override
+    public int size()
+    {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    @Override
+    public V put(K key, V value)
+    {
+        checkNotNull(key, value);
+        int hash = hash(key);
+        Segment<K> segment = segmentFor(hash);
+        segment.lock.lock();
+        try
+        {
+            return putLocked(segment, hash, key, value);
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value)
+    {
+        checkNotNull(key, value);
+        int hash = hash(key);
+        Segment<K> segment = segmentFor(hash);
+        segment.lock.lock();
+        try
+        {
+            V current = map.get(key);
+            if (current != null)
+            {
+                segment.order.get(key);
+                return current;
+            }
+            putLocked(segment, hash, key, value);
+            return null;
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public V replace(K key, V value)
+    {
+        checkNotNull(key, value);
+        int hash = hash(key);
+        Segment<K> segment = segmentFor(hash);
+        segment.lock.lock();
+        try
+        {
+            return map.containsKey(key) ? putLocked(segment, hash, key, value) : null;
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue)
+    {
+        checkNotNull(key, newValue);
+        int hash = hash(key);
+        Segment<K> segment = segmentFor(hash);
+        segment.lock.lock();
+        try
+        {
+            V current = map.get(key);
+            if (current == null || !current.equals(oldValue))
+            {
+                return false;
+            }
+            putLocked(segment, hash, key, newValue);
+            return true;
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called with the segment lock
+     *
+     * @return              the previous value of the key
+     */
+    private V putLocked(Segment<K> segment, int hash, K key, V value)
+    {
+        long weight = weigh(key, value);
+        V previous = map.get(key);
+        Long previousWeight = segment.order.get(key);
+        if (previous == null && segment.sketch != null)
+        {
+            segment.sketch.increment(hash);
+        }
+        if (weight > segment.maxWeight)
+        {
+            // Can never fit, so the key is dropped rather than left with an outdated value
+            segment.rejectionCount++;
+            removeLocked(segment, key);
+            return previous;
+        }
+        long newWeight = segment.weight - (previousWeight == null ? 0L : previousWeight) + weight;
+        if (newWeight > segment.maxWeight)
+        {
+            // Choose all the victims, least recently used first, before evicting any of them
+            List<K> victims = new ArrayList<K>();
+            long excess = newWeight - segment.maxWeight;
+            for (Map.Entry<K, Long> candidate : segment.order.entrySet())
+            {
+                if (excess <= 0)
+                {
+                    break;
+                }
+                if (candidate.getKey().equals(key))
+                {
+                    // Its old weight has already been replaced
+                    continue;
+                }
+                if (previous == null && segment.sketch != null
+                        && segment.sketch.frequency(hash) <= segment.sketch.frequency(hash(candidate.getKey())))
+                {
+                    segment.rejectionCount++;
+                    return null;
+                }
+                victims.add(candidate.getKey());
+                excess -= candidate.getValue();
+            }
+            for (K victim : victims)
+            {
+                long victimWeight = segment.order.remove(victim);
+                map.remove(victim);
+                newWeight -= victimWeight;
+                segment.weight -= victimWeight;
+                segment.evictionCount++;
+            }
+        }
+        segment.order.put(key, weight);
+        segment.weight = newWeight;
+        map.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public V remove(Object key)
+    {
+        Segment<K> segment = segmentFor(hash(key));
+        segment.lock.lock();
+        try
+        {
+            return removeLocked(segment, key);
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value)
+    {
+        Segment<K> segment = segmentFor(hash(key));
+        segment.lock.lock();
+        try
+        {
+            V current = map.get(key);
+            if (current == null || !current.equals(value))
+            {
+                return false;
+            }
+            removeLocked(segment, key);
+            return true;
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called with the segment lock
+     */
+    private V removeLocked(Segment<K> segment, Object key)
+    {
+        Long weight = segment.order.remove(key);
+        if (weight != null)
+        {
+            segment.weight -= weight;
+        }
+        return map.remove(key);
+    }
+
+    @Override
+    public void clear()
+    {
+        for (Segment<K> segment : segments)
+        {
+            segment.lock.lock();
+        }
+        try
+        {
+            map.clear();
+            for (Segment<K> segment : segments)
+            {
+                segment.order.clear();
+                segment.weight = 0L;
+            }
+        }
+        finally
+        {
+            for (Segment<K> segment : segments)
+            {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                final Iterator<Map.Entry<K, V>> iterator = map.entrySet().iterator();
+                return new Iterator<Map.Entry<K, V>>()
+                {
+                    private K last;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next()
+                    {
+                        Map.Entry<K, V> entry = iterator.next();
+                        last = entry.getKey();
+                        return new AbstractMap.SimpleImmutableEntry<K, V>(entry);
+                    }
+
+                    @Override
+                    public void remove()
+                    {
+                        if (last == null)
+                        {
+                            throw new IllegalStateException();
+                        }
+                        ConcurrentMaxSizeMap.this.remove(last);
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return map.size();
+            }
+        };
+    }
+
+    private static void checkNotNull(Object key, Object value)
+    {
+        if (key == null || value == null)
+        {
+            throw new NullPointerException("Null keys and values are not supported");
+        }
+    }
+
+    /**
+     * @return              the total weight of the entries
+     */
+    public long getWeight()
+    {
+        long weight = 0L;
+        for (Segment<K> segment : segments)
+        {
+            segment.lock.lock();
+            try
+            {
+                weight += segment.weight;
+            }
+            finally
+            {
+                segment.lock.unlock();
+            }
+        }
+        return weight;
+    }
+
+    public long getHitCount()
+    {
+        long count = 0L;
+        for (Segment<K> segment : segments)
+        {
+            count += segment.hitCount.get();
+        }
+        return count;
+    }
+
+    public long getMissCount()
+    {
+        long count = 0L;
+        for (Segment<K> segment : segments)
+        {
+            count += segment.missCount.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return              the proportion of {@link #get(Object) reads} that found a value, or <tt>0</tt> if there have
+     *                      been none
+     */
+    public double getHitRate()
+    {
+        long hits = getHitCount();
+        long reads = hits + getMissCount();
+        return reads == 0 ? 0.0 : (double) hits / reads;
+    }
+
+    /**
+     * @return              the number of entries evicted to make room for others
+     */
+    public long getEvictionCount()
+    {
+        long count = 0L;
+        for (Segment<K> segment : segments)
+        {
+            count += segment.evictionCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return              the number of entries not admitted, because they were used less often than the entries
+     *                      that they would have replaced or because they were too heavy
+     */
+    public long getRejectionCount()
+    {
+        long count = 0L;
+        for (Segment<K> segment : segments)
+        {
+            count += segment.rejectionCount;
+        }
+        return count;
+    }
+
+    /**
+     * Recency order and weight of the keys of one segment (guarded by the segment lock)
+     */
+    private static class Segment<K>
+    {
+        final ReentrantLock lock = new ReentrantLock();
+        /** Weights of the keys, least recently used first */
+        final LinkedHashMap<K, Long> order = new LinkedHashMap<K, Long>(16, 0.75f, true);
+        final long maxWeight;
+        final FrequencySketch sketch;
+        long weight;
+        final AtomicLong hitCount = new AtomicLong();
+        final AtomicLong missCount = new AtomicLong();
+        volatile long evictionCount;
+        volatile long rejectionCount;
+
+        Segment(long maxWeight, boolean frequencyAdmission)
+        {
+            this.maxWeight = maxWeight;
+            this.sketch = frequencyAdmission ? new FrequencySketch(maxWeight) : null;
+        }
+    }
+
+    /**
+     * Count-min sketch of how often keys are used, with counters that saturate at 15 and are halved
+     * periodically so that old use is forgotten
+     */
+    private static class FrequencySketch
+    {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = new int[] {0x97CB3127, 0x0B4B2B3D, 0xC1A5F1E7, 0x7A9E1DF3};
+
+        private final byte[] counters;
+        private final int widthMask;
+        private final int width;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long capacity)
+        {
+            int size = 16;
+            while (size < capacity && size < (1 << 16))
+            {
+                size <<= 1;
+            }
+            this.width = size;
+            this.widthMask = size - 1;
+            this.counters = new byte[DEPTH * size];
+            this.sampleSize = 10 * size;
+        }
+
+        private int indexOf(int hash, int row)
+        {
+            int h = (hash ^ SEEDS[row]) * 0x01000193;
+            h ^= h >>> 15;
+            return row * width + (h & widthMask);
+        }
+
+        int frequency(int hash)
+        {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++)
+            {
+                frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        void increment(int hash)
+        {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++)
+            {
+                int index = indexOf(hash, row);
+                if (counters[index] < 15)
+                {
+                    counters[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+            {
+                for (int i = 0; i < counters.length; i++)
+                {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+    }
+}
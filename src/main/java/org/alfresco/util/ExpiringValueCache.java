@@ -24,6 +24,7 @@ import java.io.Serializable;
  * Simple cache of a single Object value.
  * <p>
  * The object placed in the cache will automatically be discarded after a timeout value.
+ * See {@link KeyedExpiringValueCache} for a thread-safe cache of many values.
  * 
  * @author Kevin Roast
  */
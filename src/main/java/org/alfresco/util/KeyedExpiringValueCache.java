@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Thread-safe cache of values by key, loaded on demand and discarded a fixed time after they were loaded.
+ * <p>
+ * Concurrent requests for a key that is not cached share a single call to the {@link Loader}.  If a
+ * {@link #setRefreshAfterWrite(long) refresh time} and a {@link #setRefreshExecutor(Executor) refresh executor} are set,
+ * a value that is read after the refresh time is reloaded in the background while the old value continues to be
+ * returned, so that frequently read values do not expire.  The number of keys can be bounded, in which case the
+ * keys loaded first are discarded first.
+ * <p>
+ * <tt>null</tt> values returned by the loader are cached like any other value.
+ *
+ * @param <K>           the key type
+ * @param <V>           the value type
+ *
+ * @see ExpiringValueCache
+ * @since 5.1.3
+ */
+public class KeyedExpiringValueCache<K, V>
+{
+    private static Log logger = LogFactory.getLog(KeyedExpiringValueCache.class);
+
+    // default is to discard cached values after 1 minute
+    private final static long TIMEOUT_DEFAULT = 1000L*60L;
+
+    /**
+     * Loads the value of a key that is not cached
+     */
+    public interface Loader<K, V>
+    {
+        /**
+         * @param key       the key
+         * @return          the value of the key, which may be <tt>null</tt>
+         */
+        V load(K key) throws Exception;
+    }
+
+    private final Loader<K, V> loader;
+    private final long expireAfterWrite;
+    private long refreshAfterWrite = 0L;
+    private Executor refreshExecutor;
+    private int maxSize = 0;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<K, Entry<K, V>>();
+    /** Loads in progress, so that concurrent misses for a key share one load */
+    private final ConcurrentHashMap<K, FutureTask<Entry<K, V>>> loading = new ConcurrentHashMap<K, FutureTask<Entry<K, V>>>();
+    /** Entries in the order in which they were added, for bounded caches */
+    private final ConcurrentLinkedQueue<Entry<K, V>> insertionOrder = new ConcurrentLinkedQueue<Entry<K, V>>();
+    private final AtomicInteger removedSinceCleanUp = new AtomicInteger();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong sharedLoadCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructor using the default timeout of 1 minute.
+     *
+     * @param loader    loads the values of keys that are not cached
+     */
+    public KeyedExpiringValueCache(Loader<K, V> loader)
+    {
+        this(loader, TIMEOUT_DEFAULT);
+    }
+
+    /**
+     * @param loader            loads the values of keys that are not cached
+     * @param expireAfterWrite  time in milliseconds after loading at which a value is discarded
+     */
+    public KeyedExpiringValueCache(Loader<K, V> loader, long expireAfterWrite)
+    {
+        ParameterCheck.mandatory("loader", loader);
+        if (expireAfterWrite <= 0)
+        {
+            throw new IllegalArgumentException("expireAfterWrite must be positive.");
+        }
+        this.loader = loader;
+        this.expireAfterWrite = expireAfterWrite;
+    }
+
+    /**
+     * @param refreshAfterWrite time in milliseconds after loading at which a value that is read is reloaded in the
+     *                          background, or <tt>0</tt> (default) to only reload values once they have expired.
+     *                          Only used if a {@link #setRefreshExecutor(Executor) refresh executor} is set.
+     */
+    public void setRefreshAfterWrite(long refreshAfterWrite)
+    {
+        if (refreshAfterWrite < 0)
+        {
+            throw new IllegalArgumentException("refreshAfterWrite cannot be negative.");
+        }
+        this.refreshAfterWrite = refreshAfterWrite;
+    }
+
+    /**
+     * @param refreshExecutor   runs background reloads
+     */
+    public void setRefreshExecutor(Executor refreshExecutor)
+    {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @param maxSize           the maximum number of keys held or <tt>0</tt> (default) for no limit
+     */
+    public void setMaxSize(int maxSize)
+    {
+        if (maxSize < 0)
+        {
+            throw new IllegalArgumentException("maxSize cannot be negative.");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the value of a key, loading it if it is not cached or has expired.  Callers that ask for the same key
+     * while it is being loaded wait for that load.
+     *
+     * @param key       the key
+     * @return          the value of the key
+     * @throws AlfrescoRuntimeException if the value could not be loaded or the calling thread was interrupted
+     */
+    public V get(K key)
+    {
+        long now = System.currentTimeMillis();
+        Entry<K, V> entry = entries.get(key);
+        if (entry != null)
+        {
+            long age = now - entry.writeTime;
+            if (age < expireAfterWrite)
+            {
+                hitCount.incrementAndGet();
+                if (refreshAfterWrite > 0 && age >= refreshAfterWrite && refreshExecutor != null)
+                {
+                    refreshAhead(key);
+                }
+                return entry.value;
+            }
+            remove(key, entry);
+        }
+        missCount.incrementAndGet();
+        return load(key);
+    }
+
+    /**
+     * Get the value of a key if it is cached and has not expired.  Nothing is loaded.
+     *
+     * @param key       the key
+     * @return          the cached value or <tt>null</tt>
+     */
+    public V getIfPresent(K key)
+    {
+        Entry<K, V> entry = entries.get(key);
+        if (entry == null || System.currentTimeMillis() - entry.writeTime >= expireAfterWrite)
+        {
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Put a value into the cache, replacing any cached value
+     */
+    public void put(K key, V value)
+    {
+        store(new Entry<K, V>(key, value, System.currentTimeMillis()));
+    }
+
+    /**
+     * Discard the value of a key.  A load of the key that is in progress is not affected.
+     */
+    public void invalidate(K key)
+    {
+        Entry<K, V> entry = entries.remove(key);
+        if (entry != null)
+        {
+            removed();
+        }
+    }
+
+    /**
+     * Discard all values
+     */
+    public void clear()
+    {
+        entries.clear();
+        insertionOrder.clear();
+        removedSinceCleanUp.set(0);
+    }
+
+    /**
+     * @return          the number of keys held, including any that have expired but not been discarded yet
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    private V load(K key)
+    {
+        FutureTask<Entry<K, V>> task = newLoad(key);
+        FutureTask<Entry<K, V>> running = loading.putIfAbsent(key, task);
+        if (running == null)
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                loading.remove(key, task);
+            }
+        }
+        else
+        {
+            sharedLoadCount.incrementAndGet();
+            task = running;
+        }
+        return waitFor(key, task).value;
+    }
+
+    /**
+     * Reload a key in the background, unless it is already being loaded
+     */
+    private void refreshAhead(final K key)
+    {
+        if (loading.containsKey(key))
+        {
+            return;
+        }
+        final FutureTask<Entry<K, V>> task = newLoad(key);
+        if (loading.putIfAbsent(key, task) != null)
+        {
+            return;
+        }
+        refreshCount.incrementAndGet();
+        try
+        {
+            refreshExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        loading.remove(key, task);
+                    }
+                    try
+                    {
+                        task.get();
+                    }
+                    catch (Exception e)
+                    {
+                        // The current value is kept until it expires
+                        logger.warn("Failed to refresh value of key " + key + ": " + e.getMessage());
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            loading.remove(key, task);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Refresh of key " + key + " rejected; it will be loaded when it expires");
+            }
+        }
+    }
+
+    /**
+     * @return          a load of the key that stores the loaded value before it completes
+     */
+    private FutureTask<Entry<K, V>> newLoad(final K key)
+    {
+        return new FutureTask<Entry<K, V>>(new Callable<Entry<K, V>>()
+        {
+            @Override
+            public Entry<K, V> call() throws Exception
+            {
+                loadCount.incrementAndGet();
+                V value = loader.load(key);
+                Entry<K, V> entry = new Entry<K, V>(key, value, System.currentTimeMillis());
+                store(entry);
+                return entry;
+            }
+        });
+    }
+
+    private Entry<K, V> waitFor(K key, FutureTask<Entry<K, V>> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException("Interrupted while waiting for value of key " + key, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new AlfrescoRuntimeException("Failed to load value of key " + key, cause);
+        }
+    }
+
+    private void store(Entry<K, V> entry)
+    {
+        Entry<K, V> previous = entries.put(entry.key, entry);
+        if (maxSize > 0)
+        {
+            insertionOrder.add(entry);
+            if (previous != null)
+            {
+                removed();
+            }
+            evict();
+        }
+    }
+
+    private void remove(K key, Entry<K, V> entry)
+    {
+        if (entries.remove(key, entry))
+        {
+            removed();
+        }
+    }
+
+    /**
+     * Discard the earliest added entries until the cache is within its maximum size
+     */
+    private void evict()
+    {
+        while (entries.size() > maxSize)
+        {
+            Entry<K, V> eldest = insertionOrder.poll();
+            if (eldest == null)
+            {
+                break;
+            }
+            if (entries.remove(eldest.key, eldest))
+            {
+                evictionCount.incrementAndGet();
+            }
+            else
+            {
+                removedSinceCleanUp.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Note that an entry has left the map other than by eviction, clearing such entries out of the insertion
+     * order once there are many of them
+     */
+    private void removed()
+    {
+        if (maxSize > 0 && removedSinceCleanUp.incrementAndGet() > maxSize)
+        {
+            removedSinceCleanUp.set(0);
+            Iterator<Entry<K, V>> iterator = insertionOrder.iterator();
+            while (iterator.hasNext())
+            {
+                Entry<K, V> entry = iterator.next();
+                if (entries.get(entry.key) != entry)
+                {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * @return          the number of calls to the loader, including background refreshes
+     */
+    public long getLoadCount()
+    {
+        return loadCount.get();
+    }
+
+    /**
+     * @return          the number of misses that waited for a load started by another caller
+     */
+    public long getSharedLoadCount()
+    {
+        return sharedLoadCount.get();
+    }
+
+    /**
+     * @return          the number of background refreshes started
+     */
+    public long getRefreshCount()
+    {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return          the number of values discarded to keep within the maximum size
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "KeyedExpiringValueCache [size=" + entries.size() + ", hits=" + hitCount.get() + ", misses=" + missCount.get() + "]";
+    }
+
+    private static class Entry<K, V>
+    {
+        final K key;
+        final V value;
+        final long writeTime;
+
+        Entry(K key, V value, long writeTime)
+        {
+            this.key = key;
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Map;
 
 /**
  * Map that ejects the last recently accessed or inserted element(s) to keep the size to a specified maximum.
+ * This map is not thread-safe; see {@link ConcurrentMaxSizeMap} for a map that is.
  * 
  * @param <K>
  *            Key
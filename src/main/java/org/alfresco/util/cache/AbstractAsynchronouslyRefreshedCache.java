@@ -18,13 +18,31 @@
  */
 package org.alfresco.util.cache;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.util.Pair;
 import org.alfresco.util.PropertyCheck;
 import org.alfresco.util.transaction.TransactionListener;
 import org.alfresco.util.transaction.TransactionSupportUtil;
@@ -37,6 +55,49 @@ import org.springframework.beans.factory.InitializingBean;
  * The base implementation for an asynchronously refreshed cache. 
  * 
  * Currently supports one value or a cache per key (such as tenant.)  Implementors just need to provide buildCache(String key/tennnantId)
+ * <p/>
+ * Refreshes for different keys may be built concurrently, up to the configured {@link #setRefreshParallelism(int) refresh parallelism}.
+ * There is never more than one build in progress for any given key.  Refreshes are started in {@link RefreshPriority priority}
+ * order: keys with blocked readers first, then keys read within the {@link #setRecentReadWindow(long) recent read window}, if set,
+ * then the rest; refreshes of the same priority are started in the order in which they were queued.
+ * <p/>
+ * Cache hits are served from a concurrent map without taking any locks.
+ * <p/>
+ * While a key is being refreshed the previous value continues to be served.  By default there is no limit
+ * on how long a stale value may be served; a {@link #setMaxStaleness(long) maximum staleness} can be set,
+ * after which callers block until the refresh completes.  The {@link #getEntry(String) entry} for a key
+ * gives its version, age and staleness.
+ * <p/>
+ * Refresh requests may {@link #refresh(String, Serializable) carry a description of the change}.  Subclasses that
+ * can patch a value cheaply override {@link #applyDelta(String, Object, List)}; otherwise, or if the delta cannot
+ * be applied, the value is rebuilt in full with {@link #buildCache(String)}.
+ * <p/>
+ * Miss, wait and build {@link #getStatistics() statistics} are kept per key.  Hits are only
+ * {@link #setCountHits(boolean) counted} on request, so that hits do not write anything.
+ * <p/>
+ * A failed build is retried after an exponentially increasing, jittered {@link #setRetryDelay(long) delay}.  Once a key
+ * has failed {@link #setFailureThreshold(int) repeatedly} its circuit is open: callers that would have to wait for the
+ * key fail straight away until a retry succeeds.
+ * <p/>
+ * The number of values held can be bounded with {@link #setMaxEntries(int)} and, for values that {@link #weigh(String, Object)
+ * weigh} more than one, {@link #setMaxWeight(long)}.  When a build takes the cache over a limit, the least recently used
+ * (or least frequently used, see {@link #setEvictionPolicy(EvictionPolicy)}) idle keys are evicted.  Evicted keys are
+ * rebuilt when next requested; refresh requests for them are ignored in the meantime.
+ * <p/>
+ * A set of {@link #setWarmUpKeys(Collection) warm-up keys} can be built ahead of the first requests with {@link #warmUp()},
+ * which is called on startup if {@link #setWarmUpOnStartup(boolean) warmUpOnStartup} is set.
+ * <p/>
+ * If a {@link #setSnapshotStore(RefreshableCacheSnapshotStore) snapshot store} is set, built values are saved to it
+ * and, after a restart, a missing key is served from its snapshot instead of waiting for a build.  The snapshot is
+ * then revalidated in the background: if the {@link #getSourceWatermark(String) source watermark} recorded with it is
+ * still current the value is kept, otherwise it is rebuilt.
+ * <p/>
+ * A {@link #setCoalesceWindow(long) coalescing window} can be set so that refresh requests for a key arriving in
+ * quick succession, for example from many small transactions, are collapsed into a single build.
+ * <p/>
+ * Changes {@link #forceInChangesForThisUncommittedTransaction(String) forced in} by a transaction are held in an overlay
+ * bound to the transaction, which only its own reads see.  The overlay is merged into the shared values when the
+ * transaction commits and discarded if it rolls back.
  * 
  * @author Andy
  * @since 4.1.3
@@ -45,8 +106,8 @@ import org.springframework.beans.factory.InitializingBean;
  * MER 17/04/2014 Refactored to core and generalised tennancy
  */
 public abstract class AbstractAsynchronouslyRefreshedCache<T> 
-    implements AsynchronouslyRefreshedCache<T>, 
-    RefreshableCacheListener, 
+    implements ExtendedAsynchronouslyRefreshedCache<T>, 
+    TargetedRefreshableCacheListener, 
     Callable<Void>, 
     BeanNameAware,
     InitializingBean, 
@@ -56,9 +117,36 @@ public abstract class AbstractAsynchronouslyRefreshedCache<T>
         
         private static Log logger = LogFactory.getLog(AbstractAsynchronouslyRefreshedCache.class);
 
+        /** Shared timer used to start delayed work; the tasks only submit work to the cache thread pools */
+        private static Timer timer;
+
+        /**
+         * How idle keys are chosen for eviction from a bounded cache
+         */
+        public enum EvictionPolicy
+        {
+            /** Evict the key that has gone longest without being read */
+            LRU,
+            /** Evict the key that has been read least often, recent reads counting more */
+            LFU
+        }
+
+        /**
+         * Order in which waiting refreshes are started, most urgent first
+         */
+        public enum RefreshPriority
+        {
+            /** A reader is blocked waiting for the key */
+            BLOCKED_READER,
+            /** The key has been read within the recent read window */
+            RECENTLY_READ,
+            /** Nobody is waiting for the key */
+            BACKGROUND
+        }
+
         private enum RefreshState
         {
-            IDLE, WAITING, RUNNING, DONE
+            WAITING, RUNNING, DONE
         };
 
         private ThreadPoolExecutor threadPoolExecutor;
@@ -67,13 +155,68 @@ public abstract class AbstractAsynchronouslyRefreshedCache<T>
         // State
 
         private List<RefreshableCacheListener> listeners = new LinkedList<RefreshableCacheListener>();
+        /** Held for writing while the live values are updated; reads of the live values do not need it */
         protected final ReentrantReadWriteLock liveLock = new ReentrantReadWriteLock();
         private final ReentrantReadWriteLock refreshLock = new ReentrantReadWriteLock();
         private final ReentrantReadWriteLock runLock = new ReentrantReadWriteLock();
+        /**
+         * A copy of the live values for subclasses, to be read with liveLock.readLock.  The cache itself serves
+         * values from a concurrent map, so changes made here are not seen by readers.
+         * 
+         * @deprecated  use {@link #get(String)}
+         */
+        @Deprecated
         protected HashMap<String, T> live = new HashMap<String, T>();
-        private LinkedHashSet<Refresh> refreshQueue = new LinkedHashSet<Refresh>();
+        /** The live values, read without locking (updated under liveLock.writeLock) */
+        private final ConcurrentHashMap<String, T> liveValues = new ConcurrentHashMap<String, T>();
+        /** Version and staleness details for the values in the live map (updated under liveLock.writeLock) */
+        private final ConcurrentHashMap<String, RefreshableCacheEntry<T>> entries = new ConcurrentHashMap<String, RefreshableCacheEntry<T>>();
+        private final AtomicLong versions = new AtomicLong();
+        /** The number of transactions with an overlay, so that reads only look for one when there may be one */
+        private final AtomicInteger overlayTransactions = new AtomicInteger();
+        /** Refreshes waiting to be built, in queue order and at most one per key (guarded by refreshLock) */
+        private final LinkedHashMap<String, Refresh> waitingRefreshes = new LinkedHashMap<String, Refresh>();
+        /** Refreshes currently being built, at most one per key (guarded by refreshLock) */
+        private final HashMap<String, Refresh> runningRefreshes = new HashMap<String, Refresh>();
         private String cacheId;
-        private RefreshState refreshState = RefreshState.IDLE;
+        private int refreshParallelism = 1;
+        private int activeWorkers = 0;
+        private long maxStaleness = -1L;
+        private long coalesceWindow = 0L;
+        /** The time at which the timer will next start any delayed work (guarded by runLock) */
+        private long wakeUpTime = 0L;
+        private final AtomicLong coalescedRefreshCount = new AtomicLong();
+        private final AtomicLong droppedChangeCount = new AtomicLong();
+        private final AsynchronouslyRefreshedCacheStatistics statistics = new AsynchronouslyRefreshedCacheStatistics(this);
+        private boolean countHits = false;
+        private long recentReadWindow = 0L;
+        /** Number, total and maximum of the times (ms) that refreshes waited to start, by priority */
+        private final AtomicLongArray queueWaitCounts = new AtomicLongArray(RefreshPriority.values().length);
+        private final AtomicLongArray queueWaitTotals = new AtomicLongArray(RefreshPriority.values().length);
+        private final AtomicLongArray queueWaitMaxes = new AtomicLongArray(RefreshPriority.values().length);
+        private int maxEntries = 0;
+        private long maxWeight = 0L;
+        private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+        /** Read recency, frequency and weight of the live keys of bounded caches (updated with liveLock.writeLock) */
+        private final ConcurrentHashMap<String, KeyUsage> usage = new ConcurrentHashMap<String, KeyUsage>();
+        /** Total weight of the live values (guarded by liveLock) */
+        private long weight = 0L;
+        private final AtomicLong evictionCount = new AtomicLong();
+        private final AtomicLong skippedRefreshCount = new AtomicLong();
+        private Collection<String> warmUpKeys = Collections.emptyList();
+        private int warmUpParallelism = 2;
+        private boolean warmUpOnStartup = false;
+        /** Completes with the warm-up time once all warm-up keys are built (guarded by this) */
+        private RefreshableCacheFuture<Long> warmUpFuture;
+        private RefreshableCacheSnapshotStore snapshotStore;
+        private final AtomicLong snapshotLoadCount = new AtomicLong();
+        private final AtomicLong revalidatedCount = new AtomicLong();
+        private long retryDelay = 100L;
+        private long maxRetryDelay = 60000L;
+        private int failureThreshold = 5;
+        /** Keys whose last build failed (updated with refreshLock.writeLock) */
+        private final ConcurrentHashMap<String, BuildFailures> failingKeys = new ConcurrentHashMap<String, BuildFailures>();
+        private final AtomicLong rejectedReadCount = new AtomicLong();
         private String resourceKeyTxnData;
 
         @Override
@@ -100,514 +243,2140 @@ public abstract class AbstractAsynchronouslyRefreshedCache<T>
             this.registry = registry;
         }
 
+        /**
+         * Set the maximum number of keys that may be built concurrently on the
+         * {@link #setThreadPoolExecutor(ThreadPoolExecutor) thread pool}.  Builds for the same key are never run concurrently.
+         * 
+         * @param refreshParallelism
+         *            the maximum number of concurrent builds (default <b>1</b>)
+         */
+        public void setRefreshParallelism(int refreshParallelism)
+        {
+            if (refreshParallelism < 1)
+            {
+                throw new IllegalArgumentException("refreshParallelism must be greater than zero.");
+            }
+            this.refreshParallelism = refreshParallelism;
+        }
+
 
-        public void init()
+        /**
+         * Set the maximum time for which a stale value will be served while a refresh is pending for its key.
+         * Once a value has been stale for longer than this, callers block until the refresh has completed.
+         * 
+         * @param maxStaleness
+         *            the maximum staleness in milliseconds or a negative value for no limit (default <b>-1</b>)
+         */
+        public void setMaxStaleness(long maxStaleness)
         {
-            registry.register(this);
+            this.maxStaleness = maxStaleness;
         }
 
-        @Override
-        public String toString()
+        /**
+         * Counting hits adds a shared counter update to every read of a key.  Reads of heavily used keys from
+         * many threads scale better without it.
+         * 
+         * @param countHits
+         *            <tt>true</tt> to count cache hits (default <b>false</b>)
+         */
+        public void setCountHits(boolean countHits)
         {
-            return "AbstractAsynchronouslyRefreshedCache [cacheId=" + cacheId + "]";
+            this.countHits = countHits;
         }
 
-        @Override
-        public T get(String key)
+        /**
+         * Tracking reads adds a write to the first read of a key in each second.
+         * 
+         * @param recentReadWindow
+         *            how long (ms) after being read a key's refreshes are started ahead of background refreshes,
+         *            e.g. <b>60000</b>; <b>0</b> not to track reads (default <b>0</b>)
+         */
+        public void setRecentReadWindow(long recentReadWindow)
         {
-            liveLock.readLock().lock();
-            try
-            {
-                if (live.get(key) != null)
-                {
-                    if (logger.isTraceEnabled())
-                    {
-                        logger.trace("get() from cache for key " + key + " on " + this);
-                    }
-                    return live.get(key);
-                }
-            }
-            finally
+            if (recentReadWindow < 0)
             {
-                liveLock.readLock().unlock();
+                throw new IllegalArgumentException("recentReadWindow cannot be negative.");
             }
+            this.recentReadWindow = recentReadWindow;
+        }
 
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("get() miss, scheduling and waiting for key " + key + " on " + this);
-            }
+        /**
+         * @param warmUpKeys
+         *            the keys to build when the cache is {@link #warmUp() warmed up}
+         */
+        public void setWarmUpKeys(Collection<String> warmUpKeys)
+        {
+            PropertyCheck.mandatory(this, "warmUpKeys", warmUpKeys);
+            this.warmUpKeys = warmUpKeys;
+        }
 
-            // There was nothing to return so we build and return
-            Refresh refresh = null;
-            refreshLock.writeLock().lock();
-            try
+        /**
+         * Set the number of warm-up builds queued at a time, leaving room for builds requested by readers.  No more than
+         * the {@link #setRefreshParallelism(int) refresh parallelism} run at once.
+         * 
+         * @param warmUpParallelism
+         *            the number of warm-up builds queued at a time (default <b>2</b>)
+         */
+        public void setWarmUpParallelism(int warmUpParallelism)
+        {
+            if (warmUpParallelism < 1)
             {
-                // Is there anything we can wait for
-                for (Refresh existing : refreshQueue)
-                {
-                    if (existing.getKey().equals(key))
-                    {
-                        if (logger.isDebugEnabled())
-                        {
-                            logger.debug("get() found existing build to wait for on " + this);
-                        }
-                        refresh = existing;
-                    }
-                }
+                throw new IllegalArgumentException("warmUpParallelism must be at least 1.");
+            }
+            this.warmUpParallelism = warmUpParallelism;
+        }
 
-                if (refresh == null)
-                {
-                    if (logger.isDebugEnabled())
-                    {
-                        logger.debug("get() building from scratch on " + this);
-                    }
-                    refresh = new Refresh(key);
-                    refreshQueue.add(refresh);
-                }
+        /**
+         * @param warmUpOnStartup
+         *            <tt>true</tt> to start {@link #warmUp() warming up} the cache when it is initialised (default <b>false</b>)
+         */
+        public void setWarmUpOnStartup(boolean warmUpOnStartup)
+        {
+            this.warmUpOnStartup = warmUpOnStartup;
+        }
 
-            }
-            finally
+        /**
+         * @param maxEntries
+         *            the maximum number of keys for which values are held or <b>0</b> (default) for no limit
+         */
+        public void setMaxEntries(int maxEntries)
+        {
+            if (maxEntries < 0)
             {
-                refreshLock.writeLock().unlock();
+                throw new IllegalArgumentException("maxEntries cannot be negative.");
             }
-            submit();
-            waitForBuild(refresh);
-
-            return get(key);
+            this.maxEntries = maxEntries;
         }
 
         /**
-         * Use the current thread to build and put a new version of the cache entry before returning.
-         * @param key           the cache key
+         * @param maxWeight
+         *            the maximum total {@link #weigh(String, Object) weight} of the values held or <b>0</b> (default)
+         *            for no limit
          */
-        public void forceInChangesForThisUncommittedTransaction(String key)
+        public void setMaxWeight(long maxWeight)
         {
-            if (logger.isDebugEnabled())
+            if (maxWeight < 0)
             {
-                logger.debug("Building cache for tenant " + key + " on " + this);
+                throw new IllegalArgumentException("maxWeight cannot be negative.");
             }
-            T cache = buildCache(key);
-            if (logger.isDebugEnabled())
+            this.maxWeight = maxWeight;
+        }
+
+        /**
+         * @param evictionPolicy
+         *            how idle keys are chosen for eviction (default <b>LRU</b>)
+         */
+        public void setEvictionPolicy(EvictionPolicy evictionPolicy)
+        {
+            PropertyCheck.mandatory(this, "evictionPolicy", evictionPolicy);
+            this.evictionPolicy = evictionPolicy;
+        }
+
+        /**
+         * @param retryDelay
+         *            the delay (ms) before the first retry of a failed build, doubled for each further failure
+         *            (default <b>100</b>).  Half of each delay is random.
+         */
+        public void setRetryDelay(long retryDelay)
+        {
+            if (retryDelay < 0)
             {
-                logger.debug("Cache built for tenant " + key + " on " + this);
+                throw new IllegalArgumentException("retryDelay cannot be negative.");
             }
+            this.retryDelay = retryDelay;
+        }
 
-            liveLock.writeLock().lock();
-            try
+        /**
+         * @param maxRetryDelay
+         *            the longest delay (ms) between retries of a failed build (default <b>60000</b>)
+         */
+        public void setMaxRetryDelay(long maxRetryDelay)
+        {
+            if (maxRetryDelay < 0)
             {
-                live.put(key, cache);
+                throw new IllegalArgumentException("maxRetryDelay cannot be negative.");
             }
-            finally
+            this.maxRetryDelay = maxRetryDelay;
+        }
+
+        /**
+         * @param failureThreshold
+         *            the number of consecutive build failures after which callers waiting for the key fail fast
+         *            (default <b>5</b>) or <b>0</b> to always wait for the retries
+         */
+        public void setFailureThreshold(int failureThreshold)
+        {
+            if (failureThreshold < 0)
             {
-                liveLock.writeLock().unlock();
+                throw new IllegalArgumentException("failureThreshold cannot be negative.");
             }
+            this.failureThreshold = failureThreshold;
         }
 
-        protected void waitForBuild(Refresh refresh)
+        /**
+         * @return              the number of keys whose circuit is open because their builds keep failing
+         */
+        public int getOpenCircuitCount()
         {
-            while (refresh.getState() != RefreshState.DONE)
+            int count = 0;
+            for (BuildFailures failures : failingKeys.values())
             {
-                synchronized (refresh)
+                if (isCircuitOpen(failures))
                 {
-                    try
-                    {
-                        refresh.wait(100);
-                    }
-                    catch (InterruptedException e)
-                    {
-                    }
+                    count++;
                 }
             }
+            return count;
         }
 
-        @Override
-        public void refresh(String key)
+        /**
+         * @return              the number of reads failed fast because the circuit of the key was open
+         */
+        public long getRejectedReadCount()
         {
-            // String tenantId = tenantService.getCurrentUserDomain();
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Async cache refresh request for tenant " + key + " on " + this);
-            }
-            registry.broadcastEvent(new RefreshableCacheRefreshEvent(cacheId, key), true);
+            return rejectedReadCount.get();
         }
 
-        @Override
-        public void onRefreshableCacheEvent(RefreshableCacheEvent refreshableCacheEvent)
+        /**
+         * @param snapshotStore
+         *            where to save built values so that they can be served straight after a restart, or <tt>null</tt>
+         *            (default) not to keep snapshots.  The store must not be shared with another cache.
+         */
+        public void setSnapshotStore(RefreshableCacheSnapshotStore snapshotStore)
         {
-            // Ignore events not targeted for this cache
-            if (!refreshableCacheEvent.getCacheId().equals(cacheId))
-            {
-                return;
-            }
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Async cache onRefreshableCacheEvent " + refreshableCacheEvent + " on " + this);
-            }
+            this.snapshotStore = snapshotStore;
+        }
 
-            // If in a transaction delay the refresh until after it commits
+        /**
+         * @return              the number of values loaded from the snapshot store
+         */
+        public long getSnapshotLoadCount()
+        {
+            return snapshotLoadCount.get();
+        }
 
-            if (TransactionSupportUtil.getTransactionId() != null)
-            {
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug("Async cache adding" + refreshableCacheEvent.getKey() + " to post commit list: " + this);
-                }
-                TransactionData txData = getTransactionData();
-                txData.keys.add(refreshableCacheEvent.getKey());
-            }
-            else
-            {
-                LinkedHashSet<String> keys = new LinkedHashSet<String>();
-                keys.add(refreshableCacheEvent.getKey());
-                queueRefreshAndSubmit(keys);
-            }
+        /**
+         * @return              the number of snapshot values found to be current, so not rebuilt
+         */
+        public long getRevalidatedCount()
+        {
+            return revalidatedCount.get();
         }
-        
+
         /**
-         * To be used in a transaction only.
+         * @return              the number of refreshes of the given priority that have been started
          */
-        private TransactionData getTransactionData()
+        public long getQueueWaitCount(RefreshPriority priority)
         {
-            TransactionData data = (TransactionData) TransactionSupportUtil.getResource(resourceKeyTxnData);
-            if (data == null)
-            {
-                data = new TransactionData();
-                // create and initialize caches
-                data.keys = new LinkedHashSet<String>();
+            return queueWaitCounts.get(priority.ordinal());
+        }
 
-                // ensure that we get the transaction callbacks as we have bound the unique
-                // transactional caches to a common manager
-                TransactionSupportUtil.bindListener(this, 0);
-                TransactionSupportUtil.bindResource(resourceKeyTxnData, data);
-            }
-            return data;
+        /**
+         * @return              the total time (ms) from queuing to starting of refreshes of the given priority
+         */
+        public long getTotalQueueWaitTime(RefreshPriority priority)
+        {
+            return queueWaitTotals.get(priority.ordinal());
+        }
+
+        /**
+         * @return              the longest time (ms) from queuing to starting of a refresh of the given priority
+         */
+        public long getMaxQueueWaitTime(RefreshPriority priority)
+        {
+            return queueWaitMaxes.get(priority.ordinal());
         }
 
-        private void queueRefreshAndSubmit(LinkedHashSet<String> tenantIds)
+        /**
+         * Clear the queue wait times
+         */
+        void resetQueueWaitTimes()
         {
-            if((tenantIds == null) || (tenantIds.size() == 0))
+            for (int i = 0; i < queueWaitCounts.length(); i++)
             {
-                return;
+                queueWaitCounts.set(i, 0L);
+                queueWaitTotals.set(i, 0L);
+                queueWaitMaxes.set(i, 0L);
             }
-            refreshLock.writeLock().lock();
+        }
+
+        /**
+         * @return              the number of values evicted to keep the cache within its limits
+         */
+        public long getEvictionCount()
+        {
+            return evictionCount.get();
+        }
+
+        /**
+         * @return              the number of refresh requests ignored because the key had been evicted
+         */
+        public long getSkippedRefreshCount()
+        {
+            return skippedRefreshCount.get();
+        }
+
+        /**
+         * @return              the number of keys for which values are held
+         */
+        public int getEntryCount()
+        {
+            return liveValues.size();
+        }
+
+        /**
+         * @return              the total weight of the values held (only tracked if the cache is bounded)
+         */
+        public long getWeight()
+        {
+            liveLock.readLock().lock();
             try
             {
-                for (String tenantId : tenantIds)
-                {
-                    if (logger.isDebugEnabled())
-                    {
-                        logger.debug("Async cache adding refresh to queue for tenant " + tenantId + " on " + this);
-                    }
-                    refreshQueue.add(new Refresh(tenantId));
-                }
+                return weight;
             }
             finally
             {
-                refreshLock.writeLock().unlock();
+                liveLock.readLock().unlock();
             }
-            submit();
         }
 
-        @Override
-        public boolean isUpToDate(String key)
+        private boolean isBounded()
         {
-           refreshLock.readLock().lock();
-           try
-           {
-               for(Refresh refresh : refreshQueue)
-               {
-                   if(refresh.getKey().equals(key))
-                   {
-                       return false;
-                   }
-               }
-               if (TransactionSupportUtil.getTransactionId() != null)
-               {
-                   return (!getTransactionData().keys.contains(key));
-               }
-               else
-               {
-                   return true;
-               }
-           }
-           finally
-           {
-               refreshLock.readLock().unlock();
+            return maxEntries > 0 || maxWeight > 0;
+        }
+
+        /**
+         * Set the time for which an event-driven refresh waits before it is built.  Further refresh requests for the
+         * same key within the window are collapsed into the same build.  Refreshes that readers are blocked on
+         * are built straight away.
+         * 
+         * @param coalesceWindow
+         *            the coalescing window in milliseconds (default <b>0</b> i.e. build as soon as possible)
+         */
+        public void setCoalesceWindow(long coalesceWindow)
+        {
+            if (coalesceWindow < 0)
+            {
+                throw new IllegalArgumentException("coalesceWindow cannot be negative.");
+            }
+            this.coalesceWindow = coalesceWindow;
+        }
+
+        /**
+         * @return              the number of refresh requests that were collapsed into an already queued refresh
+         */
+        public long getCoalescedRefreshCount()
+        {
+            return coalescedRefreshCount.get();
+        }
+
+        /**
+         * @return              the number of changes that were discarded because a full rebuild was required
+         */
+        public long getDroppedChangeCount()
+        {
+            return droppedChangeCount.get();
+        }
+
+        public void init()
+        {
+            registry.register(this);
+            if (warmUpOnStartup)
+            {
+                warmUp();
+            }
+        }
+
+        /**
+         * Get the keys to build when warming up.  Override to discover the keys, for example from the list of tenants.
+         * 
+         * @return              the keys to build (default: the configured {@link #setWarmUpKeys(Collection) warm-up keys})
+         */
+        protected Collection<String> getWarmUpKeys()
+        {
+            return warmUpKeys;
+        }
+
+        @Override
+        public synchronized RefreshableCacheFuture<Long> warmUp()
+        {
+            if (warmUpFuture == null)
+            {
+                warmUpFuture = new RefreshableCacheFuture<Long>();
+                WarmUp warmUp = new WarmUp(new ArrayList<String>(getWarmUpKeys()), warmUpFuture);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Warming up " + warmUp.keyCount + " keys on " + this);
+                }
+                for (int i = 0; i < warmUpParallelism; i++)
+                {
+                    warmUp.next();
+                }
+            }
+            return warmUpFuture;
+        }
+
+        @Override
+        public synchronized boolean isWarm()
+        {
+            return warmUpFuture != null && warmUpFuture.isDone();
+        }
+
+        /**
+         * @return              the time (ms) that warming up took or <tt>-1</tt> if it has not completed
+         */
+        public long getWarmUpTime()
+        {
+            RefreshableCacheFuture<Long> future;
+            synchronized (this)
+            {
+                future = warmUpFuture;
+            }
+            if (future == null || !future.isDone())
+            {
+                return -1L;
+            }
+            try
+            {
+                return future.get();
+            }
+            catch (Exception e)
+            {
+                return -1L;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "AbstractAsynchronouslyRefreshedCache [cacheId=" + cacheId + "]";
+        }
+
+        @Override
+        public T get(String key)
+        {
+            RefreshableCacheEntry<T> overlaid = getOverlayEntry(key);
+            if (overlaid != null)
+            {
+                return overlaid.getValue();
+            }
+            if (maxStaleness < 0)
+            {
+                T value = liveValues.get(key);
+                if (value != null)
+                {
+                    if (logger.isTraceEnabled())
+                    {
+                        logger.trace("get() from cache for key " + key + " on " + this);
+                    }
+                    if (countHits)
+                    {
+                        statistics.forKey(key).recordHit();
+                    }
+                    touch(key);
+                    return value;
+                }
+            }
+            return getEntry(key).getValue();
+        }
+
+        @Override
+        public RefreshableCacheEntry<T> getEntry(String key)
+        {
+            RefreshableCacheEntry<T> overlaid = getOverlayEntry(key);
+            if (overlaid != null)
+            {
+                return overlaid;
+            }
+            RefreshableCacheEntry<T> entry = entries.get(key);
+            if (entry != null && !isTooStale(entry))
+            {
+                if (logger.isTraceEnabled())
+                {
+                    logger.trace("getEntry() from cache for key " + key + " on " + this);
+                }
+                if (countHits)
+                {
+                    statistics.forKey(key).recordHit();
+                }
+                touch(key);
+                return entry;
+            }
+            statistics.forKey(key).recordMiss();
+            if (entry == null)
+            {
+                entry = loadFromSnapshot(key);
+            }
+
+            // There was nothing to return so we build and return
+            while (entry == null || isTooStale(entry))
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("get() " + (entry == null ? "miss" : "stale entry " + entry) + ", scheduling and waiting for key " + key + " on " + this);
+                }
+                checkCircuit(key);
+                Refresh refresh = scheduleBuild(key);
+                waitForBuild(refresh);
+                // Use the entry that the build produced: the key may already have been evicted or marked stale again
+                entry = refresh.getBuiltEntry();
+                if (entry != null)
+                {
+                    break;
+                }
+            }
+            touch(key);
+            return entry;
+        }
+
+        @Override
+        public RefreshableCacheFuture<T> getAsync(String key)
+        {
+            RefreshableCacheEntry<T> overlaid = getOverlayEntry(key);
+            if (overlaid != null)
+            {
+                return RefreshableCacheFuture.completed(overlaid.getValue());
+            }
+            RefreshableCacheEntry<T> entry = entries.get(key);
+            if (entry != null && !isTooStale(entry))
+            {
+                if (logger.isTraceEnabled())
+                {
+                    logger.trace("getAsync() from cache for key " + key + " on " + this);
+                }
+                if (countHits)
+                {
+                    statistics.forKey(key).recordHit();
+                }
+                touch(key);
+                return RefreshableCacheFuture.completed(entry.getValue());
+            }
+            statistics.forKey(key).recordMiss();
+            if (entry == null)
+            {
+                entry = loadFromSnapshot(key);
+                if (entry != null && !isTooStale(entry))
+                {
+                    return RefreshableCacheFuture.completed(entry.getValue());
+                }
+            }
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("getAsync() " + (entry == null ? "miss" : "stale entry " + entry) + ", scheduling build for key " + key + " on " + this);
+            }
+            try
+            {
+                checkCircuit(key);
+            }
+            catch (AlfrescoRuntimeException e)
+            {
+                RefreshableCacheFuture<T> failed = new RefreshableCacheFuture<T>();
+                failed.fail(e);
+                return failed;
+            }
+            Refresh refresh = scheduleBuild(key);
+            return refresh.getFuture().newDependent();
+        }
+
+        /**
+         * Put the snapshot of a key into the cache, if there is one and the key has not been built meanwhile, and
+         * queue its revalidation.
+         * 
+         * @return              the current entry for the key or <tt>null</tt> if there is none
+         */
+        @SuppressWarnings("unchecked")
+        private RefreshableCacheEntry<T> loadFromSnapshot(String key)
+        {
+            if (snapshotStore == null)
+            {
+                return null;
+            }
+            Pair<Serializable, Long> snapshot;
+            try
+            {
+                snapshot = snapshotStore.load(key);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Failed to load snapshot of key " + key + "; it will be rebuilt: " + this, e);
+                return null;
+            }
+            if (snapshot != null && putLive(key, (T) snapshot.getFirst(), true) != null)
+            {
+                snapshotLoadCount.incrementAndGet();
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Loaded snapshot of key " + key + " with watermark " + snapshot.getSecond() + " on " + this);
+                }
+                queueRevalidation(key, snapshot.getSecond());
+            }
+            return entries.get(key);
+        }
+
+        /**
+         * Queue a background refresh of a value loaded from a snapshot, unless a refresh is already queued.  The
+         * value is marked stale until the refresh is done.
+         * 
+         * @param watermark     the source watermark recorded with the snapshot
+         */
+        private void queueRevalidation(String key, long watermark)
+        {
+            long now = System.currentTimeMillis();
+            refreshLock.writeLock().lock();
+            try
+            {
+                if (!waitingRefreshes.containsKey(key) && !runningRefreshes.containsKey(key))
+                {
+                    Refresh refresh = new Refresh(key);
+                    refresh.setRevalidateWatermark(watermark);
+                    waitingRefreshes.put(key, refresh);
+                }
+            }
+            finally
+            {
+                refreshLock.writeLock().unlock();
+            }
+            markStale(Collections.singleton(key), now);
+            submit();
+        }
+
+        /**
+         * Save a newly built value to the snapshot store, or forget the key if there is no value.  Values that are not
+         * {@link Serializable} are not saved.
+         */
+        private void saveSnapshot(String key, T value, long watermark)
+        {
+            try
+            {
+                if (value == null)
+                {
+                    snapshotStore.remove(key);
+                }
+                else if (value instanceof Serializable)
+                {
+                    snapshotStore.save(key, (Serializable) value, watermark);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Failed to save snapshot of key " + key + ": " + this, e);
+            }
+        }
+
+        /**
+         * Fail fast if the builds of the key keep failing
+         * 
+         * @throws AlfrescoRuntimeException if the circuit of the key is open
+         */
+        private void checkCircuit(String key)
+        {
+            BuildFailures failures = failingKeys.get(key);
+            if (failures != null && isCircuitOpen(failures))
+            {
+                rejectedReadCount.incrementAndGet();
+                throw new AlfrescoRuntimeException("Cache build for key " + key + " has failed " + failures.consecutive
+                        + " times in a row; next retry in " + Math.max(0L, failures.retryTime - System.currentTimeMillis())
+                        + "ms on " + this, failures.last);
+            }
+        }
+
+        private boolean isCircuitOpen(BuildFailures failures)
+        {
+            return failureThreshold > 0 && failures.consecutive >= failureThreshold;
+        }
+
+        /**
+         * @param failureCount  the number of consecutive failures
+         * @return              the delay before the next retry: half the exponential delay plus a random part of up
+         *                      to the other half
+         */
+        private long getRetryDelay(int failureCount)
+        {
+            long delay = retryDelay;
+            for (int i = 1; i < failureCount && delay < maxRetryDelay; i++)
+            {
+                delay *= 2;
+            }
+            delay = Math.min(delay, maxRetryDelay);
+            long half = delay / 2;
+            return delay - half + (long) (ThreadLocalRandom.current().nextDouble() * half);
+        }
+
+        /**
+         * @return              <tt>true</tt> if the entry has been stale for longer than the maximum staleness
+         */
+        private boolean isTooStale(RefreshableCacheEntry<T> entry)
+        {
+            return maxStaleness >= 0 && entry.isStale() && entry.getStaleness() > maxStaleness;
+        }
+
+        /**
+         * Find a queued refresh to wait for or queue a new one and make sure that it will be built.
+         * 
+         * @param key           the cache key
+         * @return              the refresh that will build the value for the key
+         */
+        private Refresh scheduleBuild(String key)
+        {
+            Refresh refresh = null;
+            refreshLock.writeLock().lock();
+            try
+            {
+                // Is there anything we can wait for
+                refresh = waitingRefreshes.get(key);
+                if (refresh == null)
+                {
+                    refresh = runningRefreshes.get(key);
+                }
+                if (refresh != null)
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("get() found existing build to wait for on " + this);
+                    }
+                    // Someone is waiting, so don't hold the build back
+                    refresh.makeEligible();
+                }
+                else
+                {
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("get() building from scratch on " + this);
+                    }
+                    refresh = new Refresh(key);
+                    waitingRefreshes.put(key, refresh);
+                }
+
+            }
+            finally
+            {
+                refreshLock.writeLock().unlock();
+            }
+            submit();
+            return refresh;
+        }
+
+        /**
+         * Make the changes to a key requested in the current transaction visible to the rest of the transaction.
+         * <p/>
+         * The new value is held in an overlay that is only seen by the transaction.  It is derived from the shared value
+         * with {@link #applyDelta(String, Object, List)} if possible; otherwise it is built on the current thread when the
+         * transaction first reads it, as only the transaction can see its uncommitted changes.  On commit the overlay is
+         * merged into the shared values, unless they have changed meanwhile, and the key is refreshed as usual.
+         * <p/>
+         * Outside a transaction the value is built on the current thread and put straight into the cache.
+         * 
+         * @param key           the cache key
+         */
+        public void forceInChangesForThisUncommittedTransaction(String key)
+        {
+            if (TransactionSupportUtil.getTransactionId() != null)
+            {
+                TransactionData txnData = getTransactionData();
+                if (txnData.overlays == null)
+                {
+                    txnData.overlays = new HashMap<String, Overlay>();
+                    overlayTransactions.incrementAndGet();
+                }
+                if (!txnData.keys.containsKey(key))
+                {
+                    // The changes were not described, so the key will need rebuilding after the commit
+                    addChange(txnData.keys, key, null);
+                }
+                Overlay overlay = txnData.overlays.get(key);
+                if (overlay == null)
+                {
+                    overlay = new Overlay(liveValues.get(key));
+                    txnData.overlays.put(key, overlay);
+                }
+                List<Serializable> changes = txnData.keys.get(key);
+                T value = null;
+                if (overlay.base != null && changes != null)
+                {
+                    value = tryApplyDelta(key, overlay.base, changes);
+                }
+                overlay.entry = value == null ? null : new RefreshableCacheEntry<T>(key, value, versions.incrementAndGet(), System.currentTimeMillis(), 0L);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Overlaid " + (value == null ? "pending build" : "delta") + " for tenant " + key + " in transaction on " + this);
+                }
+                return;
+            }
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Building cache for tenant " + key + " on " + this);
+            }
+            T cache = timedBuildCache(key);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Cache built for tenant " + key + " on " + this);
+            }
+
+            putLive(key, cache, false);
+        }
+
+        /**
+         * @return              the value of the key in the current transaction's overlay or <tt>null</tt> if the
+         *                      transaction has not changed the key
+         */
+        private RefreshableCacheEntry<T> getOverlayEntry(String key)
+        {
+            if (overlayTransactions.get() == 0 || TransactionSupportUtil.getTransactionId() == null)
+            {
+                return null;
+            }
+            TransactionData txnData = TransactionSupportUtil.getResource(resourceKeyTxnData);
+            if (txnData == null || txnData.overlays == null)
+            {
+                return null;
+            }
+            Overlay overlay = txnData.overlays.get(key);
+            if (overlay == null)
+            {
+                return null;
+            }
+            if (overlay.entry == null)
+            {
+                // No delta was available, so build the value now that the transaction needs it
+                T value = timedBuildCache(key);
+                overlay.entry = new RefreshableCacheEntry<T>(key, value, versions.incrementAndGet(), System.currentTimeMillis(), 0L);
+            }
+            return overlay.entry;
+        }
+
+        /**
+         * Put the values overlaid by a committed transaction into the cache, unless the cached value has changed
+         * since the overlay was taken from it.  The refresh queued for each key will bring the value up to date.
+         */
+        private void mergeOverlays(Map<String, Overlay> overlays)
+        {
+            liveLock.writeLock().lock();
+            try
+            {
+                for (Map.Entry<String, Overlay> entry : overlays.entrySet())
+                {
+                    Overlay overlay = entry.getValue();
+                    boolean merge = overlay.entry != null && liveValues.get(entry.getKey()) == overlay.base;
+                    if (merge)
+                    {
+                        putLive(entry.getKey(), overlay.entry.getValue(), false);
+                    }
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug((merge ? "Merged" : "Discarded") + " overlay for tenant " + entry.getKey() + " on " + this);
+                    }
+                }
+            }
+            finally
+            {
+                liveLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Block until the refresh has been built.
+         * 
+         * @throws AlfrescoRuntimeException if the waiting thread is interrupted (the interrupt status is preserved)
+         */
+        protected void waitForBuild(Refresh refresh)
+        {
+            RefreshableCacheKeyStatistics keyStatistics = statistics.forKey(refresh.getKey());
+            keyStatistics.waitStarted();
+            refresh.readerBlocked();
+            long start = System.currentTimeMillis();
+            try
+            {
+                refresh.getFuture().get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new AlfrescoRuntimeException("Interrupted while waiting for cache build of key " + refresh.getKey() + " on " + this, e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new AlfrescoRuntimeException("Cache build failed for key " + refresh.getKey() + " on " + this, e.getCause());
+            }
+            finally
+            {
+                refresh.readerUnblocked();
+                keyStatistics.waitEnded(System.currentTimeMillis() - start);
+            }
+        }
+
+        @Override
+        public void refresh(String key)
+        {
+            // String tenantId = tenantService.getCurrentUserDomain();
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Async cache refresh request for tenant " + key + " on " + this);
+            }
+            registry.broadcastEvent(new RefreshableCacheRefreshEvent(cacheId, key), true);
+        }
+
+        @Override
+        public void refresh(String key, Serializable change)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Async cache refresh request for tenant " + key + " with change " + change + " on " + this);
+            }
+            registry.broadcastEvent(new RefreshableCacheRefreshEvent(cacheId, key, change), true);
+        }
+
+        @Override
+        public void onRefreshableCacheEvent(RefreshableCacheEvent refreshableCacheEvent)
+        {
+            // Ignore events not targeted for this cache
+            if (!refreshableCacheEvent.getCacheId().equals(cacheId))
+            {
+                return;
+            }
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Async cache onRefreshableCacheEvent " + refreshableCacheEvent + " on " + this);
+            }
+
+            // Events without a change require a full rebuild
+            Serializable change = null;
+            if (refreshableCacheEvent instanceof RefreshableCacheRefreshEvent)
+            {
+                change = ((RefreshableCacheRefreshEvent) refreshableCacheEvent).getChange();
+            }
+
+            // If in a transaction delay the refresh until after it commits
+
+            if (TransactionSupportUtil.getTransactionId() != null)
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Async cache adding" + refreshableCacheEvent.getKey() + " to post commit list: " + this);
+                }
+                TransactionData txData = getTransactionData();
+                addChange(txData.keys, refreshableCacheEvent.getKey(), change);
+            }
+            else
+            {
+                LinkedHashMap<String, List<Serializable>> keys = new LinkedHashMap<String, List<Serializable>>();
+                addChange(keys, refreshableCacheEvent.getKey(), change);
+                queueRefreshAndSubmit(keys);
+            }
+        }
+
+        /**
+         * Record a change against a key.  A <tt>null</tt> list of changes means that a full rebuild is required.
+         * 
+         * @param change        the change or <tt>null</tt> if a full rebuild is required
+         */
+        private static void addChange(Map<String, List<Serializable>> changesByKey, String key, Serializable change)
+        {
+            if (change == null)
+            {
+                changesByKey.put(key, null);
+            }
+            else if (!changesByKey.containsKey(key))
+            {
+                List<Serializable> changes = new ArrayList<Serializable>(1);
+                changes.add(change);
+                changesByKey.put(key, changes);
+            }
+            else if (changesByKey.get(key) != null)
+            {
+                changesByKey.get(key).add(change);
+            }
+        }
+        
+        /**
+         * To be used in a transaction only.
+         */
+        private TransactionData getTransactionData()
+        {
+            TransactionData data = TransactionSupportUtil.getResource(resourceKeyTxnData);
+            if (data == null)
+            {
+                data = new TransactionData();
+                // create and initialize caches
+                data.keys = new LinkedHashMap<String, List<Serializable>>();
+
+                // ensure that we get the transaction callbacks as we have bound the unique
+                // transactional caches to a common manager
+                TransactionSupportUtil.bindListener(this, 0);
+                TransactionSupportUtil.bindResource(resourceKeyTxnData, data);
+            }
+            return data;
+        }
+
+        private void queueRefreshAndSubmit(LinkedHashMap<String, List<Serializable>> changesByTenantId)
+        {
+            Set<String> tenantIds = changesByTenantId.keySet();
+            if((tenantIds == null) || (tenantIds.size() == 0))
+            {
+                return;
+            }
+            long queuedTime = System.currentTimeMillis();
+            refreshLock.writeLock().lock();
+            try
+            {
+                for (String tenantId : tenantIds)
+                {
+                    Refresh refresh = waitingRefreshes.get(tenantId);
+                    if (refresh == null && isBounded() && !liveValues.containsKey(tenantId) && !runningRefreshes.containsKey(tenantId))
+                    {
+                        // Evicted or never built: the value will be built when it is next requested
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("Async cache ignoring refresh of absent tenant " + tenantId + " on " + this);
+                        }
+                        skippedRefreshCount.incrementAndGet();
+                        continue;
+                    }
+                    if (refresh == null)
+                    {
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("Async cache adding refresh to queue for tenant " + tenantId + " on " + this);
+                        }
+                        refresh = new Refresh(tenantId, changesByTenantId.get(tenantId));
+                        refresh.setEligibleTime(queuedTime + coalesceWindow);
+                        waitingRefreshes.put(tenantId, refresh);
+                    }
+                    else
+                    {
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("Async cache coalescing refresh with queued refresh for tenant " + tenantId + " on " + this);
+                        }
+                        coalescedRefreshCount.incrementAndGet();
+                        refresh.addChanges(changesByTenantId.get(tenantId));
+                    }
+                }
+            }
+            finally
+            {
+                refreshLock.writeLock().unlock();
+            }
+            markStale(tenantIds, queuedTime);
+            submit();
+        }
+
+        @Override
+        public boolean isUpToDate(String key)
+        {
+           refreshLock.readLock().lock();
+           try
+           {
+               if (waitingRefreshes.containsKey(key) || runningRefreshes.containsKey(key))
+               {
+                   return false;
+               }
+               if (TransactionSupportUtil.getTransactionId() != null)
+               {
+                   return (!getTransactionData().keys.containsKey(key));
+               }
+               else
+               {
+                   return true;
+               }
+           }
+           finally
+           {
+               refreshLock.readLock().unlock();
            }
         }
         
         /**
-         * Must be run with runLock.writeLock
+         * Must be run with runLock.writeLock
+         * 
+         * @return              the first of the most urgent eligible waiting refreshes for keys that are not already
+         *                      being built
+         */
+        private Refresh getNextRefresh()
+        {
+            if (runLock.writeLock().isHeldByCurrentThread())
+            {
+                long now = System.currentTimeMillis();
+                Refresh next = null;
+                RefreshPriority nextPriority = null;
+                for (Refresh refresh : waitingRefreshes.values())
+                {
+                    if (isRunnable(refresh, now))
+                    {
+                        RefreshPriority priority = getPriority(refresh, now);
+                        if (next == null || priority.compareTo(nextPriority) < 0)
+                        {
+                            next = refresh;
+                            nextPriority = priority;
+                            if (priority == RefreshPriority.BLOCKED_READER)
+                            {
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (next != null)
+                {
+                    recordQueueWait(nextPriority, now - next.getQueuedTime());
+                }
+                return next;
+            }
+            else
+            {
+                throw new IllegalStateException("Method should not be called without holding the write lock: " + this);
+            }
+
+        }
+
+        /**
+         * Must be run with runLock.writeLock
+         * 
+         * @return              the number of eligible waiting refreshes for keys that are not already being built
+         */
+        private int countRunnable(long now)
+        {
+            int count = 0;
+            if (runLock.writeLock().isHeldByCurrentThread())
+            {
+                refreshLock.readLock().lock();
+                try
+                {
+                    for (Refresh refresh : waitingRefreshes.values())
+                    {
+                        if (isRunnable(refresh, now))
+                        {
+                            count++;
+                        }
+                    }
+                    return count;
+                }
+                finally
+                {
+                    refreshLock.readLock().unlock();
+                }
+            }
+            else
+            {
+                throw new IllegalStateException("Method should not be called without holding the write lock: " + this);
+            }
+
+        }
+
+        /**
+         * @return              how urgently the refresh should be started
+         */
+        private RefreshPriority getPriority(Refresh refresh, long now)
+        {
+            if (refresh.hasBlockedReaders())
+            {
+                return RefreshPriority.BLOCKED_READER;
+            }
+            if (recentReadWindow > 0)
+            {
+                RefreshableCacheKeyStatistics keyStatistics = statistics.getKeyStatistics(refresh.getKey());
+                if (keyStatistics != null && now - keyStatistics.getLastReadTime() <= recentReadWindow)
+                {
+                    return RefreshPriority.RECENTLY_READ;
+                }
+            }
+            return RefreshPriority.BACKGROUND;
+        }
+
+        private void recordQueueWait(RefreshPriority priority, long waitTime)
+        {
+            int i = priority.ordinal();
+            queueWaitCounts.incrementAndGet(i);
+            queueWaitTotals.addAndGet(i, waitTime);
+            long max = queueWaitMaxes.get(i);
+            while (waitTime > max && !queueWaitMaxes.compareAndSet(i, max, waitTime))
+            {
+                max = queueWaitMaxes.get(i);
+            }
+        }
+
+        /**
+         * Must be run with at least refreshLock.readLock
+         */
+        private boolean isRunnable(Refresh refresh, long now)
+        {
+            return refresh.getEligibleTime() <= now && !runningRefreshes.containsKey(refresh.getKey());
+        }
+
+        /**
+         * Must be run with runLock.writeLock
+         * 
+         * @return              the earliest time after <tt>now</tt> at which a waiting refresh becomes eligible
+         *                      or <tt>Long.MAX_VALUE</tt> if there is none
+         */
+        private long getNextEligibleTime(long now)
+        {
+            long next = Long.MAX_VALUE;
+            refreshLock.readLock().lock();
+            try
+            {
+                for (Refresh refresh : waitingRefreshes.values())
+                {
+                    if (refresh.getEligibleTime() > now)
+                    {
+                        next = Math.min(next, refresh.getEligibleTime());
+                    }
+                }
+                return next;
+            }
+            finally
+            {
+                refreshLock.readLock().unlock();
+            }
+        }
+
+        private static synchronized Timer getTimer()
+        {
+            if (timer == null)
+            {
+                timer = new Timer("AsynchronouslyRefreshedCacheTimer", true);
+            }
+            return timer;
+        }
+
+        /**
+         * Make sure that workers will be scheduled when the next delayed refresh becomes eligible.
+         * Must be run with runLock.writeLock
+         */
+        private void scheduleWakeUp(long now)
+        {
+            long next = getNextEligibleTime(now);
+            if (next == Long.MAX_VALUE || (wakeUpTime > now && wakeUpTime <= next))
+            {
+                // Nothing delayed or the timer will already wake up in time
+                return;
+            }
+            wakeUpTime = next;
+            getTimer().schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        submit();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Failed to schedule delayed cache refreshes: " + AbstractAsynchronouslyRefreshedCache.this, e);
+                    }
+                }
+            }, next - now);
+        }
+
+        private void submit()
+        {
+            runLock.writeLock().lock();
+            try
+            {
+                scheduleWorkers();
+            }
+            finally
+            {
+                runLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Start as many workers as there are runnable refreshes, up to the refresh parallelism.
+         * Must be run with runLock.writeLock
+         */
+        private void scheduleWorkers()
+        {
+            long now = System.currentTimeMillis();
+            scheduleWakeUp(now);
+            int toStart = Math.min(refreshParallelism - activeWorkers, countRunnable(now));
+            for (int i = 0; i < toStart; i++)
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("submit() scheduling job: " + this);
+                }
+                threadPoolExecutor.submit(this);
+                activeWorkers++;
+            }
+        }
+
+        /**
+         * Builds at most one waiting refresh and then reschedules workers for any remaining work.
+         */
+        @Override
+        public Void call()
+        {
+            try
+            {
+                doCall();
+            }
+            catch (Exception e)
+            {
+                logger.error("Cache update failed: " + this, e);
+            }
+            finally
+            {
+                runLock.writeLock().lock();
+                try
+                {
+                    activeWorkers--;
+                    scheduleWorkers();
+                }
+                finally
+                {
+                    runLock.writeLock().unlock();
+                }
+            }
+            return null;
+        }
+
+        private void doCall() throws Exception
+        {
+            Refresh refresh = setUpRefresh();
+            if (refresh == null)
+            {
+                return;
+            }
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Building cache for key" + refresh.getKey() + " on " + this); 
+            }
+
+            try
+            {
+                doRefresh(refresh);
+            }
+            catch (Exception e)
+            {
+                statistics.forKey(refresh.getKey()).recordFailure();
+                requeue(refresh, e);
+            }
+        }
+
+        /**
+         * Put a refresh that failed to build back into the waiting queue, to be retried after a delay.  If another
+         * refresh has been queued for the same key in the meantime, anyone waiting on the failed refresh will be
+         * woken by that one instead.  If the circuit of the key is open, anyone waiting is failed straight away.
+         */
+        private void requeue(final Refresh refresh, Exception failure)
+        {
+            String key = refresh.getKey();
+            long now = System.currentTimeMillis();
+            BuildFailures failures;
+            int failureCount;
+            long delay;
+            boolean open;
+            refreshLock.writeLock().lock();
+            try
+            {
+                runningRefreshes.remove(key);
+                refresh.setState(RefreshState.WAITING);
+                failures = failingKeys.get(key);
+                if (failures == null)
+                {
+                    failures = new BuildFailures();
+                    failingKeys.put(key, failures);
+                }
+                failureCount = ++failures.consecutive;
+                failures.last = failure;
+                delay = getRetryDelay(failureCount);
+                failures.retryTime = now + delay;
+                open = isCircuitOpen(failures);
+
+                final Refresh waiting = waitingRefreshes.get(key);
+                statistics.forKey(key).recordRetry();
+                Refresh retry;
+                if (waiting == null)
+                {
+                    // Once the circuit is open the retry needs a future of its own
+                    retry = open ? new Refresh(key) : refresh;
+                    waitingRefreshes.put(key, retry);
+                }
+                else
+                {
+                    retry = waiting;
+                }
+                if (retry != refresh)
+                {
+                    // The changes of the failed refresh still have to be applied
+                    retry.addEarlierChanges(refresh);
+                    if (!open)
+                    {
+                        waiting.getFuture().addListener(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                refresh.setBuiltEntry(waiting.getBuiltEntry());
+                                refresh.getFuture().completeFrom(waiting.getFuture());
+                            }
+                        }, RefreshableCacheFuture.DIRECT_EXECUTOR);
+                    }
+                }
+                retry.delayUntil(failures.retryTime);
+            }
+            finally
+            {
+                refreshLock.writeLock().unlock();
+            }
+
+            if (open)
+            {
+                refresh.getFuture().fail(new AlfrescoRuntimeException("Cache build for key " + key + " has failed "
+                        + failureCount + " times in a row on " + this, failure));
+            }
+            if (failureCount == 1)
+            {
+                logger.error("Cache build failed for key " + key + "; retrying in " + delay + "ms: " + this, failure);
+            }
+            else if (open && failureCount == failureThreshold)
+            {
+                logger.error("Cache build failed " + failureCount + " times in a row for key " + key
+                        + "; failing readers until a retry succeeds: " + this, failure);
+            }
+            else if (logger.isWarnEnabled())
+            {
+                logger.warn("Cache build failed " + failureCount + " times in a row for key " + key + "; retrying in "
+                        + delay + "ms: " + failure + " on " + this);
+            }
+        }
+
+        /**
+         * @return              the patched value or <tt>null</tt> if a full rebuild is required
+         */
+        private T tryApplyDelta(String key, T previous, List<Serializable> changes)
+        {
+            try
+            {
+                T cache = applyDelta(key, previous, changes);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug((cache == null ? "No delta available" : "Applied delta of " + changes.size() + " changes") + " for tenant " + key + " on " + this);
+                }
+                return cache;
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Failed to apply delta for tenant " + key + "; rebuilding in full: " + this, e);
+                return null;
+            }
+        }
+
+        /**
+         * Put a value into the live map with a new version.  The value is already stale if another
+         * refresh for the key has been queued since its build started.
+         * 
+         * @param onlyIfAbsent  <tt>true</tt> to leave any value that is already live in place
+         * @return              the new entry or <tt>null</tt> if the live value was left in place or removed
+         */
+        private RefreshableCacheEntry<T> putLive(String key, T value, boolean onlyIfAbsent)
+        {
+            liveLock.writeLock().lock();
+            try
+            {
+                if (onlyIfAbsent && liveValues.containsKey(key))
+                {
+                    return null;
+                }
+                RefreshableCacheEntry<T> entry = null;
+                if (value == null)
+                {
+                    liveValues.remove(key);
+                    live.remove(key);
+                    entries.remove(key);
+                    KeyUsage keyUsage = usage.remove(key);
+                    if (keyUsage != null)
+                    {
+                        weight -= keyUsage.weight;
+                    }
+                    statistics.removeKey(key);
+                }
+                else
+                {
+                    long staleSince = 0L;
+                    refreshLock.readLock().lock();
+                    try
+                    {
+                        Refresh waiting = waitingRefreshes.get(key);
+                        if (waiting != null)
+                        {
+                            staleSince = waiting.getQueuedTime();
+                        }
+                    }
+                    finally
+                    {
+                        refreshLock.readLock().unlock();
+                    }
+                    liveValues.put(key, value);
+                    live.put(key, value);
+                    entry = new RefreshableCacheEntry<T>(key, value, versions.incrementAndGet(), System.currentTimeMillis(), staleSince);
+                    entries.put(key, entry);
+                    if (isBounded())
+                    {
+                        KeyUsage keyUsage = usage.get(key);
+                        if (keyUsage == null)
+                        {
+                            keyUsage = new KeyUsage();
+                            usage.put(key, keyUsage);
+                        }
+                        long newWeight = weigh(key, value);
+                        weight += newWeight - keyUsage.weight;
+                        keyUsage.weight = newWeight;
+                        evictIdle(key);
+                    }
+                }
+                return entry;
+            }
+            finally
+            {
+                liveLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Mark the current values for the keys as stale, if they are not already
+         * 
+         * @param staleSince    the time from which the values are stale
+         */
+        private void markStale(Iterable<String> keys, long staleSince)
+        {
+            liveLock.writeLock().lock();
+            try
+            {
+                for (String key : keys)
+                {
+                    RefreshableCacheEntry<T> entry = entries.get(key);
+                    if (entry != null && !entry.isStale())
+                    {
+                        entries.put(key, entry.markStale(staleSince));
+                    }
+                }
+            }
+            finally
+            {
+                liveLock.writeLock().unlock();
+            }
+        }
+        
+        /**
+         * Record a read of a key, for refresh priority and, if the cache is bounded, eviction.  The counters are
+         * updated without locking and may miss concurrent reads, which is good enough for both.
          */
-        private Refresh getNextRefresh()
+        private void touch(String key)
         {
-            if (runLock.writeLock().isHeldByCurrentThread())
+            if (recentReadWindow > 0)
+            {
+                statistics.forKey(key).recordRead(System.currentTimeMillis());
+            }
+            if (isBounded())
+            {
+                KeyUsage keyUsage = usage.get(key);
+                if (keyUsage != null)
+                {
+                    keyUsage.lastRead = System.currentTimeMillis();
+                    keyUsage.reads++;
+                }
+            }
+        }
+
+        /**
+         * Evict idle values until the cache is within its limits.  Keys with a pending refresh are not evicted.
+         * Must be run with liveLock.writeLock
+         * 
+         * @param justBuilt     the key that has just been built, which is never evicted
+         */
+        private void evictIdle(String justBuilt)
+        {
+            if (!isOverLimit())
+            {
+                return;
+            }
+            refreshLock.readLock().lock();
+            try
             {
-                for (Refresh refresh : refreshQueue)
+                while (isOverLimit())
                 {
-                    if (refresh.state == RefreshState.WAITING)
+                    String victim = null;
+                    KeyUsage victimUsage = null;
+                    for (Map.Entry<String, KeyUsage> candidate : usage.entrySet())
                     {
-                        return refresh;
+                        String key = candidate.getKey();
+                        if (key.equals(justBuilt) || waitingRefreshes.containsKey(key) || runningRefreshes.containsKey(key))
+                        {
+                            continue;
+                        }
+                        if (victim == null || isMoreIdle(candidate.getValue(), victimUsage))
+                        {
+                            victim = key;
+                            victimUsage = candidate.getValue();
+                        }
+                    }
+                    if (victim == null)
+                    {
+                        // Everything else is in use
+                        break;
+                    }
+                    if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Evicting idle tenant " + victim + " from " + this);
                     }
+                    liveValues.remove(victim);
+                    live.remove(victim);
+                    entries.remove(victim);
+                    usage.remove(victim);
+                    weight -= victimUsage.weight;
+                    statistics.removeKey(victim);
+                    evictionCount.incrementAndGet();
                 }
-                return null;
+                if (evictionPolicy == EvictionPolicy.LFU)
+                {
+                    // Age the read counts so that keys that are no longer read can be evicted
+                    for (KeyUsage keyUsage : usage.values())
+                    {
+                        keyUsage.reads = keyUsage.reads >> 1;
+                    }
+                }
+            }
+            finally
+            {
+                refreshLock.readLock().unlock();
+            }
+        }
+
+        private boolean isOverLimit()
+        {
+            return (maxEntries > 0 && liveValues.size() > maxEntries) || (maxWeight > 0 && weight > maxWeight);
+        }
+
+        private boolean isMoreIdle(KeyUsage candidate, KeyUsage current)
+        {
+            if (evictionPolicy == EvictionPolicy.LFU && candidate.reads != current.reads)
+            {
+                return candidate.reads < current.reads;
+            }
+            return candidate.lastRead < current.lastRead;
+        }
+
+        private T timedBuildCache(String key)
+        {
+            long start = System.currentTimeMillis();
+            T cache = buildCache(key);
+            statistics.forKey(key).recordBuild(System.currentTimeMillis() - start);
+            return cache;
+        }
+
+        private void doRefresh(Refresh refresh)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Building cache for tenant" + refresh.getKey() + ": " + this);
+            }
+            T cache = null;
+            T previous = liveValues.get(refresh.getKey());
+            // Read the watermark first so that a change made during the build is not recorded as included
+            long watermark = snapshotStore == null ? -1L : getSourceWatermark(refresh.getKey());
+            if (previous != null && refresh.getRevalidateWatermark() >= 0 && refresh.getRevalidateWatermark() == watermark)
+            {
+                revalidatedCount.incrementAndGet();
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Snapshot of tenant " + refresh.getKey() + " is current at watermark " + watermark + ": " + this);
+                }
+                cache = previous;
             }
             else
             {
-                throw new IllegalStateException("Method should not be called without holding the write lock: " + this);
+                if (previous != null && !refresh.isFullRebuild())
+                {
+                    cache = tryApplyDelta(refresh.getKey(), previous, refresh.getChanges());
+                }
+                if (cache == null)
+                {
+                    cache = timedBuildCache(refresh.getKey());
+                }
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug(".... cache built for tenant" + refresh.getKey());
+                }
+                if (snapshotStore != null)
+                {
+                    saveSnapshot(refresh.getKey(), cache, watermark);
+                }
+            }
+
+            refresh.setBuiltEntry(putLive(refresh.getKey(), cache, false));
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Cache entry updated for tenant" + refresh.getKey());
+            }
+
+            if (failingKeys.remove(refresh.getKey()) != null && logger.isInfoEnabled())
+            {
+                logger.info("Cache build succeeded for key " + refresh.getKey() + " after failures: " + this);
+            }
+
+            broadcastEvent(new RefreshableCacheRefreshedEvent(cacheId, refresh.key));
+            
+            refreshLock.writeLock().lock();
+            try
+            {
+                runningRefreshes.remove(refresh.getKey());
+                refresh.setState(RefreshState.DONE);
+            }
+            finally
+            {
+                refreshLock.writeLock().unlock();
+            }
+            // Wake up anyone waiting for the build
+            refresh.getFuture().complete(cache);
+        }
+
+        private Refresh setUpRefresh() throws Exception
+        {
+            Refresh refresh = null;
+            runLock.writeLock().lock();
+            try
+            {
+                refreshLock.writeLock().lock();
+                try
+                {
+                    refresh = getNextRefresh();
+                    if (refresh != null)
+                    {
+                        waitingRefreshes.remove(refresh.getKey());
+                        runningRefreshes.put(refresh.getKey(), refresh);
+                        refresh.setState(RefreshState.RUNNING);
+                        return refresh;
+                    }
+                    else
+                    {
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("Nothing to do; going idle: " + this);
+                        }
+                        return null;
+                    }
+                }
+                finally
+                {
+                    refreshLock.writeLock().unlock();
+                }
+            }
+            catch (Exception e)
+            {
+                if (refresh != null)
+                {
+                    refresh.setState(RefreshState.WAITING);
+                }
+                throw e;
+            }
+            finally
+            {
+                runLock.writeLock().unlock();
+            }
+
+        }
+
+        @Override
+        public void setBeanName(String name)
+        {
+            cacheId = name;
+
+        }
+
+        @Override
+        public String getCacheId()
+        {
+            return cacheId;
+        }
+
+        @Override
+        public AsynchronouslyRefreshedCacheStatistics getStatistics()
+        {
+            return statistics;
+        }
+
+        /**
+         * @return              the number of refreshes waiting to be built
+         */
+        int getQueueDepth()
+        {
+            refreshLock.readLock().lock();
+            try
+            {
+                return waitingRefreshes.size();
+            }
+            finally
+            {
+                refreshLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return              the number of refreshes being built
+         */
+        int getRunningBuilds()
+        {
+            refreshLock.readLock().lock();
+            try
+            {
+                return runningRefreshes.size();
+            }
+            finally
+            {
+                refreshLock.readLock().unlock();
             }
+        }
+
+        /**
+         * Build the cache entry for the specific key.
+         * This method is never called concurrently for the same key, but different keys may be built
+         * concurrently if the {@link #setRefreshParallelism(int) refresh parallelism} is greater than one.
+         * 
+         * @param key
+         * @return new Cache instance
+         */
+        protected abstract T buildCache(String key);
+
+        /**
+         * Patch the current value for a key with the changes carried by refresh requests, rather than
+         * rebuilding it in full.  This is only called when there is a current value and every refresh
+         * request since it was built carried a change.
+         * <p/>
+         * The previous value may still be in use by readers and must not be modified.  The changes may
+         * already be reflected in the previous value, for example after
+         * {@link #forceInChangesForThisUncommittedTransaction(String)}, so applying them must be idempotent.
+         * <p/>
+         * The default implementation returns <tt>null</tt>.
+         * 
+         * @param key               the cache key
+         * @param previousValue     the current value
+         * @param changes           the changes, in the order in which they were requested
+         * @return                  the new value or <tt>null</tt> to fall back to a full {@link #buildCache(String) rebuild}.
+         *                          Exceptions also cause a full rebuild.
+         */
+        protected T applyDelta(String key, T previousValue, List<Serializable> changes)
+        {
+            return null;
+        }
+
+        /**
+         * Get the weight of a value, counted against the {@link #setMaxWeight(long) maximum weight}.  This could, for
+         * example, be an estimate of the memory used by the value.
+         * 
+         * @param key           the cache key
+         * @param value         the value
+         * @return              the weight of the value (default <b>1</b>)
+         */
+        protected long weigh(String key, T value)
+        {
+            return 1L;
+        }
+
+        /**
+         * Get the version of the source data from which the value for a key would be built, for example the highest
+         * transaction or change ID that affects it.  Snapshots are saved with the watermark read before their build
+         * and only reused after a restart if the watermark is unchanged.
+         * 
+         * @param key           the cache key
+         * @return              a version that increases whenever the source data changes or <b>-1</b> (default) if
+         *                      unknown, in which case snapshots are always rebuilt after being served
+         */
+        protected long getSourceWatermark(String key)
+        {
+            return -1L;
+        }
+
+        /**
+         * Consecutive build failures of a key
+         */
+        private static class BuildFailures
+        {
+            volatile int consecutive;
+            volatile long retryTime;
+            volatile Throwable last;
+        }
 
+        /**
+         * Read recency and frequency of a live key
+         */
+        private static class KeyUsage
+        {
+            volatile long lastRead = System.currentTimeMillis();
+            volatile int reads;
+            long weight;
         }
 
         /**
-         * Must be run with runLock.writeLock
+         * Feeds the warm-up keys to the build queue, keeping a fixed number of builds outstanding
          */
-        private int countWaiting()
+        private class WarmUp implements Runnable
         {
-            int count = 0;
-            if (runLock.writeLock().isHeldByCurrentThread())
+            private final Iterator<String> keys;
+            private final int keyCount;
+            private final RefreshableCacheFuture<Long> future;
+            private final long start = System.currentTimeMillis();
+            private int outstanding = 0;
+
+            WarmUp(List<String> keys, RefreshableCacheFuture<Long> future)
             {
-                refreshLock.readLock().lock();
-                try
+                this.keys = keys.iterator();
+                this.keyCount = keys.size();
+                this.future = future;
+            }
+
+            /**
+             * Queue the next key that is not already cached
+             */
+            synchronized void next()
+            {
+                while (keys.hasNext())
                 {
-                    for (Refresh refresh : refreshQueue)
+                    String key = keys.next();
+                    if (liveValues.containsKey(key) || loadFromSnapshot(key) != null)
                     {
-                        if (refresh.state == RefreshState.WAITING)
-                        {
-                            count++;
-                        }
+                        continue;
                     }
-                    return count;
+                    outstanding++;
+                    scheduleBuild(key).getFuture().addListener(this, RefreshableCacheFuture.DIRECT_EXECUTOR);
+                    return;
                 }
-                finally
+                if (outstanding == 0 && !future.isDone())
                 {
-                    refreshLock.readLock().unlock();
+                    long time = System.currentTimeMillis() - start;
+                    if (logger.isInfoEnabled())
+                    {
+                        logger.info("Warmed up " + keyCount + " keys in " + time + "ms on " + AbstractAsynchronouslyRefreshedCache.this);
+                    }
+                    future.complete(time);
                 }
             }
-            else
+
+            /**
+             * Called when a queued build is done
+             */
+            @Override
+            public synchronized void run()
             {
-                throw new IllegalStateException("Method should not be called without holding the write lock: " + this);
+                outstanding--;
+                next();
             }
-
         }
 
-        private void submit()
+        private class Refresh
         {
-            runLock.writeLock().lock();
-            try
-            {
-                if (refreshState == RefreshState.IDLE)
-                {
-                    if (logger.isDebugEnabled())
-                    {
-                        logger.debug("submit() scheduling job: " + this);
-                    }
-                    threadPoolExecutor.submit(this);
-                    refreshState = RefreshState.WAITING;
-                }
-            }
-            finally
+            private String key;
+
+            private volatile RefreshState state = RefreshState.WAITING;
+
+            private final RefreshableCacheFuture<T> future = new RefreshableCacheFuture<T>();
+
+            /** The entry put into the cache by the build, set before the future completes */
+            private volatile RefreshableCacheEntry<T> builtEntry;
+
+            private final long queuedTime = System.currentTimeMillis();
+
+            private boolean fullRebuild = true;
+
+            private long eligibleTime = 0L;
+
+            /** The time before which the refresh may not be built, even if someone is waiting */
+            private long retryTime = 0L;
+
+            /** The number of readers blocked waiting for the refresh */
+            private final AtomicInteger blockedReaders = new AtomicInteger();
+
+            /** The watermark of a snapshot value being revalidated or <tt>-1</tt> */
+            private long revalidateWatermark = -1L;
+
+            private final List<Serializable> changes = new ArrayList<Serializable>(0);
+
+            /**
+             * Construct a refresh that requires a full rebuild
+             */
+            Refresh(String key)
             {
-                runLock.writeLock().unlock();
+                this.key = key;
             }
-        }
 
-        @Override
-        public Void call()
-        {
-            try
+            /**
+             * @param changes   the changes to apply or <tt>null</tt> for a full rebuild
+             */
+            Refresh(String key, List<Serializable> changes)
             {
-                doCall();
-                return null;
+                this.key = key;
+                if (changes != null)
+                {
+                    this.fullRebuild = false;
+                    this.changes.addAll(changes);
+                }
             }
-            catch (Exception e)
+
+            /**
+             * Must be called with refreshLock.writeLock
+             * 
+             * @param newChanges    further changes to apply or <tt>null</tt> if a full rebuild is required
+             */
+            void addChanges(List<Serializable> newChanges)
             {
-                logger.error("Cache update failed: " + this, e);
-                runLock.writeLock().lock();
-                try
+                revalidateWatermark = -1L;
+                if (newChanges == null)
                 {
-                    threadPoolExecutor.submit(this);
-                    refreshState = RefreshState.WAITING;
+                    droppedChangeCount.addAndGet(changes.size());
+                    fullRebuild = true;
+                    changes.clear();
                 }
-                finally
+                else if (!fullRebuild)
                 {
-                    runLock.writeLock().unlock();
+                    changes.addAll(newChanges);
+                }
+                else
+                {
+                    droppedChangeCount.addAndGet(newChanges.size());
                 }
-                return null;
             }
-        }
 
-        private void doCall() throws Exception
-        {
-            Refresh refresh = setUpRefresh();
-            if (refresh == null)
+            /**
+             * Must be called with refreshLock.writeLock
+             * 
+             * @param earlier       a refresh for the same key whose changes precede these ones
+             */
+            void addEarlierChanges(Refresh earlier)
             {
-                return;
+                revalidateWatermark = -1L;
+                if (earlier.fullRebuild)
+                {
+                    droppedChangeCount.addAndGet(changes.size());
+                    fullRebuild = true;
+                    changes.clear();
+                }
+                else if (!fullRebuild)
+                {
+                    changes.addAll(0, earlier.changes);
+                }
+                else
+                {
+                    droppedChangeCount.addAndGet(earlier.changes.size());
+                }
+                makeEligible();
             }
 
-            if (logger.isDebugEnabled())
+            void readerBlocked()
             {
-                logger.debug("Building cache for key" + refresh.getKey() + " on " + this); 
+                blockedReaders.incrementAndGet();
             }
 
-            try
-            {
-                doRefresh(refresh);
-            }
-            catch (Exception e)
-            {
-                refresh.setState(RefreshState.WAITING);
-                throw e;
-            }
-        }
-        
-        private void doRefresh(Refresh refresh)
-        {
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Building cache for tenant" + refresh.getKey() + ": " + this);
-            }
-            T cache = buildCache(refresh.getKey());
-            if (logger.isDebugEnabled())
+            void readerUnblocked()
             {
-                logger.debug(".... cache built for tenant" + refresh.getKey());
+                blockedReaders.decrementAndGet();
             }
 
-            liveLock.writeLock().lock();
-            try
-            {
-                live.put(refresh.getKey(), cache);
-            }
-            finally
+            /**
+             * @return <tt>true</tt> if a reader is waiting for the refresh
+             */
+            boolean hasBlockedReaders()
             {
-                liveLock.writeLock().unlock();
+                return blockedReaders.get() > 0;
             }
 
-            if (logger.isDebugEnabled())
+            /**
+             * Must be called with refreshLock.writeLock
+             */
+            void setRevalidateWatermark(long revalidateWatermark)
             {
-                logger.debug("Cache entry updated for tenant" + refresh.getKey());
+                this.revalidateWatermark = revalidateWatermark;
             }
 
-            broadcastEvent(new RefreshableCacheRefreshedEvent(cacheId, refresh.key));
-            
-            runLock.writeLock().lock();
-            try
+            /**
+             * @return the watermark of the snapshot value to keep if it is still current or <tt>-1</tt> to build the value
+             */
+            long getRevalidateWatermark()
             {
-                refreshLock.writeLock().lock();
+                refreshLock.readLock().lock();
                 try
                 {
-                    if (countWaiting() > 0)
-                    {
-                        if (logger.isDebugEnabled())
-                        {
-                            logger.debug("Rescheduling more work: " + this);
-                        }
-                        threadPoolExecutor.submit(this);
-                        refreshState = RefreshState.WAITING;
-                    }
-                    else
-                    {
-                        if (logger.isDebugEnabled())
-                        {
-                            logger.debug("Nothing to do; going idle: " + this);
-                        }
-                        refreshState = RefreshState.IDLE;
-                    }
-                    refresh.setState(RefreshState.DONE);
-                    refreshQueue.remove(refresh);
+                    return revalidateWatermark;
                 }
                 finally
                 {
-                    refreshLock.writeLock().unlock();
+                    refreshLock.readLock().unlock();
                 }
             }
-            finally
+
+            /**
+             * @return the time from which the refresh may be built
+             */
+            public long getEligibleTime()
             {
-                runLock.writeLock().unlock();
+                return eligibleTime;
             }
-        }
 
-        private Refresh setUpRefresh() throws Exception
-        {
-            Refresh refresh = null;
-            runLock.writeLock().lock();
-            try
+            /**
+             * Must be called with refreshLock.writeLock
+             */
+            void setEligibleTime(long eligibleTime)
             {
-                if (refreshState == RefreshState.WAITING)
-                {
-                    refreshLock.writeLock().lock();
-                    try
-                    {
-                        refresh = getNextRefresh();
-                        if (refresh != null)
-                        {
-                            refreshState = RefreshState.RUNNING;
-                            refresh.setState(RefreshState.RUNNING);
-                            return refresh;
-                        }
-                        else
-                        {
-                            refreshState = RefreshState.IDLE;
-                            return null;
-                        }
-                    }
-                    finally
-                    {
-                        refreshLock.writeLock().unlock();
-                    }
-                }
-                else
-                {
-                    return null;
-                }
+                this.eligibleTime = eligibleTime;
             }
-            catch (Exception e)
+
+            /**
+             * Allow the refresh to be built straight away.  Must be called with refreshLock.writeLock
+             */
+            void makeEligible()
             {
-                if (refresh != null)
-                {
-                    refresh.setState(RefreshState.WAITING);
-                }
-                throw e;
+                this.eligibleTime = retryTime;
             }
-            finally
+
+            /**
+             * Hold the refresh back until a failed build may be retried.  Must be called with refreshLock.writeLock
+             */
+            void delayUntil(long retryTime)
             {
-                runLock.writeLock().unlock();
+                this.retryTime = retryTime;
+                this.eligibleTime = Math.max(eligibleTime, retryTime);
             }
 
-        }
-
-        @Override
-        public void setBeanName(String name)
-        {
-            cacheId = name;
-
-        }
+            public boolean isFullRebuild()
+            {
+                return fullRebuild;
+            }
 
-        @Override
-        public String getCacheId()
-        {
-            return cacheId;
-        }
+            public List<Serializable> getChanges()
+            {
+                return changes;
+            }
 
-        /**
-         * Build the cache entry for the specific key.
-         * This method is called in a thread-safe manner i.e. it is only ever called by a single
-         * thread.
-         * 
-         * @param key
-         * @return new Cache instance
-         */
-        protected abstract T buildCache(String key);
+            /**
+             * @return the time at which the refresh was queued
+             */
+            public long getQueuedTime()
+            {
+                return queuedTime;
+            }
 
-        private static class Refresh
-        {
-            private String key;
+            /**
+             * @return the future that completes when the refresh is done
+             */
+            public RefreshableCacheFuture<T> getFuture()
+            {
+                return future;
+            }
 
-            private volatile RefreshState state = RefreshState.WAITING;
+            /**
+             * @return the entry built by the refresh or <tt>null</tt> if it has not completed or built nothing
+             */
+            public RefreshableCacheEntry<T> getBuiltEntry()
+            {
+                return builtEntry;
+            }
 
-            Refresh(String key)
+            public void setBuiltEntry(RefreshableCacheEntry<T> builtEntry)
             {
-                this.key = key;
+                this.builtEntry = builtEntry;
             }
 
             /**
@@ -654,7 +2423,7 @@ public abstract class AbstractAsynchronouslyRefreshedCache<T>
                     return false;
                 if (getClass() != obj.getClass())
                     return false;
-                Refresh other = (Refresh) obj;
+                AbstractAsynchronouslyRefreshedCache<?>.Refresh other = (AbstractAsynchronouslyRefreshedCache<?>.Refresh) obj;
                 if (state != other.state)
                     return false;
                 if (key == null)
@@ -683,6 +2452,10 @@ public abstract class AbstractAsynchronouslyRefreshedCache<T>
             registry.register(this);
             
             resourceKeyTxnData = RESOURCE_KEY_TXN_DATA + "." + cacheId;
+            if (warmUpOnStartup)
+            {
+                warmUp();
+            }
 
         }
 
@@ -716,17 +2489,46 @@ public abstract class AbstractAsynchronouslyRefreshedCache<T>
         public void afterCommit()
         {
             TransactionData txnData = getTransactionData();
+            if (txnData.overlays != null)
+            {
+                overlayTransactions.decrementAndGet();
+                mergeOverlays(txnData.overlays);
+            }
             queueRefreshAndSubmit(txnData.keys);
         }
 
         @Override
         public void afterRollback()
         {
-            // Nothing
+            // The overlay is discarded with the transaction resources
+            TransactionData txnData = getTransactionData();
+            if (txnData.overlays != null)
+            {
+                overlayTransactions.decrementAndGet();
+            }
         }
 
-        private static class TransactionData
+        private class TransactionData
         {
-            LinkedHashSet<String> keys;
+            /** Changes by key, with <tt>null</tt> changes where a full rebuild is required */
+            LinkedHashMap<String, List<Serializable>> keys;
+            /** Values only visible to the transaction, by key, or <tt>null</tt> if nothing has been forced in */
+            Map<String, Overlay> overlays;
+        }
+
+        /**
+         * A value forced in by a transaction
+         */
+        private class Overlay
+        {
+            /** The shared value that the overlay was derived from */
+            final T base;
+            /** The value seen by the transaction or <tt>null</tt> if it has yet to be built */
+            RefreshableCacheEntry<T> entry;
+
+            Overlay(T base)
+            {
+                this.base = base;
+            }
         }
 }
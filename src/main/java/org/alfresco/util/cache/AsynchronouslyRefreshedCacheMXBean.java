@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.util.List;
+
+/**
+ * Management interface exposing the statistics of an {@link ExtendedAsynchronouslyRefreshedCache}.  Cache totals are
+ * summed over all keys.  All times are in milliseconds.
+ *
+ * @since 5.1.3
+ */
+public interface AsynchronouslyRefreshedCacheMXBean
+{
+    public String getCacheId();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    /**
+     * @return              the number of threads currently blocked waiting for a build
+     */
+    public int getBlockedWaiters();
+
+    /**
+     * @return              the number of times that a thread has blocked waiting for a build
+     */
+    public long getWaitCount();
+
+    public long getTotalWaitTime();
+
+    public long getMaxWaitTime();
+
+    /**
+     * @return              the number of refreshes waiting to be built
+     */
+    public int getQueueDepth();
+
+    /**
+     * @return              the number of refreshes being built
+     */
+    public int getRunningBuilds();
+
+    public long getBuildCount();
+
+    public long getMaxBuildTime();
+
+    /**
+     * @return              the upper bounds (exclusive) of the build time histogram buckets; the last bucket,
+     *                      for longer builds, has no bound
+     */
+    public long[] getBuildTimeHistogramBounds();
+
+    /**
+     * @return              the number of builds in each bucket
+     */
+    public long[] getBuildTimeHistogram();
+
+    public long getBuildFailureCount();
+
+    public long getRetryCount();
+
+    /**
+     * @return              the number of keys whose builds keep failing, so that readers fail fast
+     */
+    public int getOpenCircuitCount();
+
+    /**
+     * @return              the number of reads failed fast because the builds of the key keep failing
+     */
+    public long getRejectedReadCount();
+
+    /**
+     * @return              the names of the refresh priorities, most urgent first, in the order used by the
+     *                      queue wait arrays
+     */
+    public String[] getRefreshPriorities();
+
+    /**
+     * @return              the number of refreshes of each priority that have been started
+     */
+    public long[] getQueueWaitCounts();
+
+    /**
+     * @return              the total time from queuing to starting of the refreshes of each priority
+     */
+    public long[] getTotalQueueWaitTimes();
+
+    /**
+     * @return              the longest time from queuing to starting of a refresh of each priority
+     */
+    public long[] getMaxQueueWaitTimes();
+
+    /**
+     * @return              the number of keys for which values are held
+     */
+    public int getEntryCount();
+
+    /**
+     * @return              the number of values evicted to keep the cache within its limits
+     */
+    public long getEvictionCount();
+
+    /**
+     * @return              the time that warming up took or <tt>-1</tt> if it has not completed
+     */
+    public long getWarmUpTime();
+
+    /**
+     * @return              the statistics of each key, those with the longest total wait time first
+     */
+    public List<RefreshableCacheKeyStatistics> getKeyStatistics();
+
+    /**
+     * Clear all counters
+     */
+    public void resetStatistics();
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.util.cache.AbstractAsynchronouslyRefreshedCache.RefreshPriority;
+
+/**
+ * Per key statistics of an {@link AbstractAsynchronouslyRefreshedCache}.  Only the per key counters are
+ * updated; the cache totals are summed when they are read.  The counters of keys that are removed from the
+ * cache are folded into the totals, so that only the keys in the cache are tracked.
+ *
+ * @since 5.1.3
+ */
+public class AsynchronouslyRefreshedCacheStatistics implements AsynchronouslyRefreshedCacheMXBean
+{
+    private final AbstractAsynchronouslyRefreshedCache<?> cache;
+    private final ConcurrentHashMap<String, RefreshableCacheKeyStatistics> keyStatistics = new ConcurrentHashMap<String, RefreshableCacheKeyStatistics>();
+    /** The counters of keys that have been removed */
+    private volatile RefreshableCacheKeyStatistics removedKeys = new RefreshableCacheKeyStatistics(null);
+
+    AsynchronouslyRefreshedCacheStatistics(AbstractAsynchronouslyRefreshedCache<?> cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * @return              the counters of the key, created if necessary
+     */
+    RefreshableCacheKeyStatistics forKey(String key)
+    {
+        RefreshableCacheKeyStatistics statistics = keyStatistics.get(key);
+        if (statistics == null)
+        {
+            keyStatistics.putIfAbsent(key, new RefreshableCacheKeyStatistics(key));
+            statistics = keyStatistics.get(key);
+        }
+        return statistics;
+    }
+
+    /**
+     * Stop tracking a key that has been removed from the cache, keeping its counts in the totals.  Counts
+     * recorded for the key while it is being removed may be lost.
+     */
+    void removeKey(String key)
+    {
+        RefreshableCacheKeyStatistics statistics = keyStatistics.remove(key);
+        if (statistics != null)
+        {
+            removedKeys.add(statistics);
+        }
+    }
+
+    /**
+     * @return              the counters of the key or <tt>null</tt> if nothing has been recorded for it
+     */
+    public RefreshableCacheKeyStatistics getKeyStatistics(String key)
+    {
+        return keyStatistics.get(key);
+    }
+
+    @Override
+    public String getCacheId()
+    {
+        return cache.getCacheId();
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        long total = removedKeys.getHitCount();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getHitCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        long total = removedKeys.getMissCount();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getMissCount();
+        }
+        return total;
+    }
+
+    @Override
+    public int getBlockedWaiters()
+    {
+        int total = 0;
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getBlockedWaiters();
+        }
+        return total;
+    }
+
+    @Override
+    public long getWaitCount()
+    {
+        long total = removedKeys.getWaitCount();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getWaitCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalWaitTime()
+    {
+        long total = removedKeys.getTotalWaitTime();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getTotalWaitTime();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMaxWaitTime()
+    {
+        long max = removedKeys.getMaxWaitTime();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            max = Math.max(max, statistics.getMaxWaitTime());
+        }
+        return max;
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return cache.getQueueDepth();
+    }
+
+    @Override
+    public int getRunningBuilds()
+    {
+        return cache.getRunningBuilds();
+    }
+
+    @Override
+    public long getBuildCount()
+    {
+        long total = removedKeys.getBuildCount();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getBuildCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMaxBuildTime()
+    {
+        long max = removedKeys.getMaxBuildTime();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            max = Math.max(max, statistics.getMaxBuildTime());
+        }
+        return max;
+    }
+
+    @Override
+    public long[] getBuildTimeHistogramBounds()
+    {
+        return RefreshableCacheKeyStatistics.BUILD_TIME_BOUNDS.clone();
+    }
+
+    @Override
+    public long[] getBuildTimeHistogram()
+    {
+        long[] total = removedKeys.getBuildTimeHistogram();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            long[] histogram = statistics.getBuildTimeHistogram();
+            for (int i = 0; i < total.length; i++)
+            {
+                total[i] += histogram[i];
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getBuildFailureCount()
+    {
+        long total = removedKeys.getBuildFailureCount();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getBuildFailureCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRetryCount()
+    {
+        long total = removedKeys.getRetryCount();
+        for (RefreshableCacheKeyStatistics statistics : keyStatistics.values())
+        {
+            total += statistics.getRetryCount();
+        }
+        return total;
+    }
+
+    @Override
+    public int getOpenCircuitCount()
+    {
+        return cache.getOpenCircuitCount();
+    }
+
+    @Override
+    public long getRejectedReadCount()
+    {
+        return cache.getRejectedReadCount();
+    }
+
+    @Override
+    public String[] getRefreshPriorities()
+    {
+        RefreshPriority[] priorities = RefreshPriority.values();
+        String[] names = new String[priorities.length];
+        for (int i = 0; i < priorities.length; i++)
+        {
+            names[i] = priorities[i].name();
+        }
+        return names;
+    }
+
+    @Override
+    public long[] getQueueWaitCounts()
+    {
+        long[] counts = new long[RefreshPriority.values().length];
+        for (RefreshPriority priority : RefreshPriority.values())
+        {
+            counts[priority.ordinal()] = cache.getQueueWaitCount(priority);
+        }
+        return counts;
+    }
+
+    @Override
+    public long[] getTotalQueueWaitTimes()
+    {
+        long[] totals = new long[RefreshPriority.values().length];
+        for (RefreshPriority priority : RefreshPriority.values())
+        {
+            totals[priority.ordinal()] = cache.getTotalQueueWaitTime(priority);
+        }
+        return totals;
+    }
+
+    @Override
+    public long[] getMaxQueueWaitTimes()
+    {
+        long[] maxes = new long[RefreshPriority.values().length];
+        for (RefreshPriority priority : RefreshPriority.values())
+        {
+            maxes[priority.ordinal()] = cache.getMaxQueueWaitTime(priority);
+        }
+        return maxes;
+    }
+
+    @Override
+    public int getEntryCount()
+    {
+        return cache.getEntryCount();
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+        return cache.getEvictionCount();
+    }
+
+    @Override
+    public long getWarmUpTime()
+    {
+        return cache.getWarmUpTime();
+    }
+
+    @Override
+    public List<RefreshableCacheKeyStatistics> getKeyStatistics()
+    {
+        List<RefreshableCacheKeyStatistics> all = new ArrayList<RefreshableCacheKeyStatistics>(keyStatistics.values());
+        Collections.sort(all, new Comparator<RefreshableCacheKeyStatistics>()
+        {
+            @Override
+            public int compare(RefreshableCacheKeyStatistics o1, RefreshableCacheKeyStatistics o2)
+            {
+                long diff = o2.getTotalWaitTime() - o1.getTotalWaitTime();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : o1.getKey().compareTo(o2.getKey()));
+            }
+        });
+        return all;
+    }
+
+    @Override
+    public void resetStatistics()
+    {
+        keyStatistics.clear();
+        removedKeys = new RefreshableCacheKeyStatistics(null);
+        cache.resetQueueWaitTimes();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AsynchronouslyRefreshedCacheStatistics [cacheId=" + getCacheId() + ", hits=" + getHitCount()
+                + ", misses=" + getMissCount() + ", queueDepth=" + getQueueDepth() + "]";
+    }
+}
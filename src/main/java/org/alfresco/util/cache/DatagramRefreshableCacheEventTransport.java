@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Transport that sends each batch as a UDP datagram to a fixed list of peers.  By default it binds to
+ * the loopback interface so that several nodes can be run on one machine, each with its own port.
+ * <p/>
+ * Datagrams are not authenticated, so by default the transport only binds to and sends to loopback
+ * addresses.  Other addresses can be used, on a network where every host is trusted, by setting
+ * {@link #setTrustedNetwork(boolean) trustedNetwork}.  Datagrams from senders other than the configured
+ * peers are ignored in either case.
+ * <p/>
+ * Datagrams may be lost, repeated or reordered; the registry detects this from the batch sequence
+ * numbers.  Batches must fit into a single datagram; the registry splits larger batches, so only a
+ * single event too large for a datagram cannot be sent.
+ *
+ * @since 5.1.3
+ */
+public class DatagramRefreshableCacheEventTransport implements RefreshableCacheEventTransport
+{
+    private static Log logger = LogFactory.getLog(DatagramRefreshableCacheEventTransport.class);
+
+    /** The largest UDP payload */
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private String bindAddress = "127.0.0.1";
+    private int port = 0;
+    private volatile List<InetSocketAddress> peers = Collections.emptyList();
+    private boolean trustedNetwork = false;
+
+    private DatagramSocket socket;
+    private Thread receiverThread;
+
+    /**
+     * @param bindAddress       the local address to listen on (default <b>127.0.0.1</b>), which must be a
+     *                          loopback address unless the network is {@link #setTrustedNetwork(boolean) trusted}
+     */
+    public void setBindAddress(String bindAddress)
+    {
+        this.bindAddress = bindAddress;
+    }
+
+    /**
+     * @param port              the local port to listen on (default <b>0</b> i.e. any free port)
+     */
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    /**
+     * @param trustedNetwork    <tt>true</tt> to allow binding to and sending to addresses other than loopback
+     *                          ones (default <b>false</b>).  Any host that can reach the port can send events,
+     *                          so only set this if every host on the network is trusted.
+     */
+    public void setTrustedNetwork(boolean trustedNetwork)
+    {
+        this.trustedNetwork = trustedNetwork;
+    }
+
+    /**
+     * @param peers             the other nodes as <tt>host:port</tt> strings, which must be loopback addresses
+     *                          unless the network is {@link #setTrustedNetwork(boolean) trusted}
+     */
+    public void setPeers(List<String> peers)
+    {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(peers.size());
+        for (String peer : peers)
+        {
+            int index = peer.lastIndexOf(':');
+            if (index < 1)
+            {
+                throw new IllegalArgumentException("Peer must be given as host:port: " + peer);
+            }
+            addresses.add(new InetSocketAddress(peer.substring(0, index), Integer.parseInt(peer.substring(index + 1))));
+        }
+        synchronized (this)
+        {
+            if (socket != null)
+            {
+                checkAddresses(addresses);
+            }
+        }
+        this.peers = addresses;
+    }
+
+    /**
+     * Convenience form of {@link #setPeers(List)}
+     *
+     * @param peers             comma separated <tt>host:port</tt> strings
+     */
+    public void setPeerList(String peers)
+    {
+        setPeers(Arrays.asList(peers.trim().split("\\s*,\\s*")));
+    }
+
+    /**
+     * @return                  the port that the transport is listening on or <tt>-1</tt> if it is not started
+     */
+    public synchronized int getLocalPort()
+    {
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+    @Override
+    public synchronized void start(final BatchReceiver receiver)
+    {
+        if (socket != null)
+        {
+            throw new IllegalStateException("Transport already started: " + this);
+        }
+        InetSocketAddress localAddress = new InetSocketAddress(bindAddress, port);
+        checkAddresses(Collections.singletonList(localAddress));
+        checkAddresses(peers);
+        if (trustedNetwork)
+        {
+            logger.warn("Cache events are not authenticated; only use " + this + " on a trusted network.");
+        }
+        try
+        {
+            socket = new DatagramSocket(localAddress);
+        }
+        catch (SocketException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to open cache event socket on " + bindAddress + ":" + port, e);
+        }
+        final DatagramSocket receiveSocket = socket;
+        receiverThread = new Thread("CacheEventReceiver-" + socket.getLocalPort())
+        {
+            @Override
+            public void run()
+            {
+                receive(receiveSocket, receiver);
+            }
+        };
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Started cache event transport on " + socket.getLocalSocketAddress());
+        }
+    }
+
+    /**
+     * @throws AlfrescoRuntimeException     if an address is not a loopback address and the network is not trusted
+     */
+    private void checkAddresses(List<InetSocketAddress> addresses)
+    {
+        if (trustedNetwork)
+        {
+            return;
+        }
+        for (InetSocketAddress address : addresses)
+        {
+            InetAddress inetAddress = address.getAddress();
+            if (inetAddress == null || !inetAddress.isLoopbackAddress())
+            {
+                throw new AlfrescoRuntimeException("Cache events can only be exchanged over loopback addresses unless the network is trusted: " + address);
+            }
+        }
+    }
+
+    private void receive(DatagramSocket receiveSocket, BatchReceiver receiver)
+    {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!receiveSocket.isClosed())
+        {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try
+            {
+                receiveSocket.receive(packet);
+            }
+            catch (IOException e)
+            {
+                if (!receiveSocket.isClosed())
+                {
+                    logger.error("Failed to receive cache events on " + receiveSocket.getLocalSocketAddress(), e);
+                }
+                continue;
+            }
+            if (!peers.contains(packet.getSocketAddress()))
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Ignoring datagram from " + packet.getSocketAddress() + ", which is not a peer of " + this);
+                }
+                continue;
+            }
+            try
+            {
+                byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength());
+                receiver.onBatch(RefreshableCacheEventBatch.fromBytes(data));
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Failed to process cache events from " + packet.getSocketAddress(), e);
+            }
+        }
+    }
+
+    @Override
+    public int getMaxBatchBytes()
+    {
+        return MAX_DATAGRAM_SIZE;
+    }
+
+    @Override
+    public void publish(RefreshableCacheEventBatch batch)
+    {
+        DatagramSocket sendSocket;
+        synchronized (this)
+        {
+            sendSocket = socket;
+        }
+        if (sendSocket == null)
+        {
+            throw new IllegalStateException("Transport not started: " + this);
+        }
+        byte[] data = batch.toBytes();
+        if (data.length > MAX_DATAGRAM_SIZE)
+        {
+            throw new AlfrescoRuntimeException("Cache event batch is too large for a datagram: " + batch + " (" + data.length + " bytes)");
+        }
+        for (InetSocketAddress peer : peers)
+        {
+            try
+            {
+                sendSocket.send(new DatagramPacket(data, data.length, peer));
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to send " + batch + " to " + peer, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop()
+    {
+        if (socket != null)
+        {
+            socket.close();
+            socket = null;
+        }
+        if (receiverThread != null)
+        {
+            receiverThread.interrupt();
+            receiverThread = null;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DatagramRefreshableCacheEventTransport [bindAddress=" + bindAddress + ", port=" + port + ", peers=" + peers + ", trustedNetwork=" + trustedNetwork + "]";
+    }
+}
@@ -17,22 +17,330 @@ package org.alfresco.util.cache;
  * You should have received a copy of the GNU Lesser General Public License
  * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
  */
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
+import org.alfresco.util.transaction.TransactionListener;
+import org.alfresco.util.transaction.TransactionSupportUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 
 /**
- * Base registry implementation 
- * 
+ * Base registry implementation
+ * <p/>
+ * Listeners are indexed by cache id.  {@link TargetedRefreshableCacheListener Targeted listeners} only receive
+ * events for their own cache id, even when an event is broadcast to all listeners.  If a
+ * {@link #setDispatchExecutor(Executor) dispatch executor} is set, events broadcast outside of a transaction
+ * are queued per listener and delivered by the executor, each listener seeing its events in broadcast order.
+ * Events broadcast within a transaction are always delivered on the broadcasting thread so that listeners
+ * can record them against the transaction.
+ * <p/>
+ * If a {@link RefreshableCacheEventTransport transport} is set, broadcast events are also published to
+ * the registries of other nodes.  Events broadcast within a transaction are only published once it
+ * commits.  Outgoing events are collected into batches of up to {@link #setBatchSize(int) batchSize}
+ * events, repeated events within a batch being sent once.  Batches too large for the transport's
+ * {@link RefreshableCacheEventTransport#getMaxBatchBytes() limit} are split.  Each batch is numbered per node so that
+ * receivers can drop repeated batches and count lost ones.  Changes that other nodes could not
+ * {@link RefreshableCacheEventBatch#isTransportable(RefreshableCacheEvent) read} are left out of published events,
+ * so that the key is rebuilt in full.  Events received from other nodes are
+ * delivered to the local listeners only.
+ * <p/>
+ * If an {@link #setMBeanServer(MBeanServer) MBean server} is set, the {@link ExtendedAsynchronouslyRefreshedCache#getStatistics()
+ * statistics} of each registered cache are exposed as an MBean named
+ * <tt>Alfresco:type=AsynchronouslyRefreshedCache,name=&lt;cacheId&gt;</tt>.
+ * <p/>
+ * All registered caches can be {@link #warmUp() warmed up} together, for example before a node reports that it is ready.
+ *
  * @author Andy
  */
-public class DefaultAsynchronouslyRefreshedCacheRegistry implements AsynchronouslyRefreshedCacheRegistry
+public class DefaultAsynchronouslyRefreshedCacheRegistry implements AsynchronouslyRefreshedCacheRegistry, InitializingBean, DisposableBean
 {
     private static Log logger = LogFactory.getLog(DefaultAsynchronouslyRefreshedCacheRegistry.class);
-    
-    private List<RefreshableCacheListener> listeners = new LinkedList<RefreshableCacheListener>();
+
+    private static final String RESOURCE_KEY_TXN_EVENTS = "DefaultAsynchronouslyRefreshedCacheRegistry.TxnEvents";
+    /** The number of missing batches remembered per origin in case they arrive late */
+    private static final int MAX_MISSING_BATCHES = 1000;
+
+    /** Listeners that receive events for all caches */
+    private final List<ListenerQueue> untargetedListeners = new CopyOnWriteArrayList<ListenerQueue>();
+    private final ConcurrentHashMap<String, List<ListenerQueue>> listenersByCacheId = new ConcurrentHashMap<String, List<ListenerQueue>>();
+    private Executor dispatchExecutor;
+    private boolean synchronousDispatch = false;
+    private MBeanServer mbeanServer;
+    private final List<ObjectName> registeredMBeans = new CopyOnWriteArrayList<ObjectName>();
+
+    private RefreshableCacheEventTransport transport;
+    private String nodeId = GUID.generate();
+    private int batchSize = 100;
+    private long flushInterval = 0L;
+
+    private final String resourceKeyTxnEvents = RESOURCE_KEY_TXN_EVENTS + "." + System.identityHashCode(this);
+    private final TransactionListener transactionListener = new PublishTransactionListener();
+    /** Events waiting to be published (guarded by itself) */
+    private final LinkedHashMap<RefreshableCacheEvent, Boolean> pending = new LinkedHashMap<RefreshableCacheEvent, Boolean>();
+    /** Identifies this run of the node, as batches are numbered from 1 again after a restart */
+    private final long epoch = System.currentTimeMillis();
+    /** The number of the last published batch (guarded by pending) */
+    private long sequence = 0L;
+    private final ConcurrentHashMap<String, OriginState> origins = new ConcurrentHashMap<String, OriginState>();
+    private Timer flushTimer;
+
+    private final AtomicLong publishedBatchCount = new AtomicLong();
+    private final AtomicLong publishedEventCount = new AtomicLong();
+    private final AtomicLong coalescedEventCount = new AtomicLong();
+    private final AtomicLong receivedBatchCount = new AtomicLong();
+    private final AtomicLong receivedEventCount = new AtomicLong();
+    private final AtomicLong duplicateBatchCount = new AtomicLong();
+    private final AtomicLong lateBatchCount = new AtomicLong();
+    private final AtomicLong missedBatchCount = new AtomicLong();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong dispatchedEventCount = new AtomicLong();
+    private final AtomicLong totalDispatchLatency = new AtomicLong();
+    private final AtomicLong maxDispatchLatency = new AtomicLong();
+
+    /**
+     * @param dispatchExecutor  the executor that delivers queued events to listeners (default <b>none</b>
+     *                          i.e. events are delivered on the broadcasting thread)
+     */
+    public void setDispatchExecutor(Executor dispatchExecutor)
+    {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * @param synchronousDispatch   <tt>true</tt> to deliver all events on the broadcasting thread even if a
+     *                              dispatch executor is set, e.g. for tests
+     */
+    public void setSynchronousDispatch(boolean synchronousDispatch)
+    {
+        this.synchronousDispatch = synchronousDispatch;
+    }
+
+    /**
+     * @param mbeanServer       the server with which to register cache statistics MBeans (default <b>none</b>)
+     */
+    public void setMBeanServer(MBeanServer mbeanServer)
+    {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * @param transport         the transport used to exchange events with other nodes (default <b>none</b>)
+     */
+    public void setTransport(RefreshableCacheEventTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * @param nodeId            the id identifying batches published by this registry (default <b>a random GUID</b>)
+     */
+    public void setNodeId(String nodeId)
+    {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * @param batchSize         the maximum number of events published in one batch (default <b>100</b>)
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("batchSize must be at least 1.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param flushInterval     the time (ms) for which events are collected before they are published or
+     *                          <b>0</b> (default) to publish them straight away
+     */
+    public void setFlushInterval(long flushInterval)
+    {
+        this.flushInterval = flushInterval;
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    public long getPublishedBatchCount()
+    {
+        return publishedBatchCount.get();
+    }
+
+    public long getPublishedEventCount()
+    {
+        return publishedEventCount.get();
+    }
+
+    /**
+     * @return                  the number of outgoing events that were dropped as repeats of a pending event
+     */
+    public long getCoalescedEventCount()
+    {
+        return coalescedEventCount.get();
+    }
+
+    public long getReceivedBatchCount()
+    {
+        return receivedBatchCount.get();
+    }
+
+    public long getReceivedEventCount()
+    {
+        return receivedEventCount.get();
+    }
+
+    /**
+     * @return                  the number of incoming batches dropped because they had already been received
+     */
+    public long getDuplicateBatchCount()
+    {
+        return duplicateBatchCount.get();
+    }
+
+    /**
+     * @return                  the number of incoming batches that arrived after a later batch from the same node
+     */
+    public long getLateBatchCount()
+    {
+        return lateBatchCount.get();
+    }
+
+    /**
+     * @return                  the number of gaps seen in the batch sequences of other nodes
+     */
+    public long getMissedBatchCount()
+    {
+        return missedBatchCount.get();
+    }
+
+    /**
+     * @return                  the number of events waiting to be delivered to listeners
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return                  the largest number of events that have waited to be delivered to listeners
+     */
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * @return                  the number of events delivered through the listener queues
+     */
+    public long getDispatchedEventCount()
+    {
+        return dispatchedEventCount.get();
+    }
+
+    /**
+     * @return                  the average time (ms) from queueing an event to it being delivered
+     */
+    public double getAverageDispatchLatency()
+    {
+        long count = dispatchedEventCount.get();
+        return count == 0 ? 0.0 : totalDispatchLatency.get() / 1000000.0 / count;
+    }
+
+    /**
+     * @return                  the longest time (ms) from queueing an event to it being delivered
+     */
+    public double getMaxDispatchLatency()
+    {
+        return maxDispatchLatency.get() / 1000000.0;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        if (transport == null)
+        {
+            return;
+        }
+        transport.start(new RefreshableCacheEventTransport.BatchReceiver()
+        {
+            @Override
+            public void onBatch(RefreshableCacheEventBatch batch)
+            {
+                receive(batch);
+            }
+        });
+        if (flushInterval > 0)
+        {
+            flushTimer = new Timer("CacheEventFlush-" + nodeId, true);
+            flushTimer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            }, flushInterval, flushInterval);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception
+    {
+        for (ObjectName name : registeredMBeans)
+        {
+            try
+            {
+                mbeanServer.unregisterMBean(name);
+            }
+            catch (Exception e)
+            {
+                logger.warn("Failed to unregister cache MBean " + name, e);
+            }
+        }
+        registeredMBeans.clear();
+        if (transport == null)
+        {
+            return;
+        }
+        if (flushTimer != null)
+        {
+            flushTimer.cancel();
+            flushTimer = null;
+        }
+        flush();
+        transport.stop();
+    }
 
     @Override
     public void register(RefreshableCacheListener listener)
@@ -41,32 +349,506 @@ public class DefaultAsynchronouslyRefreshedCacheRegistry implements Asynchronous
         {
             logger.debug("Listener added for " + listener.getCacheId());
         }
-        listeners.add(listener);
+        ListenerQueue queue = new ListenerQueue(listener);
+        List<ListenerQueue> forCacheId = listenersByCacheId.get(listener.getCacheId());
+        if (forCacheId == null)
+        {
+            listenersByCacheId.putIfAbsent(listener.getCacheId(), new CopyOnWriteArrayList<ListenerQueue>());
+            forCacheId = listenersByCacheId.get(listener.getCacheId());
+        }
+        forCacheId.add(queue);
+        if (!(listener instanceof TargetedRefreshableCacheListener))
+        {
+            untargetedListeners.add(queue);
+        }
+        if (mbeanServer != null && listener instanceof ExtendedAsynchronouslyRefreshedCache)
+        {
+            registerMBean(((ExtendedAsynchronouslyRefreshedCache<?>) listener).getStatistics());
+        }
+    }
+
+    /**
+     * @return                  the registered caches
+     */
+    private List<ExtendedAsynchronouslyRefreshedCache<?>> getCaches()
+    {
+        List<ExtendedAsynchronouslyRefreshedCache<?>> caches = new ArrayList<ExtendedAsynchronouslyRefreshedCache<?>>();
+        for (List<ListenerQueue> forCacheId : listenersByCacheId.values())
+        {
+            for (ListenerQueue listenerQueue : forCacheId)
+            {
+                if (listenerQueue.listener instanceof ExtendedAsynchronouslyRefreshedCache && !caches.contains(listenerQueue.listener))
+                {
+                    caches.add((ExtendedAsynchronouslyRefreshedCache<?>) listenerQueue.listener);
+                }
+            }
+        }
+        return caches;
+    }
+
+    /**
+     * Start warming up all registered caches
+     */
+    public void warmUp()
+    {
+        for (ExtendedAsynchronouslyRefreshedCache<?> cache : getCaches())
+        {
+            cache.warmUp();
+        }
+    }
+
+    /**
+     * Warm up all registered caches and wait for them to be ready
+     *
+     * @param timeout           the maximum time to wait in milliseconds
+     * @return                  <tt>true</tt> if all caches were warmed up in time
+     */
+    public boolean awaitWarmUp(long timeout) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        for (ExtendedAsynchronouslyRefreshedCache<?> cache : getCaches())
+        {
+            try
+            {
+                cache.warmUp().get(Math.max(0L, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e)
+            {
+                return false;
+            }
+            catch (ExecutionException e)
+            {
+                logger.warn("Failed to warm up cache " + cache, e.getCause());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return                  <tt>true</tt> if all registered caches have been warmed up
+     */
+    public boolean isWarm()
+    {
+        for (ExtendedAsynchronouslyRefreshedCache<?> cache : getCaches())
+        {
+            if (!cache.isWarm())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void registerMBean(AsynchronouslyRefreshedCacheMXBean statistics)
+    {
+        try
+        {
+            ObjectName name = getMBeanName(statistics.getCacheId());
+            mbeanServer.registerMBean(statistics, name);
+            registeredMBeans.add(name);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Failed to register statistics MBean for cache " + statistics.getCacheId(), e);
+        }
+    }
+
+    /**
+     * @return                  the name under which the statistics of a cache are registered
+     */
+    public static ObjectName getMBeanName(String cacheId) throws Exception
+    {
+        return new ObjectName("Alfresco:type=AsynchronouslyRefreshedCache,name=" + ObjectName.quote(cacheId));
     }
 
     public void broadcastEvent(RefreshableCacheEvent event, boolean toAll)
     {
-        // If the system is up and running, broadcast the event immediately
-        for (RefreshableCacheListener listener : this.listeners)
+        deliver(event, toAll);
+        if (transport == null)
+        {
+            return;
+        }
+        RefreshableCacheEvent remoteEvent = toRemoteEvent(event);
+        if (remoteEvent == null)
+        {
+            return;
+        }
+        if (TransactionSupportUtil.getTransactionId() != null)
+        {
+            addPending(getTransactionEvents(), remoteEvent, toAll);
+        }
+        else
+        {
+            publish(remoteEvent, toAll);
+        }
+    }
+
+    /**
+     * @return                  the event in a form that other nodes can read or <tt>null</tt> if it cannot be sent
+     */
+    private RefreshableCacheEvent toRemoteEvent(RefreshableCacheEvent event)
+    {
+        if (RefreshableCacheEventBatch.isTransportable(event))
+        {
+            return event;
+        }
+        if (event instanceof RefreshableCacheRefreshEvent)
+        {
+            // Other nodes could not read the change, so they will rebuild the key in full
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Publishing cache event without its change: " + event);
+            }
+            return new RefreshableCacheRefreshEvent(event.getCacheId(), event.getKey());
+        }
+        logger.warn("Cache event cannot be sent to other nodes: " + event);
+        return null;
+    }
+
+    private void deliver(RefreshableCacheEvent event, boolean toAll)
+    {
+        boolean queue = dispatchExecutor != null && !synchronousDispatch && TransactionSupportUtil.getTransactionId() == null;
+        List<ListenerQueue> forCacheId = listenersByCacheId.get(event.getCacheId());
+        if (forCacheId != null)
+        {
+            for (ListenerQueue listenerQueue : forCacheId)
+            {
+                listenerQueue.deliver(event, queue);
+            }
+        }
+        if (toAll)
+        {
+            for (ListenerQueue listenerQueue : untargetedListeners)
+            {
+                if (!listenerQueue.listener.getCacheId().equals(event.getCacheId()))
+                {
+                    listenerQueue.deliver(event, queue);
+                }
+            }
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value)
+    {
+        int current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Add an event to those waiting to be published, merging it with an equal event.  The merged event moves to
+     * the end so that events carrying changes are published in the order in which they were last requested.
+     *
+     * @return                  <tt>true</tt> if the event was merged
+     */
+    private static boolean addPending(Map<RefreshableCacheEvent, Boolean> events, RefreshableCacheEvent event, boolean toAll)
+    {
+        Boolean existing = events.remove(event);
+        events.put(event, (existing != null && existing) || toAll);
+        return existing != null;
+    }
+
+    private void publish(RefreshableCacheEvent event, boolean toAll)
+    {
+        boolean full;
+        synchronized (pending)
+        {
+            if (addPending(pending, event, toAll))
+            {
+                coalescedEventCount.incrementAndGet();
+            }
+            full = pending.size() >= batchSize;
+        }
+        if (full || flushInterval <= 0)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Publish all pending events
+     */
+    public void flush()
+    {
+        synchronized (pending)
+        {
+            while (!pending.isEmpty())
+            {
+                Map<RefreshableCacheEvent, Boolean> events = new LinkedHashMap<RefreshableCacheEvent, Boolean>();
+                Iterator<Map.Entry<RefreshableCacheEvent, Boolean>> it = pending.entrySet().iterator();
+                while (it.hasNext() && events.size() < batchSize)
+                {
+                    Map.Entry<RefreshableCacheEvent, Boolean> entry = it.next();
+                    events.put(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+                // Published with the lock held so that batches go out in sequence order
+                publishBatch(new ArrayList<Map.Entry<RefreshableCacheEvent, Boolean>>(events.entrySet()));
+            }
+        }
+    }
+
+    /**
+     * Publish the events as the next batch, or as several batches if they are too large for the transport.
+     * Must be called with the pending lock.
+     */
+    private void publishBatch(List<Map.Entry<RefreshableCacheEvent, Boolean>> entries)
+    {
+        Map<RefreshableCacheEvent, Boolean> events = new LinkedHashMap<RefreshableCacheEvent, Boolean>();
+        for (Map.Entry<RefreshableCacheEvent, Boolean> entry : entries)
+        {
+            events.put(entry.getKey(), entry.getValue());
+        }
+        RefreshableCacheEventBatch batch = new RefreshableCacheEventBatch(nodeId, epoch, sequence + 1, events);
+        int maxBatchBytes = transport.getMaxBatchBytes();
+        if (maxBatchBytes > 0 && entries.size() > 1 && batch.toBytes().length > maxBatchBytes)
+        {
+            int half = entries.size() / 2;
+            publishBatch(entries.subList(0, half));
+            publishBatch(entries.subList(half, entries.size()));
+            return;
+        }
+        sequence++;
+        try
+        {
+            transport.publish(batch);
+            publishedBatchCount.incrementAndGet();
+            publishedEventCount.addAndGet(events.size());
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Failed to publish cache events: " + batch, e);
+        }
+    }
+
+    /**
+     * Deliver a batch from another node to the local listeners unless it has already been received
+     */
+    private void receive(RefreshableCacheEventBatch batch)
+    {
+        if (nodeId.equals(batch.getOriginId()))
+        {
+            return;
+        }
+        OriginState state = origins.get(batch.getOriginId());
+        if (state == null)
+        {
+            origins.putIfAbsent(batch.getOriginId(), new OriginState());
+            state = origins.get(batch.getOriginId());
+        }
+        if (!state.accept(batch.getEpoch(), batch.getSequence()))
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Dropping repeated or outdated cache event batch " + batch);
+            }
+            return;
+        }
+        receivedBatchCount.incrementAndGet();
+        receivedEventCount.addAndGet(batch.getEvents().size());
+        for (Map.Entry<RefreshableCacheEvent, Boolean> entry : batch.getEvents().entrySet())
+        {
+            try
+            {
+                deliver(entry.getKey(), entry.getValue());
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Failed to deliver remote cache event " + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * To be used in a transaction only.
+     */
+    private Map<RefreshableCacheEvent, Boolean> getTransactionEvents()
+    {
+        @SuppressWarnings("unchecked")
+        Map<RefreshableCacheEvent, Boolean> events = (Map<RefreshableCacheEvent, Boolean>) TransactionSupportUtil.getResource(resourceKeyTxnEvents);
+        if (events == null)
+        {
+            events = new LinkedHashMap<RefreshableCacheEvent, Boolean>();
+            TransactionSupportUtil.bindListener(transactionListener, 0);
+            TransactionSupportUtil.bindResource(resourceKeyTxnEvents, events);
+        }
+        return events;
+    }
+
+    /**
+     * The events waiting to be delivered to one listener.  At most one drain task per listener is
+     * submitted to the dispatch executor at a time so that events are delivered in order.
+     */
+    private class ListenerQueue implements Runnable
+    {
+        private final RefreshableCacheListener listener;
+        /** Events with the time (ns) at which they were queued */
+        private final ConcurrentLinkedQueue<Pair<RefreshableCacheEvent, Long>> events = new ConcurrentLinkedQueue<Pair<RefreshableCacheEvent, Long>>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        ListenerQueue(RefreshableCacheListener listener)
         {
-            if (toAll)
+            this.listener = listener;
+        }
+
+        void deliver(RefreshableCacheEvent event, boolean queue)
+        {
+            if (!queue)
             {
                 if(logger.isDebugEnabled())
                 {
                     logger.debug("Delivering event (" + event + ") to listener (" + listener + ").");
                 }
                 listener.onRefreshableCacheEvent(event);
+                return;
             }
-            else
+            events.add(new Pair<RefreshableCacheEvent, Long>(event, System.nanoTime()));
+            updateMax(maxQueueDepth, queueDepth.incrementAndGet());
+            schedule();
+        }
+
+        private void schedule()
+        {
+            if (!events.isEmpty() && scheduled.compareAndSet(false, true))
             {
-                if (listener.getCacheId().equals(event.getCacheId()))
+                dispatchExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Pair<RefreshableCacheEvent, Long> queued;
+                while ((queued = events.poll()) != null)
                 {
+                    queueDepth.decrementAndGet();
+                    long latency = System.nanoTime() - queued.getSecond();
+                    dispatchedEventCount.incrementAndGet();
+                    totalDispatchLatency.addAndGet(latency);
+                    updateMax(maxDispatchLatency, latency);
                     if(logger.isDebugEnabled())
                     {
-                        logger.debug("Delivering event (" + event + ") to listener (" + listener + ").");
+                        logger.debug("Delivering event (" + queued.getFirst() + ") to listener (" + listener + ").");
+                    }
+                    try
+                    {
+                        listener.onRefreshableCacheEvent(queued.getFirst());
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Failed to deliver event (" + queued.getFirst() + ") to listener (" + listener + ").", e);
+                    }
+                }
+            }
+            finally
+            {
+                scheduled.set(false);
+            }
+            // Pick up events queued after the last poll
+            schedule();
+        }
+    }
+
+    /**
+     * Publishes the events broadcast in a transaction once it has committed
+     */
+    private class PublishTransactionListener implements TransactionListener
+    {
+        @Override
+        public void beforeCommit(boolean readOnly)
+        {
+            // Nothing
+        }
+
+        @Override
+        public void beforeCompletion()
+        {
+            // Nothing
+        }
+
+        @Override
+        public void afterCommit()
+        {
+            for (Map.Entry<RefreshableCacheEvent, Boolean> entry : getTransactionEvents().entrySet())
+            {
+                publish(entry.getKey(), entry.getValue());
+            }
+        }
+
+        @Override
+        public void afterRollback()
+        {
+            // Nothing
+        }
+    }
+
+    /**
+     * The batches received from one node during its latest run
+     */
+    private class OriginState
+    {
+        private long epoch = Long.MIN_VALUE;
+        private long highest = 0L;
+        private final Set<Long> missing = new LinkedHashSet<Long>();
+
+        /**
+         * @return              <tt>true</tt> if the batch has not been received before and is not from an earlier run
+         */
+        synchronized boolean accept(long batchEpoch, long batchSequence)
+        {
+            if (batchEpoch < epoch)
+            {
+                return false;
+            }
+            else if (batchEpoch > epoch)
+            {
+                // The node has been restarted and numbers its batches from 1 again
+                epoch = batchEpoch;
+                highest = 0L;
+                missing.clear();
+            }
+            if (batchSequence > highest)
+            {
+                if (batchSequence > highest + 1)
+                {
+                    missedBatchCount.addAndGet(batchSequence - highest - 1);
+                    for (long missed = Math.max(highest + 1, batchSequence - MAX_MISSING_BATCHES); missed < batchSequence; missed++)
+                    {
+                        missing.add(missed);
+                    }
+                    Iterator<Long> it = missing.iterator();
+                    while (missing.size() > MAX_MISSING_BATCHES)
+                    {
+                        it.next();
+                        it.remove();
                     }
-                    listener.onRefreshableCacheEvent(event);
                 }
+                highest = batchSequence;
+                return true;
+            }
+            else if (missing.remove(batchSequence))
+            {
+                lateBatchCount.incrementAndGet();
+                return true;
+            }
+            else
+            {
+                duplicateBatchCount.incrementAndGet();
+                return false;
             }
         }
     }
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.io.Serializable;
+
+/**
+ * Interface for asynchronously refreshed caches that can be read without blocking, report the version and
+ * staleness of their values, accept described changes, keep statistics and be warmed up.
+ *
+ * @see AbstractAsynchronouslyRefreshedCache
+ *
+ * @since 5.1.3
+ */
+public interface ExtendedAsynchronouslyRefreshedCache<T> extends AsynchronouslyRefreshedCache<T>
+{
+    /**
+     * Get the cache value without blocking.
+     * If there is no cache value a build is scheduled and the returned future completes once it is available.
+     *
+     * @param key tennant id
+     * @return          a future for the cache value, which will already be complete if the value is cached
+     */
+    RefreshableCacheFuture<T> getAsync(String key);
+
+    /**
+     * Get the cache value together with its version, age and staleness.
+     * This blocks in the same way as {@link #get(String)}.
+     *
+     * @param key tennant id
+     * @return          the cache entry
+     */
+    RefreshableCacheEntry<T> getEntry(String key);
+
+    /**
+     * Refresh the cache asynchronously, describing what has changed so that the value can be
+     * patched rather than rebuilt in full.
+     *
+     * @param key tennant id
+     * @param change    a description of the change or <tt>null</tt> if the value must be rebuilt in full
+     */
+    void refresh(String key, Serializable change);
+
+    /**
+     * @return          the hit, wait and build statistics of the cache
+     */
+    AsynchronouslyRefreshedCacheMXBean getStatistics();
+
+    /**
+     * Start building the cache's warm-up keys in the background.  Calling this again returns the same future.
+     *
+     * @return          a future that completes, with the time taken in milliseconds, once all warm-up keys are built
+     */
+    RefreshableCacheFuture<Long> warmUp();
+
+    /**
+     * @return          <tt>true</tt> if the cache has been warmed up
+     */
+    boolean isWarm();
+}
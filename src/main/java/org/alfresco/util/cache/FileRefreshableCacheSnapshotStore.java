@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.util.Pair;
+import org.alfresco.util.PropertyCheck;
+import org.alfresco.util.SerializationUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Snapshot store that appends serialized values to a local file.
+ * <p/>
+ * When the store is opened only the record headers are read, to index the latest record of each key; the
+ * file is memory-mapped and values are only deserialized when they are {@link #load(String) loaded}.  Records
+ * written while the store is open are read back through the file channel.  The file is compacted, when it is
+ * opened or written to, once most of it is taken up by superseded records.  The compacted file replaces the
+ * old one with a rename, so there is always a complete snapshot file.  A record cut short by a crash is
+ * discarded.
+ * <p/>
+ * Record layout: key length (int), key (UTF-8), watermark (long), value length (int, <tt>-1</tt> for a removed
+ * key), serialized value.
+ *
+ * @since 5.1.3
+ */
+public class FileRefreshableCacheSnapshotStore implements RefreshableCacheSnapshotStore, InitializingBean, DisposableBean
+{
+    private static Log logger = LogFactory.getLog(FileRefreshableCacheSnapshotStore.class);
+
+    private static final int MAGIC = 0x41524353;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+
+    /** The latest record of each key: value position, value length and watermark (guarded by this) */
+    private final Map<String, long[]> index = new HashMap<String, long[]>();
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long liveBytes;
+
+    public FileRefreshableCacheSnapshotStore()
+    {
+    }
+
+    /**
+     * @param file          the snapshot file
+     */
+    public FileRefreshableCacheSnapshotStore(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * @param file          the snapshot file, which is created if it does not exist
+     */
+    public void setFile(File file)
+    {
+        this.file = file;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception
+    {
+        PropertyCheck.mandatory(this, "file", file);
+        open();
+    }
+
+    @Override
+    public void destroy() throws Exception
+    {
+        close();
+    }
+
+    /**
+     * Open the file and index the snapshots in it
+     */
+    public synchronized void open() throws IOException
+    {
+        if (channel != null)
+        {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs())
+        {
+            throw new IOException("Unable to create snapshot directory " + parent);
+        }
+        openChannel();
+        long end = readIndex();
+        if (end < channel.size())
+        {
+            logger.warn("Discarding incomplete snapshot records at the end of " + file);
+            channel.truncate(end);
+        }
+        if (isMostlySuperseded())
+        {
+            compact();
+        }
+        else
+        {
+            map();
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Opened snapshot store " + file + " with " + index.size() + " keys in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private void openChannel() throws IOException
+    {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        if (channel.size() < FILE_HEADER_SIZE)
+        {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+        }
+    }
+
+    /**
+     * Map what has been written so far; later records are read through the channel
+     */
+    private void map() throws IOException
+    {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return              <tt>true</tt> if superseded records take up more than half of the file
+     */
+    private boolean isMostlySuperseded() throws IOException
+    {
+        return channel.size() - FILE_HEADER_SIZE > 2 * liveBytes + 65536;
+    }
+
+    /**
+     * Read the record headers into the index
+     *
+     * @return              the end of the last complete record
+     */
+    private long readIndex() throws IOException
+    {
+        index.clear();
+        liveBytes = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(header, 0);
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION)
+        {
+            throw new IOException("Not a cache snapshot file: " + file);
+        }
+        long position = FILE_HEADER_SIZE;
+        ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        ByteBuffer recordHeader = ByteBuffer.allocate(12);
+        while (position + 4 <= size)
+        {
+            intBuffer.clear();
+            readFully(intBuffer, position);
+            int keyLength = intBuffer.getInt();
+            if (keyLength < 0 || position + 4 + keyLength + 12 > size)
+            {
+                break;
+            }
+            ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+            readFully(keyBuffer, position + 4);
+            recordHeader.clear();
+            readFully(recordHeader, position + 4 + keyLength);
+            long watermark = recordHeader.getLong();
+            int valueLength = recordHeader.getInt();
+            long valuePosition = position + 4 + keyLength + 12;
+            if (valuePosition + Math.max(valueLength, 0) > size)
+            {
+                break;
+            }
+            String key = new String(keyBuffer.array(), UTF8);
+            long[] previous = index.remove(key);
+            if (previous != null)
+            {
+                liveBytes -= previous[1];
+            }
+            if (valueLength >= 0)
+            {
+                index.put(key, new long[] {valuePosition, valueLength, watermark});
+                liveBytes += valueLength;
+            }
+            position = valuePosition + Math.max(valueLength, 0);
+        }
+        return position;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of snapshot file " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Rewrite the file with only the latest record of each key.  The old file is kept until the compacted
+     * file has been renamed over it; if that fails the store carries on with the old file.
+     */
+    private void compact() throws IOException
+    {
+        File compacted = new File(file.getPath() + ".compact");
+        FileRefreshableCacheSnapshotStore target = new FileRefreshableCacheSnapshotStore(compacted);
+        compacted.delete();
+        target.openChannel();
+        try
+        {
+            for (Map.Entry<String, long[]> entry : index.entrySet())
+            {
+                ByteBuffer value = ByteBuffer.allocate((int) entry.getValue()[1]);
+                readFully(value, entry.getValue()[0]);
+                target.append(entry.getKey(), value, entry.getValue()[2]);
+            }
+            target.channel.force(false);
+        }
+        finally
+        {
+            target.closeChannel();
+        }
+        closeChannel();
+        try
+        {
+            try
+            {
+                Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            openChannel();
+            readIndex();
+            map();
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Compacted snapshot store " + file + " to " + channel.size() + " bytes");
+        }
+    }
+
+    /**
+     * Write a record at the end of the file.  A <tt>null</tt> value removes the key.
+     */
+    private void append(String key, ByteBuffer value, long watermark) throws IOException
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int valueLength = value == null ? -1 : value.remaining();
+        ByteBuffer record = ByteBuffer.allocate(4 + keyBytes.length + 12 + Math.max(valueLength, 0));
+        record.putInt(keyBytes.length).put(keyBytes).putLong(watermark).putInt(valueLength);
+        if (value != null)
+        {
+            record.put(value);
+        }
+        record.flip();
+        long position = channel.size();
+        while (record.hasRemaining())
+        {
+            channel.write(record, position + record.position());
+        }
+        long[] previous = index.remove(key);
+        if (previous != null)
+        {
+            liveBytes -= previous[1];
+        }
+        if (valueLength >= 0)
+        {
+            index.put(key, new long[] {position + 4 + keyBytes.length + 12, valueLength, watermark});
+            liveBytes += valueLength;
+        }
+    }
+
+    /**
+     * Compact the file if a write has left it mostly superseded.  The write itself has succeeded, so a failed
+     * compaction is only logged and retried on the next write.
+     */
+    private void compactIfMostlySuperseded()
+    {
+        try
+        {
+            if (isMostlySuperseded())
+            {
+                compact();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to compact snapshot store " + file, e);
+        }
+    }
+
+    private void closeChannel() throws IOException
+    {
+        mapped = null;
+        if (randomAccessFile != null)
+        {
+            randomAccessFile.close();
+        }
+        randomAccessFile = null;
+        channel = null;
+    }
+
+    /**
+     * Close the file.  Pending writes are forced to disk.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.force(false);
+            closeChannel();
+        }
+    }
+
+    private void checkOpen()
+    {
+        if (channel == null)
+        {
+            throw new IllegalStateException("Snapshot store is not open: " + file);
+        }
+    }
+
+    @Override
+    public synchronized Pair<Serializable, Long> load(String key)
+    {
+        checkOpen();
+        long[] location = index.get(key);
+        if (location == null)
+        {
+            return null;
+        }
+        byte[] data = new byte[(int) location[1]];
+        try
+        {
+            if (location[0] + location[1] <= mapped.capacity())
+            {
+                ByteBuffer view = mapped.duplicate();
+                view.position((int) location[0]);
+                view.get(data);
+            }
+            else
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                readFully(buffer, location[0]);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to read snapshot of key " + key + " from " + file, e);
+        }
+        return new Pair<Serializable, Long>((Serializable) SerializationUtils.deserialize(data), location[2]);
+    }
+
+    @Override
+    public synchronized void save(String key, Serializable value, long watermark)
+    {
+        checkOpen();
+        try
+        {
+            append(key, ByteBuffer.wrap(SerializationUtils.serialize(value)), watermark);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to write snapshot of key " + key + " to " + file, e);
+        }
+        compactIfMostlySuperseded();
+    }
+
+    @Override
+    public synchronized void remove(String key)
+    {
+        checkOpen();
+        if (!index.containsKey(key))
+        {
+            return;
+        }
+        try
+        {
+            append(key, null, -1L);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to remove snapshot of key " + key + " from " + file, e);
+        }
+        compactIfMostlySuperseded();
+    }
+
+    @Override
+    public synchronized Set<String> getKeys()
+    {
+        return new HashSet<String>(index.keySet());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FileRefreshableCacheSnapshotStore [file=" + file + "]";
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * In-process transport that connects registries sharing the same {@link Channel}, so that several
+ * "nodes" can be run within one JVM.
+ * <p/>
+ * Batches are serialized and read back for every receiver, as they would be by a network transport,
+ * and are delivered on the publishing thread.
+ *
+ * @since 5.1.3
+ */
+public class LoopbackRefreshableCacheEventTransport implements RefreshableCacheEventTransport
+{
+    private static Log logger = LogFactory.getLog(LoopbackRefreshableCacheEventTransport.class);
+
+    /**
+     * The set of transports that can see each other's batches
+     */
+    public static class Channel
+    {
+        private final CopyOnWriteArrayList<LoopbackRefreshableCacheEventTransport> members = new CopyOnWriteArrayList<LoopbackRefreshableCacheEventTransport>();
+    }
+
+    private final Channel channel;
+    private volatile BatchReceiver receiver;
+
+    /**
+     * @param channel           the channel to join
+     */
+    public LoopbackRefreshableCacheEventTransport(Channel channel)
+    {
+        this.channel = channel;
+    }
+
+    @Override
+    public void start(BatchReceiver receiver)
+    {
+        this.receiver = receiver;
+        channel.members.addIfAbsent(this);
+    }
+
+    @Override
+    public int getMaxBatchBytes()
+    {
+        return 0;
+    }
+
+    @Override
+    public void publish(RefreshableCacheEventBatch batch)
+    {
+        byte[] data = batch.toBytes();
+        for (LoopbackRefreshableCacheEventTransport member : channel.members)
+        {
+            if (member == this)
+            {
+                continue;
+            }
+            BatchReceiver memberReceiver = member.receiver;
+            if (memberReceiver == null)
+            {
+                continue;
+            }
+            try
+            {
+                memberReceiver.onBatch(RefreshableCacheEventBatch.fromBytes(data));
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Failed to deliver " + batch + " to " + memberReceiver, e);
+            }
+        }
+    }
+
+    @Override
+    public void stop()
+    {
+        channel.members.remove(this);
+        receiver = null;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+/**
+ * An immutable snapshot of a value held by an {@link ExtendedAsynchronouslyRefreshedCache}, together with
+ * details of when it was built and whether a refresh that will replace it is pending.
+ *
+ * @param <T>           the type of the cached value
+ *
+ * @since 5.1.3
+ */
+public class RefreshableCacheEntry<T>
+{
+    private final String key;
+    private final T value;
+    private final long version;
+    private final long builtTime;
+    private final long staleSince;
+
+    /**
+     * @param key           the cache key
+     * @param value         the cached value
+     * @param version       the build version of the value
+     * @param builtTime     the time (ms) at which the value was put into the cache
+     * @param staleSince    the time (ms) from which the value is known to be stale or <tt>0</tt> if it is current
+     */
+    RefreshableCacheEntry(String key, T value, long version, long builtTime, long staleSince)
+    {
+        this.key = key;
+        this.value = value;
+        this.version = version;
+        this.builtTime = builtTime;
+        this.staleSince = staleSince;
+    }
+
+    /**
+     * @return              a copy of this entry that is stale from the given time
+     */
+    RefreshableCacheEntry<T> markStale(long staleSince)
+    {
+        return new RefreshableCacheEntry<T>(key, value, version, builtTime, staleSince);
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public T getValue()
+    {
+        return value;
+    }
+
+    /**
+     * Get the version of the value.  Versions increase with every build within a cache, so a later
+     * build of a key always has a greater version.
+     *
+     * @return              the build version of the value
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return              the time (ms) at which the value was put into the cache
+     */
+    public long getBuiltTime()
+    {
+        return builtTime;
+    }
+
+    /**
+     * @return              the time (ms) since the value was put into the cache
+     */
+    public long getAge()
+    {
+        return System.currentTimeMillis() - builtTime;
+    }
+
+    /**
+     * @return              <tt>true</tt> if a refresh has been requested that will replace this value
+     */
+    public boolean isStale()
+    {
+        return staleSince > 0;
+    }
+
+    /**
+     * @return              the time (ms) for which the value has been known to be stale or <tt>0</tt> if it is current
+     */
+    public long getStaleness()
+    {
+        return staleSince > 0 ? Math.max(0, System.currentTimeMillis() - staleSince) : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RefreshableCacheEntry [key=" + key + ", version=" + version + ", builtTime=" + builtTime + ", staleSince=" + staleSince + "]";
+    }
+}
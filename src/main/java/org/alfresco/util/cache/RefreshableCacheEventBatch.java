@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.util.SerializationUtils;
+
+/**
+ * A numbered batch of cache events published by one node.
+ * <p/>
+ * Each node numbers its batches from <tt>1</tt> so that receivers can detect repeated, missing and
+ * late batches per origin.  The numbering restarts with every run of the node, which is identified by
+ * its epoch, so that a node restarted with the same id is not mistaken for a repeat of its earlier run.
+ * <p/>
+ * Batches are read back with Java serialization, restricted to the classes that batches of the standard
+ * events are made of.  Events of other types, and changes that are not strings or boxed primitives, cannot
+ * be {@link #isTransportable(RefreshableCacheEvent) transported}.
+ *
+ * @since 5.1.3
+ */
+public class RefreshableCacheEventBatch implements Serializable
+{
+    private static final long serialVersionUID = 2906371459206137473L;
+
+    /** The only classes that may be read from a serialized batch */
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<String>(Arrays.asList(
+            RefreshableCacheEventBatch.class.getName(),
+            AbstractRefreshableCacheEvent.class.getName(),
+            RefreshableCacheRefreshEvent.class.getName(),
+            RefreshableCacheRefreshedEvent.class.getName(),
+            LinkedHashMap.class.getName(),
+            HashMap.class.getName(),
+            String.class.getName(),
+            Boolean.class.getName(),
+            Character.class.getName(),
+            Number.class.getName(),
+            Byte.class.getName(),
+            Short.class.getName(),
+            Integer.class.getName(),
+            Long.class.getName(),
+            Float.class.getName(),
+            Double.class.getName()));
+
+    private final String originId;
+    private final long epoch;
+    private final long sequence;
+    private final LinkedHashMap<RefreshableCacheEvent, Boolean> events;
+
+    /**
+     * @param originId          the id of the publishing node
+     * @param epoch             the start time of the publishing node's current run
+     * @param sequence          the number of the batch for the publishing node
+     * @param events            the events mapped to their <tt>toAll</tt> delivery flag
+     */
+    RefreshableCacheEventBatch(String originId, long epoch, long sequence, Map<RefreshableCacheEvent, Boolean> events)
+    {
+        this.originId = originId;
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.events = new LinkedHashMap<RefreshableCacheEvent, Boolean>(events);
+    }
+
+    /**
+     * @return                  the id of the publishing node
+     */
+    public String getOriginId()
+    {
+        return originId;
+    }
+
+    /**
+     * @return                  the start time of the publishing node's current run
+     */
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * @return                  the number of the batch for the publishing node
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * @return                  the events, in publishing order, mapped to their <tt>toAll</tt> delivery flag
+     */
+    public Map<RefreshableCacheEvent, Boolean> getEvents()
+    {
+        return Collections.unmodifiableMap(events);
+    }
+
+    /**
+     * @param event             a cache event
+     * @return                  <tt>true</tt> if the event can be read back from a serialized batch
+     */
+    public static boolean isTransportable(RefreshableCacheEvent event)
+    {
+        if (!ALLOWED_CLASSES.contains(event.getClass().getName()))
+        {
+            return false;
+        }
+        if (event instanceof RefreshableCacheRefreshEvent)
+        {
+            Serializable change = ((RefreshableCacheRefreshEvent) event).getChange();
+            return change == null || ALLOWED_CLASSES.contains(change.getClass().getName());
+        }
+        return true;
+    }
+
+    /**
+     * @return                  the serialized form of the batch
+     */
+    public byte[] toBytes()
+    {
+        return SerializationUtils.serialize(this);
+    }
+
+    /**
+     * Read a batch written with {@link #toBytes()}.  Only the classes that batches of the standard events
+     * are made of are resolved, so data from the network cannot instantiate arbitrary classes.
+     *
+     * @param data              the serialized batch
+     * @return                  the batch
+     * @throws AlfrescoRuntimeException     if the data cannot be read
+     */
+    public static RefreshableCacheEventBatch fromBytes(byte[] data)
+    {
+        ObjectInputStream in = null;
+        try
+        {
+            in = new BatchInputStream(new ByteArrayInputStream(data));
+            Object batch = in.readObject();
+            if (!(batch instanceof RefreshableCacheEventBatch))
+            {
+                throw new AlfrescoRuntimeException("Not a cache event batch: " + batch);
+            }
+            return (RefreshableCacheEventBatch) batch;
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to read cache event batch", e);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to read cache event batch", e);
+        }
+        finally
+        {
+            try
+            {
+                if (in != null)
+                {
+                    in.close();
+                }
+            }
+            catch (IOException e)
+            {
+                // ignore close exception
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RefreshableCacheEventBatch [originId=" + originId + ", epoch=" + epoch + ", sequence=" + sequence + ", events=" + events.size() + "]";
+    }
+
+    /**
+     * Object stream that refuses classes other than those that cache event batches are made of
+     */
+    private static class BatchInputStream extends ObjectInputStream
+    {
+        BatchInputStream(InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+        {
+            if (!ALLOWED_CLASSES.contains(desc.getName()))
+            {
+                throw new ClassNotFoundException("Class not allowed in cache event batch: " + desc.getName());
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+/**
+ * SPI used by the {@link DefaultAsynchronouslyRefreshedCacheRegistry} to send cache events to the
+ * registries of other nodes and to receive theirs.
+ * <p/>
+ * Transports only move {@link RefreshableCacheEventBatch batches}; ordering checks and de-duplication
+ * are done by the registry using the origin and sequence number carried by each batch.  A transport
+ * may therefore lose, repeat or reorder batches.
+ *
+ * @since 5.1.3
+ */
+public interface RefreshableCacheEventTransport
+{
+    /**
+     * Callback for batches received from other nodes
+     */
+    public interface BatchReceiver
+    {
+        /**
+         * @param batch             a batch published by another node
+         */
+        public void onBatch(RefreshableCacheEventBatch batch);
+    }
+
+    /**
+     * Start the transport.  Batches received from other nodes are passed to the receiver from then on.
+     *
+     * @param receiver              the receiver of remote batches
+     */
+    public void start(BatchReceiver receiver);
+
+    /**
+     * Send a batch to the other nodes.  The batch does not need to be delivered back to this node.
+     *
+     * @param batch                 the batch to send
+     */
+    public void publish(RefreshableCacheEventBatch batch);
+
+    /**
+     * The registry splits batches that would serialize to more than this.
+     *
+     * @return                      the largest {@link RefreshableCacheEventBatch#toBytes() serialized batch}, in bytes,
+     *                              that the transport can send or <tt>0</tt> if there is no limit
+     */
+    public int getMaxBatchBytes();
+
+    /**
+     * Stop sending and receiving batches
+     */
+    public void stop();
+}
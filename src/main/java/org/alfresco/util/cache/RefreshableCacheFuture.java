@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link Future} for a cache value that is built asynchronously.
+ * <p/>
+ * Listeners can be {@link #addListener(Runnable, Executor) added} so that callers can react to the
+ * value becoming available without parking a thread.  Cancelling a future only affects the caller
+ * that holds it; the underlying cache build carries on for other callers.
+ *
+ * @param <T>           the type of the cached value
+ *
+ * @since 5.1.3
+ */
+public class RefreshableCacheFuture<T> implements Future<T>
+{
+    private static Log logger = LogFactory.getLog(RefreshableCacheFuture.class);
+
+    /** Runs listeners on the thread that completes the future */
+    static final Executor DIRECT_EXECUTOR = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    private final List<Runnable> listeners = new LinkedList<Runnable>();
+    private boolean done;
+    private boolean cancelled;
+    private T value;
+    private Throwable failure;
+
+    /**
+     * @param value         the value
+     * @return              a future that has already completed with the given value
+     */
+    public static <T> RefreshableCacheFuture<T> completed(T value)
+    {
+        RefreshableCacheFuture<T> future = new RefreshableCacheFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Complete the future with a value.
+     *
+     * @return              <tt>true</tt> if this call completed the future
+     */
+    boolean complete(T value)
+    {
+        List<Runnable> toRun;
+        synchronized (this)
+        {
+            if (done)
+            {
+                return false;
+            }
+            this.value = value;
+            toRun = finish();
+        }
+        runListeners(toRun);
+        return true;
+    }
+
+    /**
+     * Complete the future with a failure.
+     *
+     * @return              <tt>true</tt> if this call completed the future
+     */
+    boolean fail(Throwable failure)
+    {
+        List<Runnable> toRun;
+        synchronized (this)
+        {
+            if (done)
+            {
+                return false;
+            }
+            this.failure = failure;
+            toRun = finish();
+        }
+        runListeners(toRun);
+        return true;
+    }
+
+    /**
+     * Get a new future that completes with this one but that can be cancelled independently.
+     */
+    RefreshableCacheFuture<T> newDependent()
+    {
+        final RefreshableCacheFuture<T> dependent = new RefreshableCacheFuture<T>();
+        addListener(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dependent.completeFrom(RefreshableCacheFuture.this);
+            }
+        }, DIRECT_EXECUTOR);
+        return dependent;
+    }
+
+    /**
+     * Complete this future in the same way as another, completed, future.
+     */
+    void completeFrom(RefreshableCacheFuture<T> other)
+    {
+        try
+        {
+            complete(other.getValue());
+        }
+        catch (ExecutionException e)
+        {
+            fail(e.getCause());
+        }
+        catch (CancellationException e)
+        {
+            cancel(false);
+        }
+    }
+
+    /**
+     * Must be called while synchronized on this instance
+     *
+     * @return              the listeners to run
+     */
+    private List<Runnable> finish()
+    {
+        done = true;
+        doneLatch.countDown();
+        List<Runnable> toRun = new LinkedList<Runnable>(listeners);
+        listeners.clear();
+        return toRun;
+    }
+
+    private void runListeners(List<Runnable> toRun)
+    {
+        for (Runnable listener : toRun)
+        {
+            try
+            {
+                listener.run();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Cache future listener failed: " + listener, e);
+            }
+        }
+    }
+
+    /**
+     * Register a listener to be run once this future is done.  If the future is already done
+     * the listener is run immediately.
+     *
+     * @param listener      the listener to run
+     * @param executor      the executor with which to run the listener
+     */
+    public void addListener(final Runnable listener, final Executor executor)
+    {
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                executor.execute(listener);
+            }
+        };
+        synchronized (this)
+        {
+            if (!done)
+            {
+                listeners.add(task);
+                return;
+            }
+        }
+        runListeners(Collections.singletonList(task));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        List<Runnable> toRun;
+        synchronized (this)
+        {
+            if (done)
+            {
+                return false;
+            }
+            cancelled = true;
+            toRun = finish();
+        }
+        runListeners(toRun);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone()
+    {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        doneLatch.await();
+        return getValue();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!doneLatch.await(timeout, unit))
+        {
+            throw new TimeoutException("Cache value not available after " + timeout + " " + unit);
+        }
+        return getValue();
+    }
+
+    private synchronized T getValue() throws ExecutionException
+    {
+        if (cancelled)
+        {
+            throw new CancellationException();
+        }
+        if (failure != null)
+        {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "RefreshableCacheFuture [done=" + done + ", cancelled=" + cancelled + ", failure=" + failure + "]";
+    }
+}
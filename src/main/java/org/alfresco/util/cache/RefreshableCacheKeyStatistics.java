@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for one key of an {@link AbstractAsynchronouslyRefreshedCache}.  All times are in milliseconds.
+ *
+ * @since 5.1.3
+ */
+public class RefreshableCacheKeyStatistics
+{
+    /** Upper bounds (ms, exclusive) of the build time histogram buckets; the last bucket is unbounded */
+    static final long[] BUILD_TIME_BOUNDS = new long[] {1L, 10L, 100L, 1000L, 10000L};
+
+    private final String key;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicInteger blockedWaiters = new AtomicInteger();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong buildCount = new AtomicLong();
+    private final AtomicLong totalBuildTime = new AtomicLong();
+    private final AtomicLong maxBuildTime = new AtomicLong();
+    private final AtomicLongArray buildTimeHistogram = new AtomicLongArray(BUILD_TIME_BOUNDS.length + 1);
+    private final AtomicLong buildFailureCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private volatile long lastReadTime = 0L;
+
+    RefreshableCacheKeyStatistics(String key)
+    {
+        this.key = key;
+    }
+
+    void recordHit()
+    {
+        hitCount.incrementAndGet();
+    }
+
+    void recordMiss()
+    {
+        missCount.incrementAndGet();
+    }
+
+    /**
+     * Note a read of the key.  The time is only updated once per second so that frequent reads do not all write it.
+     */
+    void recordRead(long now)
+    {
+        if (now - lastReadTime >= 1000L)
+        {
+            lastReadTime = now;
+        }
+    }
+
+    void waitStarted()
+    {
+        blockedWaiters.incrementAndGet();
+    }
+
+    void waitEnded(long waitTime)
+    {
+        blockedWaiters.decrementAndGet();
+        waitCount.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        updateMax(maxWaitTime, waitTime);
+    }
+
+    void recordBuild(long buildTime)
+    {
+        buildCount.incrementAndGet();
+        totalBuildTime.addAndGet(buildTime);
+        updateMax(maxBuildTime, buildTime);
+        int bucket = 0;
+        while (bucket < BUILD_TIME_BOUNDS.length && buildTime >= BUILD_TIME_BOUNDS[bucket])
+        {
+            bucket++;
+        }
+        buildTimeHistogram.incrementAndGet(bucket);
+    }
+
+    void recordFailure()
+    {
+        buildFailureCount.incrementAndGet();
+    }
+
+    void recordRetry()
+    {
+        retryCount.incrementAndGet();
+    }
+
+    /**
+     * Add the counters of another key to these, when that key is removed from the cache
+     */
+    void add(RefreshableCacheKeyStatistics other)
+    {
+        hitCount.addAndGet(other.getHitCount());
+        missCount.addAndGet(other.getMissCount());
+        waitCount.addAndGet(other.getWaitCount());
+        totalWaitTime.addAndGet(other.getTotalWaitTime());
+        updateMax(maxWaitTime, other.getMaxWaitTime());
+        buildCount.addAndGet(other.getBuildCount());
+        totalBuildTime.addAndGet(other.getTotalBuildTime());
+        updateMax(maxBuildTime, other.getMaxBuildTime());
+        long[] histogram = other.getBuildTimeHistogram();
+        for (int i = 0; i < histogram.length; i++)
+        {
+            buildTimeHistogram.addAndGet(i, histogram[i]);
+        }
+        buildFailureCount.addAndGet(other.getBuildFailureCount());
+        retryCount.addAndGet(other.getRetryCount());
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+        {
+            current = max.get();
+        }
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return              the time of the last read of the key, to within a second, or <tt>0</tt> if it has not been read
+     */
+    public long getLastReadTime()
+    {
+        return lastReadTime;
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * @return              the number of threads currently blocked waiting for the key to be built
+     */
+    public int getBlockedWaiters()
+    {
+        return blockedWaiters.get();
+    }
+
+    /**
+     * @return              the number of times that a thread has blocked waiting for the key to be built
+     */
+    public long getWaitCount()
+    {
+        return waitCount.get();
+    }
+
+    public long getTotalWaitTime()
+    {
+        return totalWaitTime.get();
+    }
+
+    public long getMaxWaitTime()
+    {
+        return maxWaitTime.get();
+    }
+
+    public long getBuildCount()
+    {
+        return buildCount.get();
+    }
+
+    public long getTotalBuildTime()
+    {
+        return totalBuildTime.get();
+    }
+
+    public long getMaxBuildTime()
+    {
+        return maxBuildTime.get();
+    }
+
+    /**
+     * @return              the number of builds in each bucket of {@link AsynchronouslyRefreshedCacheMXBean#getBuildTimeHistogramBounds()}
+     */
+    public long[] getBuildTimeHistogram()
+    {
+        long[] histogram = new long[buildTimeHistogram.length()];
+        for (int i = 0; i < histogram.length; i++)
+        {
+            histogram[i] = buildTimeHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    public long getBuildFailureCount()
+    {
+        return buildFailureCount.get();
+    }
+
+    /**
+     * @return              the number of times that a failed build was queued again
+     */
+    public long getRetryCount()
+    {
+        return retryCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RefreshableCacheKeyStatistics [key=" + key + ", hits=" + hitCount + ", misses=" + missCount
+                + ", waits=" + waitCount + ", totalWaitTime=" + totalWaitTime + ", builds=" + buildCount
+                + ", maxBuildTime=" + maxBuildTime + ", failures=" + buildFailureCount + "]";
+    }
+}
@@ -18,14 +18,18 @@
  */
 package org.alfresco.util.cache;
 
+import java.io.Serializable;
+
 /**
- * Describes an entry that is stale in the cache
+ * Describes an entry that is stale in the cache, optionally with a description of the change
  * 
  * @author Andy
  *
  */
 public class RefreshableCacheRefreshEvent extends AbstractRefreshableCacheEvent
 {
+    private Serializable change;
+
     /**
      * @param cacheId
      */
@@ -34,6 +38,49 @@ public class RefreshableCacheRefreshEvent extends AbstractRefreshableCacheEvent
         super(cacheId, key);
     }
 
+    /**
+     * @param cacheId
+     * @param key - the key/ tennant id
+     * @param change - the change or <tt>null</tt> if the entry must be rebuilt in full
+     */
+    RefreshableCacheRefreshEvent(String cacheId, String key, Serializable change)
+    {
+        super(cacheId, key);
+        this.change = change;
+    }
+
+    /**
+     * @return the change or <tt>null</tt> if the entry must be rebuilt in full
+     */
+    public Serializable getChange()
+    {
+        return change;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * super.hashCode() + ((change == null) ? 0 : change.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!super.equals(obj)) return false;
+        RefreshableCacheRefreshEvent other = (RefreshableCacheRefreshEvent) obj;
+        if (change == null)
+        {
+            return other.change == null;
+        }
+        return change.equals(other.change);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RefreshableCacheRefreshEvent [cacheId=" + getCacheId() + ", tenantId=" + getKey() + ", change=" + change + "]";
+    }
+
     /**
      * 
      */
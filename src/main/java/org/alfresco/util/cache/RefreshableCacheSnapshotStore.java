@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.io.Serializable;
+import java.util.Set;
+
+import org.alfresco.util.Pair;
+
+/**
+ * Persistent copies of the values built by one {@link AbstractAsynchronouslyRefreshedCache}, so that a restarted
+ * node can serve them before they have been rebuilt.
+ * <p/>
+ * Each value is stored with a watermark describing the version of the source data it was built from, which
+ * allows the cache to tell whether a snapshot is still current.
+ *
+ * @since 5.1.3
+ */
+public interface RefreshableCacheSnapshotStore
+{
+    /**
+     * @param key           the cache key
+     * @return              the stored value and its watermark or <tt>null</tt> if there is no snapshot of the key
+     */
+    public Pair<Serializable, Long> load(String key);
+
+    /**
+     * Store the latest value of a key
+     *
+     * @param key           the cache key
+     * @param value         the value
+     * @param watermark     the version of the source data that the value was built from or <tt>-1</tt> if unknown
+     */
+    public void save(String key, Serializable value, long watermark);
+
+    /**
+     * @param key           the cache key for which to forget any snapshot
+     */
+    public void remove(String key);
+
+    /**
+     * @return              the keys that have a snapshot
+     */
+    public Set<String> getKeys();
+}
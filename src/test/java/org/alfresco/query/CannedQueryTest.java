@@ -18,14 +18,29 @@
  */
 package org.alfresco.query;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
+import org.alfresco.query.AbstractCannedQuery.TotalCountStrategy;
 import org.alfresco.query.CannedQuerySortDetails.SortOrder;
 import org.alfresco.util.Pair;
 import org.alfresco.util.registry.NamedObjectRegistry;
@@ -265,6 +280,552 @@ public class CannedQueryTest extends TestCase
         assertTrue("Should have more pages/items", qrOne.hasMoreItems());
     }
     
+    public void testQueryStreamedResults() throws Exception
+    {
+        // Skip 2 and fetch a page of 3: 6 results are needed to page and check for more
+        CannedQueryPageDetails qPageDetails = new CannedQueryPageDetails(2, 3, 1, 1);
+        CannedQueryParameters params = new CannedQueryParameters(null, qPageDetails, null, 0, null);
+        TestStreamingCannedQuery<String> qOne = new TestStreamingCannedQuery<String>(params, RESULTS_ONE, ANTI_RESULTS);
+        CannedQueryResults<String> qrOne = qOne.execute();
+        assertEquals("Incorrect number of paged results", 3, qrOne.getPagedResultCount());
+        assertEquals("Incorrect result order", "ONE_2", qrOne.getPage().get(0));
+        assertEquals("Incorrect result order", "ONE_4", qrOne.getPage().get(2));
+        assertTrue("Should have more pages/items", qrOne.hasMoreItems());
+        assertEquals("Only results up to the 6th permitted one should be read", 7, qOne.read);
+        assertTrue("Streamed results should be closed", qOne.closed);
+        
+        // Requesting a total count reads further, but the count is open-ended if reading stopped early
+        params = new CannedQueryParameters(null, qPageDetails, null, 8, null);
+        qOne = new TestStreamingCannedQuery<String>(params, RESULTS_ONE, ANTI_RESULTS);
+        qrOne = qOne.execute();
+        assertEquals("Incorrect number of paged results", 3, qrOne.getPagedResultCount());
+        assertEquals("Incorrect number of total results",
+                new Pair<Integer, Integer>(8, null), qrOne.getTotalResultCount());
+        assertEquals(9, qOne.read);
+        
+        // Exhausting the results gives an exact count
+        params = new CannedQueryParameters(null, qPageDetails, null, 1000, null);
+        qOne = new TestStreamingCannedQuery<String>(params, RESULTS_ONE, ANTI_RESULTS);
+        qrOne = qOne.execute();
+        assertEquals("Incorrect number of total results",
+                new Pair<Integer, Integer>(9, 9), qrOne.getTotalResultCount());
+        assertEquals(10, qOne.read);
+    }
+    
+    public void testQueryPermissionsCheckedInParallelBatches() throws Exception
+    {
+        List<Integer> results = new ArrayList<Integer>(1000);
+        for (int i = 0; i < 1000; i++)
+        {
+            results.add(i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            CannedQueryPageDetails qPageDetails = new CannedQueryPageDetails(0, 5, 1, 1);
+            CannedQueryParameters params = new CannedQueryParameters(null, qPageDetails, null, 0, null);
+            TestSparseCannedQuery query = new TestSparseCannedQuery(params, results, executor);
+            CannedQueryResults<Integer> qr = query.execute();
+            assertEquals("Incorrect number of paged results", 5, qr.getPagedResultCount());
+            assertEquals("Incorrect result order", Integer.valueOf(0), qr.getPage().get(0));
+            assertEquals("Incorrect result order", Integer.valueOf(40), qr.getPage().get(4));
+            assertTrue("Should have more pages/items", qr.hasMoreItems());
+            assertEquals("Checks should stop once the 6th result is accepted", 51, query.getPermissionCheckCount());
+            assertEquals(51, query.checked.get());
+            assertTrue("Checks should be spread across the executor", query.checkedThreads.size() > 1);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    public void testQuerySelectedSortedResults() throws Exception
+    {
+        // Pairs of (sort key, original position) with many equal sort keys
+        List<Pair<Integer, Integer>> results = new ArrayList<Pair<Integer, Integer>>(1000);
+        Random random = new Random(42L);
+        for (int i = 0; i < 1000; i++)
+        {
+            results.add(new Pair<Integer, Integer>(random.nextInt(100), i));
+        }
+        // Expected: a stable full sort with every 7th result unreadable
+        List<Pair<Integer, Integer>> expected = new ArrayList<Pair<Integer, Integer>>(results);
+        Collections.sort(expected, TestSortingCannedQuery.COMPARATOR);
+        for (Iterator<Pair<Integer, Integer>> iterator = expected.iterator(); iterator.hasNext(); )
+        {
+            if (iterator.next().getSecond() % 7 == 0)
+            {
+                iterator.remove();
+            }
+        }
+        
+        CannedQueryPageDetails qPageDetails = new CannedQueryPageDetails(10, 5, 1, 2);
+        CannedQuerySortDetails qSortDetails = new CannedQuerySortDetails(
+                new Pair<Object, SortOrder>("blah", SortOrder.DESCENDING));
+        CannedQueryParameters params = new CannedQueryParameters(null, qPageDetails, qSortDetails, 0, null);
+        TestSortingCannedQuery query = new TestSortingCannedQuery(params, results);
+        CannedQueryResults<Pair<Integer, Integer>> qr = query.execute();
+        assertEquals("Incorrect number of pages", 2, qr.getPageCount());
+        assertEquals("Incorrect first page", expected.subList(10, 15), qr.getPages().get(0));
+        assertEquals("Incorrect second page", expected.subList(15, 20), qr.getPages().get(1));
+        assertTrue("Should have more pages/items", qr.hasMoreItems());
+        assertTrue("Only the leading results should be permission checked: " + query.getPermissionCheckCount(),
+                query.getPermissionCheckCount() < 30);
+        
+        // All results needed
+        params = new CannedQueryParameters(null, null, qSortDetails, 0, null);
+        query = new TestSortingCannedQuery(params, results);
+        qr = query.execute();
+        assertEquals("Incorrect results", expected, qr.getPage());
+        assertFalse("Should NOT have any more pages/items", qr.hasMoreItems());
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testCachingQueryFactory() throws Exception
+    {
+        TestCachingCannedQueryFactory<String> factory = new TestCachingCannedQueryFactory(RESULTS_ONE);
+        factory.setBeanName("test.query.cached");
+        factory.setRegistry(namedQueryFactoryRegistry);
+        factory.afterPropertiesSet();
+        
+        CannedQueryParameters params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 3, 1, 1), null, 0, null);
+        CannedQueryResults<String> qr = factory.getCannedQuery(params).execute();
+        assertEquals("Incorrect results", RESULTS_ONE.subList(0, 3), qr.getPage());
+        assertTrue("Should have more pages/items", qr.hasMoreItems());
+        String queryExecutionId = qr.getQueryExecutionId();
+        assertNotNull(queryExecutionId);
+        assertEquals(1, factory.executions);
+        assertEquals(1, factory.getCachedQueryCount());
+        assertEquals("Results should be kept after permission checks", 9, factory.getCachedResultCount());
+        
+        // The next page is served from the kept results
+        params = new CannedQueryParameters(null, new CannedQueryPageDetails(3, 3, 1, 1), null, 0, queryExecutionId);
+        qr = factory.getCannedQuery(params).execute();
+        assertEquals("Incorrect result order", "ONE_3", qr.getPage().get(0));
+        assertEquals("Incorrect result order", "ONE_6", qr.getPage().get(2));
+        assertEquals(queryExecutionId, qr.getQueryExecutionId());
+        assertEquals("Raw query should not be run again", 1, factory.executions);
+        assertEquals(1, factory.getCacheHitCount());
+        assertEquals(1, factory.getCacheMissCount());
+        
+        // Results filtered with the permissions of one user are not given to another
+        factory.user = "user2";
+        qr = factory.getCannedQuery(params).execute();
+        assertEquals("Incorrect result order", "ONE_3", qr.getPage().get(0));
+        assertEquals(2, factory.executions);
+        assertEquals(1, factory.getCacheHitCount());
+        assertEquals(2, factory.getCacheMissCount());
+        factory.user = "user1";
+        
+        // Different sorting needs a new execution
+        CannedQuerySortDetails qSortDetails = new CannedQuerySortDetails(
+                new Pair<Object, SortOrder>("blah", SortOrder.DESCENDING));
+        params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 3, 1, 1), qSortDetails, 0, queryExecutionId);
+        qr = factory.getCannedQuery(params).execute();
+        assertEquals("Expected inverse sorting", "ONE_9", qr.getPage().get(0));
+        assertEquals(3, factory.executions);
+        
+        // Kept results expire
+        factory.setTimeToLive(50L);
+        Thread.sleep(100L);
+        qr = factory.getCannedQuery(params).execute();
+        assertEquals(4, factory.executions);
+        assertEquals(1, factory.getCacheHitCount());
+        assertEquals(4, factory.getCacheMissCount());
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testCachingQueryFactoryMemoryLimit() throws Exception
+    {
+        TestCachingCannedQueryFactory<String> factory = new TestCachingCannedQueryFactory(RESULTS_ONE);
+        factory.setBeanName("test.query.cachedlimit");
+        factory.setRegistry(namedQueryFactoryRegistry);
+        factory.setMaxCachedResults(5);
+        factory.afterPropertiesSet();
+        
+        CannedQueryParameters params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 3, 1, 1), null, 0, null);
+        CannedQueryResults<String> qr = factory.getCannedQuery(params).execute();
+        params = new CannedQueryParameters(null, new CannedQueryPageDetails(3, 3, 1, 1), null, 0, qr.getQueryExecutionId());
+        qr = factory.getCannedQuery(params).execute();
+        assertEquals("Incorrect result order", "ONE_3", qr.getPage().get(0));
+        assertEquals("Results larger than the cache should not be kept", 0, factory.getCachedQueryCount());
+        assertEquals(2, factory.executions);
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testCachingQueryFactoryKeepsResultsUpToTheLimit() throws Exception
+    {
+        List<String> results = new ArrayList<String>(150);
+        for (int i = 0; i < 150; i++)
+        {
+            results.add("MANY_" + i);
+        }
+        TestCachingCannedQueryFactory<String> factory = new TestCachingCannedQueryFactory(results);
+        factory.setBeanName("test.query.cachedmany");
+        factory.setRegistry(namedQueryFactoryRegistry);
+        factory.setMaxCachedResults(200);
+        factory.afterPropertiesSet();
+        
+        CannedQueryParameters params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 10, 1, 1), null, 0, null);
+        CannedQueryResults<String> qr = factory.getCannedQuery(params).execute();
+        params = new CannedQueryParameters(null, new CannedQueryPageDetails(10, 10, 1, 1), null, 0, qr.getQueryExecutionId());
+        qr = factory.getCannedQuery(params).execute();
+        assertEquals("Incorrect result order", "MANY_10", qr.getPage().get(0));
+        assertEquals("Results within the limit should be kept", 1, factory.getCachedQueryCount());
+        assertEquals(150, factory.getCachedResultCount());
+        assertEquals(1, factory.executions);
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testPrefetchingQueryFactory() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            TestPrefetchingCannedQueryFactory<String> factory = new TestPrefetchingCannedQueryFactory(RESULTS_ONE);
+            factory.setBeanName("test.query.prefetched");
+            factory.setRegistry(namedQueryFactoryRegistry);
+            factory.setExecutor(executor);
+            factory.afterPropertiesSet();
+            
+            CannedQueryParameters params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 3, 1, 1), null, 0, null);
+            CannedQueryResults<String> qr = factory.getCannedQuery(params).execute();
+            assertEquals("Incorrect results", RESULTS_ONE.subList(0, 3), qr.getPage());
+            String queryExecutionId = qr.getQueryExecutionId();
+            assertNotNull(queryExecutionId);
+            assertEquals(1, factory.getPrefetchCount());
+            
+            // Wait for the next page to be fetched
+            assertTrue("Prefetch should complete", factory.completions.tryAcquire(5, TimeUnit.SECONDS));
+            
+            // The next page is answered with the prefetched results
+            params = new CannedQueryParameters(null, new CannedQueryPageDetails(3, 3, 1, 1), null, 0, queryExecutionId);
+            qr = factory.getCannedQuery(params).execute();
+            assertEquals("Incorrect result order", "ONE_3", qr.getPage().get(0));
+            assertEquals("Incorrect result order", "ONE_6", qr.getPage().get(2));
+            assertEquals(queryExecutionId, qr.getQueryExecutionId());
+            assertEquals(1, factory.getPrefetchHitCount());
+            assertEquals(0, factory.getPrefetchMissCount());
+            assertEquals(2, factory.getPrefetchCount());
+            
+            // Asking for a different page wastes the prefetch
+            assertTrue("Prefetch should complete", factory.completions.tryAcquire(5, TimeUnit.SECONDS));
+            assertEquals("Raw query should only be run for the first page and the prefetches", 3, factory.executions.get());
+            params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 3, 1, 1), null, 0, queryExecutionId);
+            qr = factory.getCannedQuery(params).execute();
+            assertEquals("Incorrect results", RESULTS_ONE.subList(0, 3), qr.getPage());
+            assertEquals(1, factory.getPrefetchHitCount());
+            assertEquals(1, factory.getPrefetchMissCount());
+            assertEquals(1, factory.getWastedPrefetchCount());
+            assertTrue("Half of the follow-up requests should hit", factory.getPrefetchHitRate() == 0.5);
+            
+            // The next page is requested while it is still being fetched
+            assertTrue("Prefetch should complete", factory.completions.tryAcquire(5, TimeUnit.SECONDS));
+            factory.starts.drainPermits();
+            final CountDownLatch gate = new CountDownLatch(1);
+            factory.gate = gate;
+            params = new CannedQueryParameters(null, new CannedQueryPageDetails(3, 3, 1, 1), null, 0, queryExecutionId);
+            qr = factory.getCannedQuery(params).execute();
+            assertTrue("Prefetch should start", factory.starts.tryAcquire(5, TimeUnit.SECONDS));
+            Thread releaser = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(200L);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Release early
+                    }
+                    gate.countDown();
+                }
+            };
+            releaser.start();
+            params = new CannedQueryParameters(null, new CannedQueryPageDetails(6, 3, 1, 1), null, 0, queryExecutionId);
+            qr = factory.getCannedQuery(params).execute();
+            releaser.join(5000L);
+            assertEquals("Incorrect result order", "ONE_7", qr.getPage().get(0));
+            assertFalse(qr.hasMoreItems());
+            assertEquals("Request should wait for the running prefetch", 3, factory.getPrefetchHitCount());
+            assertEquals(1, factory.getPrefetchMissCount());
+            assertEquals(1, factory.getWastedPrefetchCount());
+            assertEquals("Raw query should not be run again for the prefetched pages", 6, factory.executions.get());
+            
+            // Pages prefetched with the permissions of one user are not given to another
+            factory.completions.drainPermits();
+            params = new CannedQueryParameters(null, new CannedQueryPageDetails(3, 3, 1, 1), null, 0, queryExecutionId);
+            qr = factory.getCannedQuery(params).execute();
+            assertTrue("Prefetch should complete", factory.completions.tryAcquire(5, TimeUnit.SECONDS));
+            factory.user = "user2";
+            params = new CannedQueryParameters(null, new CannedQueryPageDetails(6, 3, 1, 1), null, 0, queryExecutionId);
+            qr = factory.getCannedQuery(params).execute();
+            assertEquals("Incorrect result order", "ONE_7", qr.getPage().get(0));
+            assertEquals(3, factory.getPrefetchHitCount());
+            assertEquals(3, factory.getPrefetchMissCount());
+            assertEquals(2, factory.getWastedPrefetchCount());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testPrefetchReplacedBeforeStarting() throws Exception
+    {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        TestPrefetchingCannedQueryFactory<String> factory = new TestPrefetchingCannedQueryFactory(RESULTS_ONE);
+        factory.setBeanName("test.query.prefetchReplaced");
+        factory.setRegistry(namedQueryFactoryRegistry);
+        factory.setExecutor(new Executor()
+        {
+            @Override
+            public void execute(Runnable command)
+            {
+                tasks.add(command);
+            }
+        });
+        factory.afterPropertiesSet();
+        factory.executionId = "test.query.prefetchReplaced-1";
+        
+        // A prefetch that never started is replaced without being counted as wasted
+        CannedQueryParameters params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 3, 1, 1), null, 0, null);
+        factory.getCannedQuery(params).execute();
+        factory.getCannedQuery(params).execute();
+        assertEquals(2, tasks.size());
+        assertEquals(0, factory.getWastedPrefetchCount());
+        tasks.get(0).run();
+        assertEquals("The replaced prefetch should not run", 2, factory.executions.get());
+        
+        // A prefetch that has run is wasted when it is replaced
+        tasks.get(1).run();
+        assertEquals(3, factory.executions.get());
+        factory.getCannedQuery(params).execute();
+        assertEquals(1, factory.getWastedPrefetchCount());
+        
+        // Results that are not counted asynchronously give their count as a completed future
+        factory.empty = true;
+        params = new CannedQueryParameters(null, new CannedQueryPageDetails(0, 3, 1, 1), null, 10, null);
+        CannedQueryResults<String> qr = factory.getCannedQuery(params).execute();
+        Future<Pair<Integer, Integer>> totalCountFuture = ((AsyncTotalCountResults) qr).getTotalResultCountFuture();
+        assertTrue(totalCountFuture.isDone());
+        assertEquals(new Pair<Integer, Integer>(0, 0), totalCountFuture.get());
+    }
+    
+    public void testPagingCursor() throws Exception
+    {
+        List<Object> values = Arrays.<Object>asList("name", 5L, 7, 1.5D, Boolean.TRUE, new Date(1000L), null);
+        String cursor = PagingCursor.encode(values);
+        assertEquals(values, PagingCursor.decode(cursor));
+        assertTrue("Cursor should be URL-safe: " + cursor, cursor.matches("[A-Za-z0-9_-]+"));
+        try
+        {
+            PagingCursor.decode(cursor.substring(0, cursor.length() - 4));
+            fail("Truncated cursor should be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        try
+        {
+            PagingCursor.encode(Collections.singletonList(new Object()));
+            fail("Unsupported value type should be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        assertEquals(PagingCursor.MAX_VALUES,
+                PagingCursor.decode(PagingCursor.encode(Collections.nCopies(PagingCursor.MAX_VALUES, 1L))).size());
+        try
+        {
+            PagingCursor.encode(Collections.nCopies(PagingCursor.MAX_VALUES + 1, 1L));
+            fail("Too many values should be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void testQueryCursorPagedResults() throws Exception
+    {
+        List<Long> seen = new ArrayList<Long>();
+        String cursor = null;
+        int pages = 0;
+        do
+        {
+            PagingRequest pagingRequest = new PagingRequest(3);
+            pagingRequest.setCursor(cursor);
+            TestSeekingCannedQuery query = new TestSeekingCannedQuery(new CannedQueryParameters(null, null, pagingRequest));
+            CannedQueryResults<Long> qr = query.execute();
+            assertEquals("Incorrect number of results", 3, qr.getPagedResultCount());
+            long last = seen.isEmpty() ? -1L : seen.get(seen.size() - 1);
+            assertEquals("Query should only read results after the cursor", 9 - last, query.read);
+            cursor = ((CursorPagingResults) qr).getNextCursor();
+            assertEquals("A cursor should be given only when there are more results", qr.hasMoreItems(), cursor != null);
+            seen.addAll(qr.getPage());
+            pages++;
+        }
+        while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 6L, 7L, 8L, 9L), seen);
+        
+        // Queries without cursor support must not ignore a cursor
+        PagingRequest pagingRequest = new PagingRequest(3);
+        pagingRequest.setCursor(PagingCursor.encode(Collections.singletonList(2L)));
+        CannedQueryFactory<Long> qfTwo = namedQueryFactoryRegistry.getNamedObject(QUERY_TEST_TWO);
+        try
+        {
+            qfTwo.getCannedQuery(new CannedQueryParameters(null, null, pagingRequest)).execute();
+            fail("Cursor should be rejected by a query that does not support it");
+        }
+        catch (CannedQueryException e)
+        {
+            // Expected
+        }
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testMergingQuery() throws Exception
+    {
+        List<Pair<CannedQueryFactory<Long>, Object>> sources = new ArrayList<Pair<CannedQueryFactory<Long>, Object>>();
+        sources.add(new Pair<CannedQueryFactory<Long>, Object>(
+                new TestCannedQueryFactory(Arrays.asList(0L, 2L, 4L, 6L, 8L)), null));
+        sources.add(new Pair<CannedQueryFactory<Long>, Object>(
+                new TestCannedQueryFactory(Arrays.asList(1L, 3L, 5L, 7L, 9L)), null));
+        Comparator<Long> comparator = new Comparator<Long>()
+        {
+            @Override
+            public int compare(Long o1, Long o2)
+            {
+                return o1.compareTo(o2);
+            }
+        };
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            CannedQueryPageDetails qPageDetails = new CannedQueryPageDetails(2, 3, 1, 1);
+            CannedQueryParameters params = new CannedQueryParameters(null, qPageDetails, null, 100, null);
+            MergingCannedQuery<Long> query = new MergingCannedQuery<Long>(params, sources, comparator);
+            query.setExecutor(executor);
+            CannedQueryResults<Long> qr = query.execute();
+            assertEquals("Incorrect merged page", Arrays.asList(2L, 3L, 4L), qr.getPage());
+            assertTrue("Should have more pages/items", qr.hasMoreItems());
+            assertEquals("Merged results should be counted",
+                    new Pair<Integer, Integer>(9, 9), qr.getTotalResultCount());
+            assertEquals(2, query.getSourceQueryCount());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        // Permissions on the merged results make the sources fetch more
+        CannedQueryPageDetails qPageDetails = new CannedQueryPageDetails(0, 2, 1, 1);
+        CannedQueryParameters params = new CannedQueryParameters(null, qPageDetails, null, 0, null);
+        MergingCannedQuery<Long> query = new MergingCannedQuery<Long>(params, sources, comparator)
+        {
+            @Override
+            protected boolean isApplyPostQueryPermissions()
+            {
+                return true;
+            }
+            
+            @Override
+            protected boolean isPermitted(Long result)
+            {
+                return result >= 6L;
+            }
+        };
+        CannedQueryResults<Long> qr = query.execute();
+        assertEquals("Incorrect merged page", Arrays.asList(6L, 7L), qr.getPage());
+        assertTrue("Should have more pages/items", qr.hasMoreItems());
+        assertEquals("Each source should be queried again when it runs out", 4, query.getSourceQueryCount());
+        
+        // The count allows for the permissions on the merged results
+        assertEquals("Permitted merged results should be counted", new Pair<Integer, Integer>(4, 4),
+                newPermittingMergingQuery(new CannedQueryParameters(null, qPageDetails, null, 100, null), sources, comparator)
+                .execute().getTotalResultCount());
+        assertEquals("Source counts should only give the upper bound", new Pair<Integer, Integer>(3, 9),
+                newPermittingMergingQuery(new CannedQueryParameters(null, qPageDetails, null, 3, null), sources, comparator)
+                .execute().getTotalResultCount());
+    }
+    
+    /**
+     * @return              a merging query that only permits results from 6 upwards
+     */
+    private MergingCannedQuery<Long> newPermittingMergingQuery(
+            CannedQueryParameters params,
+            List<Pair<CannedQueryFactory<Long>, Object>> sources,
+            Comparator<Long> comparator)
+    {
+        return new MergingCannedQuery<Long>(params, sources, comparator)
+        {
+            @Override
+            protected boolean isApplyPostQueryPermissions()
+            {
+                return true;
+            }
+            
+            @Override
+            protected boolean isPermitted(Long result)
+            {
+                return result >= 6L;
+            }
+        };
+    }
+    
+    public void testTotalCountStrategies() throws Exception
+    {
+        // 100 results of which the even ones are readable; a page of 5 with a count up to 20
+        CannedQueryPageDetails qPageDetails = new CannedQueryPageDetails(0, 5, 1, 1);
+        CannedQueryParameters params = new CannedQueryParameters(null, qPageDetails, null, 20, null);
+        
+        TestCountingCannedQuery query = new TestCountingCannedQuery(params, TotalCountStrategy.CAPPED, null);
+        CannedQueryResults<Integer> qr = query.execute();
+        assertEquals(new Pair<Integer, Integer>(20, null), qr.getTotalResultCount());
+        assertEquals("Checks should stop at the count maximum", 39, query.getPermissionCheckCount());
+        
+        query = new TestCountingCannedQuery(params, TotalCountStrategy.EXACT, null);
+        qr = query.execute();
+        assertEquals(new Pair<Integer, Integer>(50, 50), qr.getTotalResultCount());
+        assertEquals(Arrays.asList(0, 2, 4, 6, 8), qr.getPage());
+        assertTrue("Should have more pages/items", qr.hasMoreItems());
+        
+        query = new TestCountingCannedQuery(params, TotalCountStrategy.ESTIMATED, null);
+        qr = query.execute();
+        Pair<Integer, Integer> estimate = qr.getTotalResultCount();
+        assertEquals(Integer.valueOf(20), estimate.getFirst());
+        assertTrue("Estimate should be close to 50: " + estimate, Math.abs(estimate.getSecond() - 50) <= 2);
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            CountDownLatch countReleased = new CountDownLatch(1);
+            query = new TestCountingCannedQuery(params, TotalCountStrategy.ASYNCHRONOUS, executor);
+            query.countReleased = countReleased;
+            qr = query.execute();
+            assertEquals("The page should not wait for the count", Arrays.asList(0, 2, 4, 6, 8), qr.getPage());
+            assertEquals(new Pair<Integer, Integer>(20, null), qr.getTotalResultCount());
+            Future<Pair<Integer, Integer>> count = ((AsyncTotalCountResults) qr).getTotalResultCountFuture();
+            assertFalse(count.isDone());
+            countReleased.countDown();
+            assertEquals(new Pair<Integer, Integer>(50, 50), count.get(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
     /**
      * Test factory to generate "queries" that just return a list of <tt>String</tt>s.
      *
@@ -289,6 +850,134 @@ public class CannedQueryTest extends TestCase
         }
     }
 
+    /**
+     * Test caching factory that counts the executions of its raw queries
+     *
+     * @param <T>           the type of the results
+     */
+    private static class TestCachingCannedQueryFactory<T> extends AbstractCachingCannedQueryFactory<T>
+    {
+        private final List<T> results;
+        private int executions;
+        private String user = "user1";
+        private TestCachingCannedQueryFactory(List<T> results)
+        {
+            this.results = results;
+        }
+        
+        @Override
+        protected Object getPermissionContext()
+        {
+            return user;
+        }
+        
+        @Override
+        protected CannedQuery<T> getCannedQueryImpl(CannedQueryParameters parameters)
+        {
+            return new TestCannedQuery<T>(parameters, null, results, ANTI_RESULTS)
+            {
+                @Override
+                protected List<T> queryAndFilter(CannedQueryParameters parameters)
+                {
+                    executions++;
+                    return super.queryAndFilter(parameters);
+                }
+            };
+        }
+    }
+
+    /**
+     * Test prefetching factory that counts the executions of its raw queries
+     *
+     * @param <T>           the type of the results
+     */
+    private static class TestPrefetchingCannedQueryFactory<T> extends AbstractPrefetchingCannedQueryFactory<T>
+    {
+        private final List<T> results;
+        private final Thread testThread = Thread.currentThread();
+        private final AtomicInteger executions = new AtomicInteger();
+        /** Released when a prefetch starts and completes */
+        private final Semaphore starts = new Semaphore(0);
+        private final Semaphore completions = new Semaphore(0);
+        /** Holds prefetches back until it is opened */
+        private volatile CountDownLatch gate;
+        private volatile String user = "user1";
+        /** The query execution ID given to new queries, if not generated */
+        private volatile String executionId;
+        /** Answer with results that are not counted asynchronously */
+        private volatile boolean empty;
+        private TestPrefetchingCannedQueryFactory(List<T> results)
+        {
+            this.results = results;
+        }
+        
+        @Override
+        protected String getQueryExecutionId(CannedQueryParameters parameters)
+        {
+            return (executionId == null) ? super.getQueryExecutionId(parameters) : executionId;
+        }
+        
+        @Override
+        protected Object getPermissionContext()
+        {
+            return user;
+        }
+        
+        @Override
+        protected CannedQuery<T> getCannedQueryImpl(CannedQueryParameters parameters)
+        {
+            final boolean prefetch = (Thread.currentThread() != testThread);
+            final CannedQuery<T> query = new TestCannedQuery<T>(parameters, null, results, ANTI_RESULTS)
+            {
+                @Override
+                protected List<T> queryAndFilter(CannedQueryParameters parameters)
+                {
+                    executions.incrementAndGet();
+                    if (prefetch)
+                    {
+                        starts.release();
+                        CountDownLatch gate = TestPrefetchingCannedQueryFactory.this.gate;
+                        try
+                        {
+                            if (gate != null && !gate.await(5, TimeUnit.SECONDS))
+                            {
+                                throw new IllegalStateException("Prefetch was not released");
+                            }
+                        }
+                        catch (InterruptedException e)
+                        {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                    return super.queryAndFilter(parameters);
+                }
+            };
+            return new CannedQuery<T>()
+            {
+                @Override
+                public CannedQueryParameters getParameters()
+                {
+                    return query.getParameters();
+                }
+                
+                @Override
+                public CannedQueryResults<T> execute()
+                {
+                    if (empty)
+                    {
+                        return new EmptyCannedQueryResults<T>(this);
+                    }
+                    CannedQueryResults<T> results = query.execute();
+                    if (prefetch)
+                    {
+                        completions.release();
+                    }
+                    return results;
+                }
+            };
+        }
+    }
+
     /**
      * Test query that just returns values passed in
      *
@@ -363,4 +1052,283 @@ public class CannedQueryTest extends TestCase
             return ret;
         }
     }
+
+    /**
+     * Test query that streams the values passed in, counting the values read
+     *
+     * @param <T>           the type of the results
+     */
+    private static class TestStreamingCannedQuery<T> extends TestCannedQuery<T>
+    {
+        private final List<T> results;
+        private int read;
+        private boolean closed;
+        private TestStreamingCannedQuery(CannedQueryParameters params, List<T> results, Set<Object> antiResults)
+        {
+            super(params, null, results, antiResults);
+            this.results = results;
+        }
+        
+        @Override
+        protected boolean isStreamingQuery()
+        {
+            return true;
+        }
+        
+        @Override
+        protected boolean isApplyPostQuerySorting()
+        {
+            return false;
+        }
+        
+        @Override
+        protected Iterator<T> queryAndStream(CannedQueryParameters parameters)
+        {
+            final Iterator<T> iterator = results.iterator();
+            return new StreamingIterator<T>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return iterator.hasNext();
+                }
+                
+                @Override
+                public T next()
+                {
+                    read++;
+                    return iterator.next();
+                }
+                
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+                
+                @Override
+                public void close()
+                {
+                    closed = true;
+                }
+            };
+        }
+    }
+    
+    private interface StreamingIterator<T> extends Iterator<T>, Closeable
+    {
+    }
+
+    /**
+     * Test query in which only every 10th result is readable
+     */
+    private static class TestSparseCannedQuery extends AbstractCannedQuery<Integer>
+    {
+        private final List<Integer> results;
+        private final ExecutorService executor;
+        private final Set<String> checkedThreads = Collections.synchronizedSet(new HashSet<String>());
+        private final AtomicInteger checked = new AtomicInteger();
+        private TestSparseCannedQuery(CannedQueryParameters params, List<Integer> results, ExecutorService executor)
+        {
+            super(params);
+            this.results = results;
+            this.executor = executor;
+        }
+        
+        @Override
+        protected List<Integer> queryAndFilter(CannedQueryParameters parameters)
+        {
+            return results;
+        }
+        
+        @Override
+        protected boolean isApplyPostQueryPermissions()
+        {
+            return true;
+        }
+        
+        @Override
+        protected int getPostQueryPermissionBatchSize()
+        {
+            return 8;
+        }
+        
+        @Override
+        protected ExecutorService getPostQueryPermissionExecutor()
+        {
+            return executor;
+        }
+        
+        @Override
+        protected int getPostQueryPermissionParallelism()
+        {
+            return 4;
+        }
+        
+        @Override
+        protected boolean isPermitted(Integer result)
+        {
+            checkedThreads.add(Thread.currentThread().getName());
+            checked.incrementAndGet();
+            return result % 10 == 0;
+        }
+    }
+
+    /**
+     * Test query that sorts pairs in descending order of their first value, rejecting every 7th pair
+     */
+    private static class TestSortingCannedQuery extends AbstractCannedQuery<Pair<Integer, Integer>>
+    {
+        private static final Comparator<Pair<Integer, Integer>> COMPARATOR = new Comparator<Pair<Integer, Integer>>()
+        {
+            @Override
+            public int compare(Pair<Integer, Integer> o1, Pair<Integer, Integer> o2)
+            {
+                return o2.getFirst().compareTo(o1.getFirst());
+            }
+        };
+        
+        private final List<Pair<Integer, Integer>> results;
+        private TestSortingCannedQuery(CannedQueryParameters params, List<Pair<Integer, Integer>> results)
+        {
+            super(params);
+            this.results = results;
+        }
+        
+        @Override
+        protected List<Pair<Integer, Integer>> queryAndFilter(CannedQueryParameters parameters)
+        {
+            return results;
+        }
+        
+        @Override
+        protected boolean isApplyPostQuerySorting()
+        {
+            return true;
+        }
+        
+        @Override
+        protected Comparator<Pair<Integer, Integer>> getPostQuerySortComparator(CannedQuerySortDetails sortDetails)
+        {
+            return COMPARATOR;
+        }
+        
+        @Override
+        protected boolean isApplyPostQueryPermissions()
+        {
+            return true;
+        }
+        
+        @Override
+        protected boolean isPermitted(Pair<Integer, Integer> result)
+        {
+            return result.getSecond() % 7 != 0;
+        }
+    }
+
+    /**
+     * Test query over the sorted <tt>Long</tt> results that seeks to the cursor
+     */
+    private static class TestSeekingCannedQuery extends TestCannedQuery<Long>
+    {
+        private int read;
+        private TestSeekingCannedQuery(CannedQueryParameters params)
+        {
+            super(params, null, RESULTS_TWO, ANTI_RESULTS);
+        }
+        
+        @Override
+        protected boolean isApplyPostQuerySorting()
+        {
+            return false;
+        }
+        
+        @Override
+        protected List<Long> queryAndFilter(CannedQueryParameters parameters)
+        {
+            List<Object> cursorValues = parameters.getPageDetails().getCursorValues();
+            long after = cursorValues.isEmpty() ? -1L : (Long) cursorValues.get(0);
+            // Simulates seeking in an index
+            int start = (int) (after + 1);
+            read = RESULTS_TWO.size() - start;
+            return RESULTS_TWO.subList(start, RESULTS_TWO.size());
+        }
+        
+        @Override
+        protected boolean isCursorPagingSupported()
+        {
+            return true;
+        }
+        
+        @Override
+        protected List<? extends Object> getSortKeyValues(Long result)
+        {
+            return Collections.singletonList(result);
+        }
+    }
+
+    /**
+     * Test query over 100 integers, of which only the even ones are readable
+     */
+    private static class TestCountingCannedQuery extends AbstractCannedQuery<Integer>
+    {
+        private final TotalCountStrategy strategy;
+        private final ExecutorService executor;
+        private CountDownLatch countReleased = new CountDownLatch(0);
+        private TestCountingCannedQuery(CannedQueryParameters params, TotalCountStrategy strategy, ExecutorService executor)
+        {
+            super(params);
+            this.strategy = strategy;
+            this.executor = executor;
+        }
+        
+        @Override
+        protected List<Integer> queryAndFilter(CannedQueryParameters parameters)
+        {
+            List<Integer> results = new ArrayList<Integer>(100);
+            for (int i = 0; i < 100; i++)
+            {
+                results.add(i);
+            }
+            return results;
+        }
+        
+        @Override
+        protected boolean isApplyPostQueryPermissions()
+        {
+            return true;
+        }
+        
+        @Override
+        protected boolean isPermitted(Integer result)
+        {
+            return result % 2 == 0;
+        }
+        
+        @Override
+        protected TotalCountStrategy getTotalCountStrategy()
+        {
+            return strategy;
+        }
+        
+        @Override
+        protected ExecutorService getTotalResultCountExecutor()
+        {
+            return executor;
+        }
+        
+        @Override
+        protected int queryTotalResultCount(CannedQueryParameters parameters)
+        {
+            try
+            {
+                countReleased.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            return 50;
+        }
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.alfresco.query.CannedQuerySortDetails.SortOrder;
+import org.alfresco.util.Pair;
+
+/**
+ * Compares the time taken to get the first page of a large, post-query sorted result set when the
+ * query {@link AbstractCannedQuery#applyPostQuerySorting(List, CannedQuerySortDetails) sorts all the results}
+ * and when it provides a {@link AbstractCannedQuery#getPostQuerySortComparator(CannedQuerySortDetails) comparator}
+ * so that only the required results are put into order.
+ * <p/>
+ * This is not run as part of the unit tests.  Run it with:
+ * <pre>
+ *   java org.alfresco.query.PostQuerySortingBenchmark [resultCount] [pageSize] [iterations]
+ * </pre>
+ *
+ * @since 5.1.3
+ */
+public class PostQuerySortingBenchmark
+{
+    private static final Comparator<String> COMPARATOR = new Comparator<String>()
+    {
+        @Override
+        public int compare(String o1, String o2)
+        {
+            return o1.compareTo(o2);
+        }
+    };
+
+    public static void main(String[] args) throws Exception
+    {
+        int resultCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        Random random = new Random(42L);
+        List<String> results = new ArrayList<String>(resultCount);
+        for (int i = 0; i < resultCount; i++)
+        {
+            results.add("name-" + random.nextInt());
+        }
+
+        // Warm up
+        run(results, pageSize, iterations, false);
+        run(results, pageSize, iterations, true);
+
+        System.out.println("results\tpage\tfull sort (ms)\tselection (ms)");
+        for (int page = 1; page <= 64; page *= 4)
+        {
+            double fullSort = run(results, pageSize * page, iterations, false);
+            double selection = run(results, pageSize * page, iterations, true);
+            System.out.println(String.format("%,d\t%d\t%.2f\t\t%.2f", resultCount, pageSize * page, fullSort, selection));
+        }
+    }
+
+    /**
+     * @return              the average time in milliseconds to get a page of results
+     */
+    private static double run(List<String> results, int pageSize, int iterations, boolean selection)
+    {
+        CannedQueryPageDetails pageDetails = new CannedQueryPageDetails(0, pageSize, 1, 1);
+        CannedQuerySortDetails sortDetails = new CannedQuerySortDetails(new Pair<Object, SortOrder>("name", SortOrder.ASCENDING));
+        CannedQueryParameters parameters = new CannedQueryParameters(null, pageDetails, sortDetails, 0, null);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            CannedQueryResults<String> queryResults = new BenchmarkCannedQuery(parameters, results, selection).execute();
+            if (queryResults.getPagedResultCount() != Math.min(pageSize, results.size()))
+            {
+                throw new IllegalStateException("Unexpected page size: " + queryResults.getPagedResultCount());
+            }
+        }
+        return (System.nanoTime() - start) / 1000000.0 / iterations;
+    }
+
+    private static class BenchmarkCannedQuery extends AbstractCannedQuery<String>
+    {
+        private final List<String> results;
+        private final boolean selection;
+
+        private BenchmarkCannedQuery(CannedQueryParameters parameters, List<String> results, boolean selection)
+        {
+            super(parameters);
+            this.results = results;
+            this.selection = selection;
+        }
+
+        @Override
+        protected List<String> queryAndFilter(CannedQueryParameters parameters)
+        {
+            return results;
+        }
+
+        @Override
+        protected boolean isApplyPostQuerySorting()
+        {
+            return true;
+        }
+
+        @Override
+        protected List<String> applyPostQuerySorting(List<String> results, CannedQuerySortDetails sortDetails)
+        {
+            List<String> sorted = new ArrayList<String>(results);
+            Collections.sort(sorted, COMPARATOR);
+            return sorted;
+        }
+
+        @Override
+        protected Comparator<String> getPostQuerySortComparator(CannedQuerySortDetails sortDetails)
+        {
+            return selection ? COMPARATOR : null;
+        }
+    }
+}
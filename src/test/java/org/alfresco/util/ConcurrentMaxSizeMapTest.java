@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * @see ConcurrentMaxSizeMap
+ *
+ * @since 5.1.3
+ */
+public class ConcurrentMaxSizeMapTest extends TestCase
+{
+    public void testLeastRecentlyUsedEvicted()
+    {
+        ConcurrentMaxSizeMap<String, Integer> map = new ConcurrentMaxSizeMap<String, Integer>(3);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        map.put("d", 4);
+        assertEquals(3, map.size());
+        assertFalse("Least recently used key should be evicted", map.containsKey("b"));
+        assertTrue(map.containsKey("a"));
+        assertEquals(1, map.getEvictionCount());
+
+        assertEquals(Integer.valueOf(1), map.putIfAbsent("a", 10));
+        assertNull(map.replace("x", 5));
+        assertTrue(map.replace("a", 1, 11));
+        assertFalse(map.remove("a", 1));
+        assertTrue(map.remove("a", 11));
+        assertEquals(2, map.size());
+
+        Iterator<Map.Entry<String, Integer>> iterator = map.entrySet().iterator();
+        iterator.next();
+        iterator.remove();
+        assertEquals(1, map.size());
+        map.put("e", 5);
+        map.put("f", 6);
+        assertEquals("Removed entries should not count against the maximum", 3, map.size());
+        assertEquals(1, map.getEvictionCount());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.getWeight());
+    }
+
+    public void testWeigher()
+    {
+        ConcurrentMaxSizeMap<String, String> map = new ConcurrentMaxSizeMap<String, String>(10L, new ConcurrentMaxSizeMap.Weigher<String, String>()
+        {
+            @Override
+            public long weigh(String key, String value)
+            {
+                return value.length();
+            }
+        }, false, 1);
+        map.put("a", "aaaa");
+        map.put("b", "bbbb");
+        assertEquals(8, map.getWeight());
+        map.put("c", "cccc");
+        assertEquals(8, map.getWeight());
+        assertFalse(map.containsKey("a"));
+        map.put("b", "b");
+        assertEquals(5, map.getWeight());
+        map.put("d", "dddddddddddd");
+        assertFalse("Entries heavier than the map should be rejected", map.containsKey("d"));
+        assertEquals(1, map.getRejectionCount());
+    }
+
+    public void testHeavierUpdateStaysWithinWeight()
+    {
+        ConcurrentMaxSizeMap<String, String> map = new ConcurrentMaxSizeMap<String, String>(10L, new ConcurrentMaxSizeMap.Weigher<String, String>()
+        {
+            @Override
+            public long weigh(String key, String value)
+            {
+                return value.length();
+            }
+        }, false, 1);
+        map.put("a", "aaa");
+        map.put("b", "bbb");
+        map.put("c", "ccc");
+        // The oldest key is made heavier, so other entries have to be evicted for it
+        map.put("a", "aaaaaaa");
+        assertEquals("aaaaaaa", map.get("a"));
+        assertTrue("Weight should stay within the maximum: " + map.getWeight(), map.getWeight() <= 10);
+        assertFalse(map.containsKey("b"));
+        assertTrue(map.containsKey("c"));
+        assertEquals(1, map.getEvictionCount());
+    }
+
+    public void testRejectedKeyEvictsNothing()
+    {
+        ConcurrentMaxSizeMap<String, String> map = new ConcurrentMaxSizeMap<String, String>(4L, new ConcurrentMaxSizeMap.Weigher<String, String>()
+        {
+            @Override
+            public long weigh(String key, String value)
+            {
+                return value.length();
+            }
+        }, true, 1);
+        map.put("a", "a");
+        map.put("b", "bbb");
+        // "c" is used more often than "a" but less often than "b", and needs both of them evicted
+        for (int i = 0; i < 10; i++)
+        {
+            map.get("b");
+        }
+        for (int i = 0; i < 3; i++)
+        {
+            map.get("c");
+        }
+        map.put("c", "cccc");
+        assertFalse(map.containsKey("c"));
+        assertTrue("No entry should be evicted for a key that is not admitted", map.containsKey("a"));
+        assertTrue(map.containsKey("b"));
+        assertEquals(0, map.getEvictionCount());
+        assertEquals(1, map.getRejectionCount());
+    }
+
+    public void testFrequentKeysSurviveScan()
+    {
+        ConcurrentMaxSizeMap<Integer, Integer> lru = new ConcurrentMaxSizeMap<Integer, Integer>(100L, null, false, 1);
+        ConcurrentMaxSizeMap<Integer, Integer> admitting = new ConcurrentMaxSizeMap<Integer, Integer>(100L, null, true, 1);
+        for (ConcurrentMaxSizeMap<Integer, Integer> map : Arrays.asList(lru, admitting))
+        {
+            // Hot keys are read repeatedly, interleaved with a scan of keys that are each used once
+            for (int i = 0; i < 5000; i++)
+            {
+                int hot = i % 80;
+                if (map.get(hot) == null)
+                {
+                    map.put(hot, hot);
+                }
+                int cold = 1000 + i;
+                if (map.get(cold) == null)
+                {
+                    map.put(cold, cold);
+                }
+            }
+        }
+        assertTrue("Admission should improve the hit rate: " + lru.getHitRate() + " vs " + admitting.getHitRate(),
+                admitting.getHitRate() > lru.getHitRate() + 0.2);
+        assertTrue(admitting.getRejectionCount() > 0);
+        assertEquals(0, lru.getRejectionCount());
+    }
+
+    public void testConcurrentAccess() throws Exception
+    {
+        final ConcurrentMaxSizeMap<Integer, Integer> map = new ConcurrentMaxSizeMap<Integer, Integer>(200L, null, true, 8);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++)
+        {
+            final int seed = t;
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 20000; i++)
+                        {
+                            Integer key = random.nextInt(1000);
+                            Integer value = map.get(key);
+                            if (value == null)
+                            {
+                                map.put(key, key);
+                            }
+                            else if (!value.equals(key))
+                            {
+                                throw new IllegalStateException("Wrong value for " + key + ": " + value);
+                            }
+                            if (i % 100 == 0)
+                            {
+                                map.remove(key);
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.set(e);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads)
+        {
+            thread.join(30000L);
+        }
+        assertNull(failure.get());
+        assertTrue("Size should be bounded: " + map.size(), map.size() <= 200);
+        assertEquals(map.size(), map.getWeight());
+        assertEquals(8 * 20000, map.getHitCount() + map.getMissCount());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @see KeyedExpiringValueCache
+ *
+ * @since 5.1.3
+ */
+public class KeyedExpiringValueCacheTest extends TestCase
+{
+    private CountingLoader loader;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        loader = new CountingLoader();
+    }
+
+    public void testLoadAndExpire() throws Exception
+    {
+        KeyedExpiringValueCache<String, String> cache = new KeyedExpiringValueCache<String, String>(loader, 100L);
+        assertEquals("a-1", cache.get("a"));
+        assertEquals("a-1", cache.get("a"));
+        assertEquals("b-2", cache.get("b"));
+        assertEquals(2, loader.loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        Thread.sleep(150L);
+        assertNull("Expired value should not be returned", cache.getIfPresent("a"));
+        assertEquals("a-3", cache.get("a"));
+
+        cache.invalidate("a");
+        assertNull(cache.getIfPresent("a"));
+        cache.put("a", "x");
+        assertEquals("x", cache.get("a"));
+    }
+
+    public void testConcurrentMissesShareOneLoad() throws Exception
+    {
+        final KeyedExpiringValueCache<String, String> cache = new KeyedExpiringValueCache<String, String>(loader);
+        loader.delay = 200L;
+        int threadCount = 10;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> values = new ArrayList<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++)
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        String value = cache.get("a");
+                        synchronized (values)
+                        {
+                            values.add(value);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Leave the value out
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join(5000L);
+        }
+        assertEquals(threadCount, values.size());
+        for (String value : values)
+        {
+            assertEquals("a-1", value);
+        }
+        assertEquals("Concurrent misses should share one load", 1, loader.loads.get());
+        assertEquals(threadCount - 1, cache.getSharedLoadCount());
+    }
+
+    public void testLoadFailureIsNotCached() throws Exception
+    {
+        KeyedExpiringValueCache<String, String> cache = new KeyedExpiringValueCache<String, String>(loader);
+        loader.fail = true;
+        try
+        {
+            cache.get("a");
+            fail("Load failure should be passed to the caller");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected
+        }
+        loader.fail = false;
+        assertEquals("a-2", cache.get("a"));
+    }
+
+    public void testRefreshAhead() throws Exception
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            KeyedExpiringValueCache<String, String> cache = new KeyedExpiringValueCache<String, String>(loader, 400L);
+            cache.setRefreshAfterWrite(100L);
+            cache.setRefreshExecutor(executor);
+            assertEquals("a-1", cache.get("a"));
+            Thread.sleep(150L);
+            assertEquals("Old value should be served while refreshing", "a-1", cache.get("a"));
+            long end = System.currentTimeMillis() + 5000L;
+            while (loader.loads.get() < 2 && System.currentTimeMillis() < end)
+            {
+                Thread.sleep(10L);
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals("a-2", cache.getIfPresent("a"));
+            assertEquals(1, cache.getRefreshCount());
+            assertEquals(2, cache.getMissCount() + cache.getHitCount());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testMaxSize() throws Exception
+    {
+        KeyedExpiringValueCache<String, String> cache = new KeyedExpiringValueCache<String, String>(loader);
+        cache.setMaxSize(3);
+        for (int i = 0; i < 10; i++)
+        {
+            cache.get("k" + i);
+        }
+        assertEquals(3, cache.size());
+        assertNotNull("Latest keys should be kept", cache.getIfPresent("k7"));
+        assertNull("Earliest keys should be evicted", cache.getIfPresent("k6"));
+        assertEquals(7, cache.getEvictionCount());
+
+        for (int i = 0; i < 20; i++)
+        {
+            cache.invalidate("k9");
+            cache.get("k9");
+        }
+        assertEquals(3, cache.size());
+        assertNotNull("Reloading a key should not evict others", cache.getIfPresent("k7"));
+        assertEquals(7, cache.getEvictionCount());
+    }
+
+    /**
+     * Loads values of the form <tt>key-loadNumber</tt>
+     */
+    private static class CountingLoader implements KeyedExpiringValueCache.Loader<String, String>
+    {
+        private final AtomicInteger loads = new AtomicInteger();
+        private volatile long delay = 0L;
+        private volatile boolean fail = false;
+
+        @Override
+        public String load(String key) throws Exception
+        {
+            int count = loads.incrementAndGet();
+            if (delay > 0)
+            {
+                Thread.sleep(delay);
+            }
+            if (fail)
+            {
+                throw new IllegalStateException("Load failed");
+            }
+            return key + "-" + count;
+        }
+    }
+}
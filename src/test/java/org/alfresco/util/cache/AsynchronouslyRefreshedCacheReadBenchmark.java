@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the read throughput of {@link AbstractAsynchronouslyRefreshedCache#get(String) cache hits}
+ * as the number of reading threads grows.  With a lock-free read path the throughput should scale
+ * with the number of available cores.
+ * <p/>
+ * This is not run as part of the unit tests.  Run it with:
+ * <pre>
+ *   java org.alfresco.util.cache.AsynchronouslyRefreshedCacheReadBenchmark [maxThreads] [secondsPerRun]
+ * </pre>
+ *
+ * @since 5.1.3
+ */
+public class AsynchronouslyRefreshedCacheReadBenchmark
+{
+    private static final int KEY_COUNT = 300;
+
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        try
+        {
+            BenchmarkCache cache = new BenchmarkCache();
+            cache.setBeanName("benchmark.cache");
+            cache.setThreadPoolExecutor(threadPoolExecutor);
+            cache.setRegistry(new DefaultAsynchronouslyRefreshedCacheRegistry());
+            cache.afterPropertiesSet();
+            final String[] keys = new String[KEY_COUNT];
+            for (int i = 0; i < KEY_COUNT; i++)
+            {
+                keys[i] = "tenant" + i;
+                cache.get(keys[i]);
+            }
+
+            // Warm up
+            run(cache, keys, maxThreads, 1);
+
+            System.out.println("threads\tops/s\t\tscaling");
+            double single = 0;
+            for (int threads = 1; threads <= maxThreads; threads *= 2)
+            {
+                double opsPerSecond = run(cache, keys, threads, seconds);
+                if (threads == 1)
+                {
+                    single = opsPerSecond;
+                }
+                System.out.println(String.format("%d\t%,.0f\t%.2fx", threads, opsPerSecond, opsPerSecond / single));
+            }
+        }
+        finally
+        {
+            threadPoolExecutor.shutdownNow();
+        }
+    }
+
+    private static double run(final BenchmarkCache cache, final String[] keys, int threads, int seconds) throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong total = new AtomicLong();
+        final long durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] readers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t;
+            readers[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    long count = 0;
+                    long end = System.nanoTime() + durationNanos;
+                    int i = offset;
+                    int sink = 0;
+                    while (System.nanoTime() < end)
+                    {
+                        for (int batch = 0; batch < 1000; batch++)
+                        {
+                            sink += cache.get(keys[i++ % KEY_COUNT]).length();
+                        }
+                        count += 1000;
+                    }
+                    total.addAndGet(count + (sink == 42 ? 1 : 0));
+                }
+            };
+            readers[t].start();
+        }
+        start.countDown();
+        for (Thread reader : readers)
+        {
+            reader.join();
+        }
+        return total.get() / (double) seconds;
+    }
+
+    private static class BenchmarkCache extends AbstractAsynchronouslyRefreshedCache<String>
+    {
+        @Override
+        protected String buildCache(String key)
+        {
+            return "value-" + key;
+        }
+    }
+}
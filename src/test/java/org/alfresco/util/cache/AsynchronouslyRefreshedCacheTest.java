@@ -0,0 +1,862 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.util.cache.AbstractAsynchronouslyRefreshedCache.RefreshPriority;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Tests the {@link AbstractAsynchronouslyRefreshedCache} build scheduling.
+ *
+ * @since 5.1.3
+ */
+public class AsynchronouslyRefreshedCacheTest extends TestCase
+{
+    private ThreadPoolExecutor threadPoolExecutor;
+    private DefaultAsynchronouslyRefreshedCacheRegistry registry;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        threadPoolExecutor = new ThreadPoolExecutor(8, 8, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        registry = new DefaultAsynchronouslyRefreshedCacheRegistry();
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        threadPoolExecutor.shutdownNow();
+    }
+
+    private TestCache newCache(String cacheId, int refreshParallelism) throws Exception
+    {
+        TestCache cache = new TestCache();
+        cache.setBeanName(cacheId);
+        cache.setThreadPoolExecutor(threadPoolExecutor);
+        cache.setRegistry(registry);
+        cache.setRefreshParallelism(refreshParallelism);
+        cache.afterPropertiesSet();
+        return cache;
+    }
+
+    public void testGetBuildsOnMiss() throws Exception
+    {
+        TestCache cache = newCache("test.cache.miss", 1);
+        assertEquals("a-1", cache.get("a"));
+        assertEquals("Value should come from the cache", "a-1", cache.get("a"));
+        assertEquals(1, cache.getBuildCount("a"));
+    }
+
+    public void testDifferentKeysBuildConcurrently() throws Exception
+    {
+        final int keyCount = 4;
+        TestCache cache = newCache("test.cache.parallel", keyCount);
+        cache.rendezvous = new CountDownLatch(keyCount);
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < keyCount; i++)
+        {
+            final String key = "k" + i;
+            final TestCache readCache = cache;
+            Thread reader = new Thread()
+            {
+                public void run()
+                {
+                    readCache.get(key);
+                }
+            };
+            readers.add(reader);
+            reader.start();
+        }
+        for (Thread reader : readers)
+        {
+            reader.join(10000L);
+            assertFalse("Builds did not run concurrently", reader.isAlive());
+        }
+        assertEquals("Concurrent builds should have met", 0, cache.rendezvous.getCount());
+        assertEquals(keyCount, cache.maxConcurrentBuilds.get());
+    }
+
+    public void testSameKeyNeverBuildsConcurrently() throws Exception
+    {
+        TestCache cache = newCache("test.cache.samekey", 4);
+        cache.get("a");
+        for (int i = 0; i < 20; i++)
+        {
+            cache.refresh("a");
+        }
+        waitForIdle(cache, "a");
+        assertFalse("Same key was built concurrently", cache.sameKeyOverlap);
+    }
+
+    public void testGetAsync() throws Exception
+    {
+        TestCache cache = newCache("test.cache.async", 1);
+        cache.rendezvous = new CountDownLatch(2);
+
+        RefreshableCacheFuture<String> future = cache.getAsync("a");
+        final CountDownLatch notified = new CountDownLatch(1);
+        future.addListener(new Runnable()
+        {
+            public void run()
+            {
+                notified.countDown();
+            }
+        }, RefreshableCacheFuture.DIRECT_EXECUTOR);
+        assertFalse("Build should still be running", future.isDone());
+
+        // Cancelling one caller's future does not affect the build
+        RefreshableCacheFuture<String> cancelled = cache.getAsync("a");
+        assertTrue(cancelled.cancel(true));
+
+        cache.rendezvous.countDown();
+        assertEquals("a-1", future.get(10, TimeUnit.SECONDS));
+        assertTrue("Listener should have been notified", notified.await(10, TimeUnit.SECONDS));
+        assertTrue("Cached value should be returned immediately", cache.getAsync("a").isDone());
+        assertEquals("a-1", cache.getAsync("a").get());
+    }
+
+    public void testGetIsInterruptible() throws Exception
+    {
+        final TestCache cache = newCache("test.cache.interrupt", 1);
+        cache.rendezvous = new CountDownLatch(2);
+
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>();
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    cache.get("a");
+                }
+                catch (Throwable e)
+                {
+                    thrown.set(e);
+                    interrupted.set(Thread.currentThread().isInterrupted());
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100L);
+        reader.interrupt();
+        reader.join(10000L);
+        assertFalse("Reader should have been released", reader.isAlive());
+        assertTrue("Expected failure on interrupt", thrown.get() instanceof AlfrescoRuntimeException);
+        assertEquals("Interrupt status should be preserved", Boolean.TRUE, interrupted.get());
+
+        cache.rendezvous.countDown();
+        assertEquals("a-1", cache.get("a"));
+    }
+
+    public void testStaleValueServedUntilMaxStaleness() throws Exception
+    {
+        final TestCache cache = newCache("test.cache.stale", 1);
+        cache.setMaxStaleness(200L);
+        RefreshableCacheEntry<String> first = cache.getEntry("a");
+        assertEquals("a-1", first.getValue());
+        assertFalse(first.isStale());
+
+        // Hold up the rebuild
+        cache.rendezvous = new CountDownLatch(2);
+        cache.refresh("a");
+        RefreshableCacheEntry<String> stale = cache.getEntry("a");
+        assertEquals("Previous value should be served during the refresh", "a-1", stale.getValue());
+        assertTrue("Entry should be reported as stale", stale.isStale());
+        assertEquals(first.getVersion(), stale.getVersion());
+
+        Thread.sleep(300L);
+        final AtomicReference<RefreshableCacheEntry<String>> read = new AtomicReference<RefreshableCacheEntry<String>>();
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                read.set(cache.getEntry("a"));
+            }
+        };
+        reader.start();
+        reader.join(200L);
+        assertTrue("Reader should block once the value is too stale", reader.isAlive());
+
+        cache.rendezvous.countDown();
+        reader.join(10000L);
+        assertEquals("a-2", read.get().getValue());
+        assertFalse(read.get().isStale());
+        assertTrue("Rebuilt value should have a later version", read.get().getVersion() > first.getVersion());
+    }
+
+    public void testReaderGivenTheValueItWaitedFor() throws Exception
+    {
+        final TestCache cache = newCache("test.cache.waited", 1);
+        cache.setMaxStaleness(0L);
+        CountDownLatch firstBuild = new CountDownLatch(1);
+        cache.gate = firstBuild;
+        final AtomicReference<RefreshableCacheEntry<String>> read = new AtomicReference<RefreshableCacheEntry<String>>();
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                read.set(cache.getEntry("a"));
+            }
+        };
+        reader.start();
+        long end = System.currentTimeMillis() + 10000L;
+        while (cache.buildOrder.isEmpty() && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+
+        // Make the value stale before it is even read and hold up the next build
+        cache.refresh("a");
+        Thread.sleep(20L);
+        cache.gate = new CountDownLatch(1);
+        firstBuild.countDown();
+        reader.join(3000L);
+        assertFalse("Reader should not wait for a second build", reader.isAlive());
+        assertEquals("a-1", read.get().getValue());
+        assertTrue(read.get().isStale());
+
+        cache.gate.countDown();
+        waitForIdle(cache, "a");
+        assertEquals("a-2", cache.get("a"));
+    }
+
+    public void testDeltaAppliedWithFullRebuildFallback() throws Exception
+    {
+        TestCache cache = newCache("test.cache.delta", 1);
+        assertEquals("a-1", cache.get("a"));
+
+        cache.refresh("a", "x");
+        waitForIdle(cache, "a");
+        assertEquals("Delta should have been applied", "a-1+x", cache.get("a"));
+
+        cache.refresh("a", "fail");
+        waitForIdle(cache, "a");
+        assertEquals("Failed delta should fall back to a full rebuild", "a-2", cache.get("a"));
+
+        cache.refresh("a");
+        waitForIdle(cache, "a");
+        assertEquals("Refresh without a change should rebuild in full", "a-3", cache.get("a"));
+        assertEquals(3, cache.getBuildCount("a"));
+    }
+
+    public void testTransactionOverlay() throws Exception
+    {
+        TestCache cache = newCache("test.cache.overlay", 1);
+        assertEquals("a-1", cache.get("a"));
+        assertEquals("b-1", cache.get("b"));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try
+        {
+            cache.refresh("a", "x");
+            cache.forceInChangesForThisUncommittedTransaction("a");
+            assertEquals("Transaction should see its changes", "a-1+x", cache.get("a"));
+            assertEquals("a-1+x", cache.getEntry("a").getValue());
+            assertEquals("a-1+x", cache.getAsync("a").get());
+            assertEquals("Changes should be applied as a delta", 1, cache.getBuildCount("a"));
+            assertEquals("Other threads should not see uncommitted changes", "a-1", getInOtherThread(cache, "a"));
+
+            cache.forceInChangesForThisUncommittedTransaction("b");
+            assertEquals("Value without a delta should only be built when read", 1, cache.getBuildCount("b"));
+            assertEquals("b-2", cache.get("b"));
+            assertFalse(cache.getEntry("b").isStale());
+            assertEquals("Other threads should not see uncommitted changes", "b-1", getInOtherThread(cache, "b"));
+            completeTransaction(true);
+        }
+        finally
+        {
+            TransactionSynchronizationManager.clear();
+        }
+        assertEquals("Overlay should be merged on commit", "a-1+x", getInOtherThread(cache, "a"));
+        waitForIdle(cache, "a");
+        waitForIdle(cache, "b");
+        assertEquals("a-1+x", cache.get("a"));
+        assertEquals(1, cache.getBuildCount("a"));
+        assertEquals("Undescribed changes should be rebuilt after the commit", "b-3", cache.get("b"));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try
+        {
+            cache.refresh("a", "y");
+            cache.forceInChangesForThisUncommittedTransaction("a");
+            assertEquals("a-1+x+y", cache.get("a"));
+            completeTransaction(false);
+        }
+        finally
+        {
+            TransactionSynchronizationManager.clear();
+        }
+        assertEquals("Overlay should be discarded on rollback", "a-1+x", cache.get("a"));
+        assertTrue(cache.isUpToDate("a"));
+    }
+
+    public void testTransactionOverlayWithoutDelta() throws Exception
+    {
+        TestCache cache = newCache("test.cache.overlay.nodelta", 1);
+        cache.deltas = false;
+        assertEquals("a-1", cache.get("a"));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try
+        {
+            cache.refresh("a", "x");
+            cache.forceInChangesForThisUncommittedTransaction("a");
+            assertEquals("Value should only be built when read", 1, cache.getBuildCount("a"));
+            assertEquals("Transaction should see its changes", "a-2", cache.get("a"));
+            assertEquals("a-2", cache.getEntry("a").getValue());
+            assertEquals("a-2", cache.getAsync("a").get());
+            assertEquals("Overlay should be built once", 2, cache.getBuildCount("a"));
+            assertEquals("Other threads should not see uncommitted changes", "a-1", getInOtherThread(cache, "a"));
+
+            cache.forceInChangesForThisUncommittedTransaction("c");
+            assertEquals("Key without a shared value should be built in the transaction", "c-1", cache.get("c"));
+            assertEquals("Overlay should not be put into the cache", 1, cache.getEntryCount());
+            completeTransaction(true);
+        }
+        finally
+        {
+            TransactionSynchronizationManager.clear();
+        }
+        waitForIdle(cache, "a");
+        assertEquals("Changes should be rebuilt after the commit", "a-3", cache.get("a"));
+    }
+
+    /**
+     * Run the completion callbacks of the transaction bound to the current thread
+     */
+    private void completeTransaction(boolean commit)
+    {
+        List<TransactionSynchronization> synchronizations = new ArrayList<TransactionSynchronization>(TransactionSynchronizationManager.getSynchronizations());
+        for (TransactionSynchronization synchronization : synchronizations)
+        {
+            if (commit)
+            {
+                synchronization.beforeCommit(false);
+            }
+            synchronization.beforeCompletion();
+        }
+        for (TransactionSynchronization synchronization : synchronizations)
+        {
+            if (commit)
+            {
+                synchronization.afterCommit();
+            }
+            synchronization.afterCompletion(commit ? TransactionSynchronization.STATUS_COMMITTED : TransactionSynchronization.STATUS_ROLLED_BACK);
+        }
+    }
+
+    private String getInOtherThread(final TestCache cache, final String key) throws InterruptedException
+    {
+        final AtomicReference<String> value = new AtomicReference<String>();
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                value.set(cache.get(key));
+            }
+        };
+        thread.start();
+        thread.join(10000L);
+        return value.get();
+    }
+
+    public void testRefreshesCoalescedWithinWindow() throws Exception
+    {
+        TestCache cache = newCache("test.cache.coalesce", 1);
+        cache.setCoalesceWindow(200L);
+        assertEquals("Readers should not wait for the window", "a-1", cache.get("a"));
+
+        for (int i = 0; i < 10; i++)
+        {
+            cache.refresh("a");
+        }
+        Thread.sleep(50L);
+        assertEquals("Refresh should be held back by the window", 1, cache.getBuildCount("a"));
+        assertEquals(9, cache.getCoalescedRefreshCount());
+
+        waitForIdle(cache, "a");
+        assertEquals("a-2", cache.get("a"));
+        assertEquals("Refreshes should have been built once", 2, cache.getBuildCount("a"));
+
+        cache.refresh("a", "x");
+        cache.refresh("a");
+        cache.refresh("a", "y");
+        waitForIdle(cache, "a");
+        assertEquals("a-3", cache.get("a"));
+        assertEquals("Changes superseded by a full rebuild should be dropped", 2, cache.getDroppedChangeCount());
+    }
+
+    public void testStatistics() throws Exception
+    {
+        MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        registry.setMBeanServer(mbeanServer);
+        TestCache cache = newCache("test.cache.statistics", 1);
+        cache.setCountHits(true);
+        AsynchronouslyRefreshedCacheMXBean statistics = cache.getStatistics();
+
+        cache.get("a");
+        cache.get("a");
+        cache.getEntry("a");
+        cache.failures.set(1);
+        assertEquals("Failed build should be retried", "b-1", cache.get("b"));
+
+        assertEquals(2, statistics.getHitCount());
+        assertEquals(2, statistics.getMissCount());
+        assertEquals(2, statistics.getWaitCount());
+        assertEquals(0, statistics.getBlockedWaiters());
+        assertEquals(2, statistics.getBuildCount());
+        assertEquals(1, statistics.getBuildFailureCount());
+        assertEquals(1, statistics.getRetryCount());
+        assertEquals(0, statistics.getQueueDepth());
+        long builds = 0;
+        for (long count : statistics.getBuildTimeHistogram())
+        {
+            builds += count;
+        }
+        assertEquals(2, builds);
+        RefreshableCacheKeyStatistics keyStatistics = cache.getStatistics().getKeyStatistics("a");
+        assertEquals(2, keyStatistics.getHitCount());
+        assertEquals(1, keyStatistics.getMissCount());
+        assertEquals(2, statistics.getKeyStatistics().size());
+
+        ObjectName name = DefaultAsynchronouslyRefreshedCacheRegistry.getMBeanName("test.cache.statistics");
+        assertEquals(Long.valueOf(2), mbeanServer.getAttribute(name, "HitCount"));
+        assertEquals(Long.valueOf(1), mbeanServer.getAttribute(name, "BuildFailureCount"));
+        mbeanServer.invoke(name, "resetStatistics", new Object[0], new String[0]);
+        assertEquals(0, statistics.getHitCount());
+        registry.destroy();
+        assertFalse(mbeanServer.isRegistered(name));
+    }
+
+    public void testFailingBuildsBackOffAndFailFast() throws Exception
+    {
+        TestCache cache = newCache("test.cache.backoff", 2);
+        cache.setRetryDelay(50L);
+        cache.setMaxRetryDelay(400L);
+        cache.setFailureThreshold(3);
+        cache.failures.set(1000);
+        try
+        {
+            cache.get("x");
+            fail("Readers should fail once the circuit is open");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            // Expected
+        }
+        assertEquals(3, cache.getStatistics().getBuildFailureCount());
+        assertEquals(1, cache.getOpenCircuitCount());
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            cache.get("x");
+            fail("Circuit should still be open");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            assertTrue("Reader should fail fast", System.currentTimeMillis() - start < 50L);
+        }
+        assertEquals(1, cache.getRejectedReadCount());
+        try
+        {
+            cache.getAsync("x").get();
+            fail("Circuit should still be open");
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+        assertEquals(2, cache.getStatistics().getRejectedReadCount());
+
+        Thread.sleep(500L);
+        long attempts = cache.getStatistics().getBuildFailureCount();
+        assertTrue("Retries should back off, not loop: " + attempts, attempts <= 6);
+        assertEquals(attempts, cache.getStatistics().getRetryCount());
+
+        cache.failures.set(0);
+        long end = System.currentTimeMillis() + 10000L;
+        while (cache.getOpenCircuitCount() > 0 && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals("Circuit should close after a successful retry", 0, cache.getOpenCircuitCount());
+        assertEquals("x-1", cache.get("x"));
+    }
+
+    public void testIdleKeysEvicted() throws Exception
+    {
+        TestCache cache = newCache("test.cache.evict", 1);
+        cache.setMaxEntries(2);
+        cache.get("a");
+        Thread.sleep(5L);
+        cache.get("b");
+        Thread.sleep(5L);
+        cache.get("a");
+        Thread.sleep(5L);
+
+        cache.get("c");
+        assertEquals(2, cache.getEntryCount());
+        assertEquals("Least recently read key should be evicted", 1, cache.getEvictionCount());
+        assertNull("Statistics of evicted keys should be dropped", cache.getStatistics().getKeyStatistics("b"));
+        assertEquals(2, cache.getStatistics().getKeyStatistics().size());
+        assertEquals("Counts of evicted keys should be kept in the totals", 3, cache.getStatistics().getMissCount());
+        assertEquals("a-1", cache.get("a"));
+
+        cache.refresh("b");
+        assertEquals("Refresh of an evicted key should be ignored", 1, cache.getSkippedRefreshCount());
+        assertEquals(1, cache.getBuildCount("b"));
+        assertEquals("Evicted key should be rebuilt on demand", "b-2", cache.get("b"));
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(2, cache.getStatistics().getEvictionCount());
+    }
+
+    public void testWeightLimit() throws Exception
+    {
+        TestCache cache = newCache("test.cache.weight", 1);
+        cache.setMaxWeight(14L);
+        cache.get("aaaa");
+        Thread.sleep(5L);
+        cache.get("bbbb");
+        assertEquals(12, cache.getWeight());
+        Thread.sleep(5L);
+        cache.get("cccc");
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(12, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    public void testWarmUp() throws Exception
+    {
+        TestCache cache = newCache("test.cache.warmup", 4);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 20; i++)
+        {
+            keys.add("k" + i);
+        }
+        cache.setWarmUpKeys(keys);
+        cache.setWarmUpParallelism(3);
+        cache.get("k0");
+        assertFalse(cache.isWarm());
+        assertEquals(-1L, cache.getWarmUpTime());
+
+        assertTrue("Registry should report the caches as warm", registry.awaitWarmUp(10000L));
+        assertTrue(cache.isWarm());
+        assertTrue(cache.getWarmUpTime() >= 0);
+        assertEquals(cache.getWarmUpTime(), cache.getStatistics().getWarmUpTime());
+        assertTrue("Warm-up builds should be bounded", cache.maxConcurrentBuilds.get() <= 3);
+        for (String key : keys)
+        {
+            assertEquals("Each key should be built once", 1, cache.getBuildCount(key));
+        }
+        assertSame("Warm-up should only run once", cache.warmUp(), cache.warmUp());
+        assertEquals("Warm-up builds are not reader misses", 1, cache.getStatistics().getMissCount());
+    }
+
+    public void testRestartFromSnapshot() throws Exception
+    {
+        File file = File.createTempFile("AsynchronouslyRefreshedCacheTest", ".snapshot");
+        file.deleteOnExit();
+        file.delete();
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 50; i++)
+        {
+            keys.add("k" + i);
+        }
+
+        FileRefreshableCacheSnapshotStore store = new FileRefreshableCacheSnapshotStore(file);
+        store.open();
+        TestCache cache = newCache("test.cache.snapshot1", 4);
+        cache.setSnapshotStore(store);
+        cache.watermark = 5L;
+        for (String key : keys)
+        {
+            cache.get(key);
+        }
+        store.close();
+
+        // Restart: values are served from the snapshot without waiting for the slow builds
+        store = new FileRefreshableCacheSnapshotStore(file);
+        store.open();
+        assertEquals(keys.size(), store.getKeys().size());
+        TestCache restarted = newCache("test.cache.snapshot2", 4);
+        restarted.setSnapshotStore(store);
+        restarted.watermark = 5L;
+        restarted.buildDelay = 100L;
+        long start = System.currentTimeMillis();
+        for (String key : keys)
+        {
+            assertEquals(key + "-1", restarted.get(key));
+        }
+        assertTrue("Snapshots should be served without building", System.currentTimeMillis() - start < keys.size() * restarted.buildDelay / 4);
+        assertEquals(keys.size(), restarted.getSnapshotLoadCount());
+        for (String key : keys)
+        {
+            waitForIdle(restarted, key);
+            assertEquals("Current snapshots should not be rebuilt", 0, restarted.getBuildCount(key));
+        }
+        assertEquals(keys.size(), restarted.getRevalidatedCount());
+
+        // A snapshot older than the source data is served and then rebuilt in the background
+        TestCache changed = newCache("test.cache.snapshot3", 4);
+        changed.setSnapshotStore(store);
+        changed.watermark = 6L;
+        assertEquals("k0-1", changed.get("k0"));
+        waitForIdle(changed, "k0");
+        assertEquals(1, changed.getBuildCount("k0"));
+        assertEquals(0, changed.getRevalidatedCount());
+        assertEquals(Long.valueOf(6L), store.load("k0").getSecond());
+
+        store.remove("k1");
+        assertNull(store.load("k1"));
+        store.close();
+        store.open();
+        assertEquals(keys.size() - 1, store.getKeys().size());
+        assertEquals("k0-1", store.load("k0").getFirst());
+        store.close();
+        file.delete();
+    }
+
+    public void testSnapshotStoreCompactedWhileOpen() throws Exception
+    {
+        File file = File.createTempFile("AsynchronouslyRefreshedCacheTest", ".snapshot");
+        file.deleteOnExit();
+        file.delete();
+        char[] padding = new char[1024];
+        Arrays.fill(padding, 'x');
+
+        // Rewriting the same keys must not grow the file without bound
+        FileRefreshableCacheSnapshotStore store = new FileRefreshableCacheSnapshotStore(file);
+        store.open();
+        for (int i = 0; i < 1000; i++)
+        {
+            store.save("k" + (i % 4), new String(padding) + i, i);
+        }
+        assertTrue("Superseded records should be compacted away: " + file.length(), file.length() < 128 * 1024);
+        assertFalse(new File(file.getPath() + ".compact").exists());
+        assertEquals(new String(padding) + 999, store.load("k3").getFirst());
+        assertEquals(Long.valueOf(996L), store.load("k0").getSecond());
+
+        store.close();
+        store.open();
+        assertEquals(4, store.getKeys().size());
+        assertEquals(new String(padding) + 998, store.load("k2").getFirst());
+        store.close();
+        file.delete();
+    }
+
+    public void testBlockedReadersRefreshedFirst() throws Exception
+    {
+        final TestCache cache = newCache("test.cache.priority", 1);
+        cache.setRecentReadWindow(60000L);
+        cache.get("hot");
+        CountDownLatch gate = new CountDownLatch(1);
+        cache.gate = gate;
+        cache.refresh("blocker");
+        long end = System.currentTimeMillis() + 10000L;
+        while (cache.getRunningBuilds() == 0 && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, cache.getRunningBuilds());
+
+        // Queued behind the running build: two background refreshes, a recently read key and a blocked reader
+        cache.refresh("idle1");
+        cache.refresh("idle2");
+        cache.refresh("hot");
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                cache.get("cold");
+            }
+        };
+        reader.start();
+        while (cache.getStatistics().getBlockedWaiters() == 0 && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(1, cache.getStatistics().getBlockedWaiters());
+        gate.countDown();
+        reader.join(10000L);
+        for (String key : Arrays.asList("blocker", "cold", "hot", "idle1", "idle2"))
+        {
+            waitForIdle(cache, key);
+        }
+        assertEquals(Arrays.asList("hot", "blocker", "cold", "hot", "idle1", "idle2"), cache.buildOrder);
+
+        assertEquals(1, cache.getQueueWaitCount(RefreshPriority.RECENTLY_READ));
+        assertTrue(cache.getQueueWaitCount(RefreshPriority.BLOCKED_READER) >= 1);
+        long started = 0;
+        for (long count : cache.getStatistics().getQueueWaitCounts())
+        {
+            started += count;
+        }
+        assertEquals(6, started);
+        assertEquals(RefreshPriority.values().length, cache.getStatistics().getMaxQueueWaitTimes().length);
+        cache.getStatistics().resetStatistics();
+        assertEquals(0, cache.getQueueWaitCount(RefreshPriority.RECENTLY_READ));
+    }
+
+    private void waitForIdle(TestCache cache, String key) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + 10000L;
+        while (!cache.isUpToDate(key) && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+        assertTrue("Cache did not finish refreshing", cache.isUpToDate(key));
+    }
+
+    /**
+     * Cache that builds values of the form <tt>key-buildCount</tt>
+     */
+    private static class TestCache extends AbstractAsynchronouslyRefreshedCache<String>
+    {
+        private final ConcurrentHashMap<String, AtomicInteger> buildCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        private final ConcurrentHashMap<String, Boolean> building = new ConcurrentHashMap<String, Boolean>();
+        private final AtomicInteger concurrentBuilds = new AtomicInteger();
+        private final AtomicInteger maxConcurrentBuilds = new AtomicInteger();
+        private volatile CountDownLatch rendezvous;
+        private volatile boolean sameKeyOverlap;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long watermark = -1L;
+        private volatile long buildDelay = 0L;
+        private volatile CountDownLatch gate;
+        private volatile boolean deltas = true;
+        private final List<String> buildOrder = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected String buildCache(String key)
+        {
+            if (building.putIfAbsent(key, Boolean.TRUE) != null)
+            {
+                sameKeyOverlap = true;
+            }
+            int concurrent = concurrentBuilds.incrementAndGet();
+            try
+            {
+                synchronized (maxConcurrentBuilds)
+                {
+                    maxConcurrentBuilds.set(Math.max(maxConcurrentBuilds.get(), concurrent));
+                }
+                CountDownLatch latch = rendezvous;
+                if (latch != null)
+                {
+                    latch.countDown();
+                    latch.await(5, TimeUnit.SECONDS);
+                }
+                buildOrder.add(key);
+                CountDownLatch gateLatch = gate;
+                if (gateLatch != null)
+                {
+                    gateLatch.await(5, TimeUnit.SECONDS);
+                }
+                if (buildDelay > 0)
+                {
+                    Thread.sleep(buildDelay);
+                }
+                if (failures.getAndDecrement() > 0)
+                {
+                    throw new IllegalStateException("Build failed");
+                }
+                failures.set(0);
+                buildCounts.putIfAbsent(key, new AtomicInteger());
+                return key + "-" + buildCounts.get(key).incrementAndGet();
+            }
+            catch (InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                concurrentBuilds.decrementAndGet();
+                building.remove(key);
+            }
+        }
+
+        @Override
+        protected String applyDelta(String key, String previousValue, List<Serializable> changes)
+        {
+            if (!deltas)
+            {
+                return super.applyDelta(key, previousValue, changes);
+            }
+            StringBuilder sb = new StringBuilder(previousValue);
+            for (Serializable change : changes)
+            {
+                if ("fail".equals(change))
+                {
+                    throw new IllegalStateException("Delta failed");
+                }
+                // Changes may already have been applied by forceInChangesForThisUncommittedTransaction
+                if (!previousValue.contains("+" + change))
+                {
+                    sb.append("+").append(change);
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        protected long weigh(String key, String value)
+        {
+            return value.length();
+        }
+
+        @Override
+        protected long getSourceWatermark(String key)
+        {
+            return watermark;
+        }
+
+        private int getBuildCount(String key)
+        {
+            AtomicInteger count = buildCounts.get(key);
+            return count == null ? 0 : count.get();
+        }
+    }
+}
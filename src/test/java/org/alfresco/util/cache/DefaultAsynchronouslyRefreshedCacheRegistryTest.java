@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2005-2016 Alfresco Software Limited.
+ *
+ * This file is part of Alfresco
+ *
+ * Alfresco is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Alfresco is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Alfresco. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.alfresco.util.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Tests the exchange of cache events between {@link DefaultAsynchronouslyRefreshedCacheRegistry registries}
+ * over a {@link RefreshableCacheEventTransport}.
+ *
+ * @since 5.1.3
+ */
+public class DefaultAsynchronouslyRefreshedCacheRegistryTest extends TestCase
+{
+    private static final String CACHE_ID = "test.cache";
+
+    private List<DefaultAsynchronouslyRefreshedCacheRegistry> registries;
+
+    @Override
+    public void setUp() throws Exception
+    {
+        registries = new ArrayList<DefaultAsynchronouslyRefreshedCacheRegistry>();
+    }
+
+    @Override
+    public void tearDown() throws Exception
+    {
+        for (DefaultAsynchronouslyRefreshedCacheRegistry registry : registries)
+        {
+            registry.destroy();
+        }
+    }
+
+    private DefaultAsynchronouslyRefreshedCacheRegistry newRegistry(String nodeId, RefreshableCacheEventTransport transport, long flushInterval) throws Exception
+    {
+        DefaultAsynchronouslyRefreshedCacheRegistry registry = new DefaultAsynchronouslyRefreshedCacheRegistry();
+        registry.setNodeId(nodeId);
+        registry.setTransport(transport);
+        registry.setFlushInterval(flushInterval);
+        registry.afterPropertiesSet();
+        registries.add(registry);
+        return registry;
+    }
+
+    public void testLoopbackEventsReachOtherNodes() throws Exception
+    {
+        LoopbackRefreshableCacheEventTransport.Channel channel = new LoopbackRefreshableCacheEventTransport.Channel();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeA = newRegistry("A", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        EventRecorder recorderA = new EventRecorder();
+        EventRecorder recorderB = new EventRecorder();
+        nodeA.register(recorderA);
+        nodeB.register(recorderB);
+
+        RefreshableCacheRefreshEvent event = new RefreshableCacheRefreshEvent(CACHE_ID, "a", "change");
+        nodeA.broadcastEvent(event, true);
+
+        assertEquals(Collections.singletonList(event), recorderA.events);
+        assertEquals("Event should have been delivered to the other node", Collections.singletonList(event), recorderB.events);
+        assertEquals(1, nodeA.getPublishedBatchCount());
+        assertEquals(1, nodeB.getReceivedEventCount());
+        assertEquals("Remote events must not be published again", 0, nodeB.getPublishedBatchCount());
+    }
+
+    public void testEventsCoalescedIntoBatches() throws Exception
+    {
+        LoopbackRefreshableCacheEventTransport.Channel channel = new LoopbackRefreshableCacheEventTransport.Channel();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeA = newRegistry("A", new LoopbackRefreshableCacheEventTransport(channel), 3600000L);
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        EventRecorder recorderB = new EventRecorder();
+        nodeB.register(recorderB);
+
+        for (int i = 0; i < 5; i++)
+        {
+            nodeA.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "a"), true);
+        }
+        nodeA.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "a", "change"), true);
+        assertTrue("Events should be held until flushed", recorderB.events.isEmpty());
+
+        nodeA.flush();
+        assertEquals(2, recorderB.events.size());
+        assertEquals(1, nodeA.getPublishedBatchCount());
+        assertEquals(4, nodeA.getCoalescedEventCount());
+    }
+
+    public void testRepeatedChangesKeepTheirLatestOrder() throws Exception
+    {
+        LoopbackRefreshableCacheEventTransport.Channel channel = new LoopbackRefreshableCacheEventTransport.Channel();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeA = newRegistry("A", new LoopbackRefreshableCacheEventTransport(channel), 3600000L);
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        EventRecorder recorderB = new EventRecorder();
+        nodeB.register(recorderB);
+
+        RefreshableCacheRefreshEvent c1 = new RefreshableCacheRefreshEvent(CACHE_ID, "a", "c1");
+        RefreshableCacheRefreshEvent c2 = new RefreshableCacheRefreshEvent(CACHE_ID, "a", "c2");
+        nodeA.broadcastEvent(c1, true);
+        nodeA.broadcastEvent(c2, true);
+        nodeA.broadcastEvent(c1, true);
+        nodeA.flush();
+
+        assertEquals("The last change should be applied last", Arrays.asList(c2, c1), recorderB.events);
+        assertEquals(1, nodeA.getCoalescedEventCount());
+    }
+
+    public void testRepeatedAndLateBatches() throws Exception
+    {
+        LoopbackRefreshableCacheEventTransport.Channel channel = new LoopbackRefreshableCacheEventTransport.Channel();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        EventRecorder recorderB = new EventRecorder();
+        nodeB.register(recorderB);
+
+        LoopbackRefreshableCacheEventTransport sender = new LoopbackRefreshableCacheEventTransport(channel);
+        sender.start(new RefreshableCacheEventTransport.BatchReceiver()
+        {
+            @Override
+            public void onBatch(RefreshableCacheEventBatch batch)
+            {
+            }
+        });
+        try
+        {
+            sender.publish(newBatch("A", 1L, "a"));
+            sender.publish(newBatch("A", 1L, "a"));
+            sender.publish(newBatch("A", 3L, "c"));
+            sender.publish(newBatch("A", 2L, "b"));
+            sender.publish(newBatch("A", 2L, "b"));
+            // Another node numbers its batches independently
+            sender.publish(newBatch("C", 1L, "a"));
+        }
+        finally
+        {
+            sender.stop();
+        }
+
+        assertEquals(4, nodeB.getReceivedBatchCount());
+        assertEquals(2, nodeB.getDuplicateBatchCount());
+        assertEquals(1, nodeB.getMissedBatchCount());
+        assertEquals(1, nodeB.getLateBatchCount());
+        assertEquals(4, recorderB.events.size());
+        assertEquals("b", recorderB.events.get(2).getKey());
+    }
+
+    public void testRestartedNodeNumbersBatchesAgain() throws Exception
+    {
+        LoopbackRefreshableCacheEventTransport.Channel channel = new LoopbackRefreshableCacheEventTransport.Channel();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        EventRecorder recorderB = new EventRecorder();
+        nodeB.register(recorderB);
+
+        LoopbackRefreshableCacheEventTransport sender = new LoopbackRefreshableCacheEventTransport(channel);
+        sender.start(new RefreshableCacheEventTransport.BatchReceiver()
+        {
+            @Override
+            public void onBatch(RefreshableCacheEventBatch batch)
+            {
+            }
+        });
+        try
+        {
+            sender.publish(newBatch("A", 100L, 1L, "a"));
+            sender.publish(newBatch("A", 100L, 2L, "b"));
+            // A restarts with the same node id
+            sender.publish(newBatch("A", 200L, 1L, "c"));
+            sender.publish(newBatch("A", 200L, 1L, "c"));
+            // A batch from the earlier run arrives late
+            sender.publish(newBatch("A", 100L, 3L, "d"));
+            sender.publish(newBatch("A", 200L, 2L, "e"));
+        }
+        finally
+        {
+            sender.stop();
+        }
+
+        assertEquals(4, nodeB.getReceivedBatchCount());
+        assertEquals(1, nodeB.getDuplicateBatchCount());
+        assertEquals(0, nodeB.getMissedBatchCount());
+        assertEquals(4, recorderB.events.size());
+        assertEquals("c", recorderB.events.get(2).getKey());
+        assertEquals("e", recorderB.events.get(3).getKey());
+    }
+
+    public void testDatagramEventsReachOtherNodes() throws Exception
+    {
+        DatagramRefreshableCacheEventTransport transportA = new DatagramRefreshableCacheEventTransport();
+        DatagramRefreshableCacheEventTransport transportB = new DatagramRefreshableCacheEventTransport();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeA = newRegistry("A", transportA, 0L);
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", transportB, 0L);
+        transportA.setPeerList("127.0.0.1:" + transportB.getLocalPort());
+        transportB.setPeerList("127.0.0.1:" + transportA.getLocalPort());
+        EventRecorder recorderA = new EventRecorder();
+        EventRecorder recorderB = new EventRecorder();
+        nodeA.register(recorderA);
+        nodeB.register(recorderB);
+
+        nodeA.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "a"), true);
+        nodeB.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "b"), true);
+
+        long end = System.currentTimeMillis() + 10000L;
+        while ((recorderA.events.size() < 2 || recorderB.events.size() < 2) && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals(2, recorderA.events.size());
+        assertEquals(2, recorderB.events.size());
+        assertTrue(recorderB.events.contains(new RefreshableCacheRefreshEvent(CACHE_ID, "a")));
+        assertTrue(recorderA.events.contains(new RefreshableCacheRefreshEvent(CACHE_ID, "b")));
+    }
+
+    public void testLargeBatchesSplitForDatagrams() throws Exception
+    {
+        DatagramRefreshableCacheEventTransport transportA = new DatagramRefreshableCacheEventTransport();
+        DatagramRefreshableCacheEventTransport transportB = new DatagramRefreshableCacheEventTransport();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeA = newRegistry("A", transportA, 60000L);
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", transportB, 0L);
+        transportA.setPeerList("127.0.0.1:" + transportB.getLocalPort());
+        transportB.setPeerList("127.0.0.1:" + transportA.getLocalPort());
+        EventRecorder recorderB = new EventRecorder();
+        nodeB.register(recorderB);
+
+        // 50 events of about 4KB each are too many for one datagram
+        char[] padding = new char[4000];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 50; i++)
+        {
+            nodeA.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, i + new String(padding)), true);
+        }
+        nodeA.flush();
+
+        long end = System.currentTimeMillis() + 10000L;
+        while (recorderB.events.size() < 50 && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+        assertEquals("All events should be delivered", 50, recorderB.events.size());
+        assertTrue("Batch should have been split: " + nodeA.getPublishedBatchCount(), nodeA.getPublishedBatchCount() > 1);
+        assertEquals(50, nodeA.getPublishedEventCount());
+        assertEquals(0, nodeB.getMissedBatchCount());
+    }
+
+    public void testDatagramsOnlyAcceptedFromPeers() throws Exception
+    {
+        DatagramRefreshableCacheEventTransport transportA = new DatagramRefreshableCacheEventTransport();
+        DatagramRefreshableCacheEventTransport transportB = new DatagramRefreshableCacheEventTransport();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeA = newRegistry("A", transportA, 0L);
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", transportB, 0L);
+        transportA.setPeerList("127.0.0.1:" + transportB.getLocalPort());
+        transportB.setPeerList("127.0.0.1:" + transportA.getLocalPort());
+        EventRecorder recorderB = new EventRecorder();
+        nodeB.register(recorderB);
+
+        DatagramRefreshableCacheEventTransport stranger = new DatagramRefreshableCacheEventTransport();
+        stranger.start(new RefreshableCacheEventTransport.BatchReceiver()
+        {
+            @Override
+            public void onBatch(RefreshableCacheEventBatch batch)
+            {
+            }
+        });
+        try
+        {
+            stranger.setPeerList("127.0.0.1:" + transportB.getLocalPort());
+            stranger.publish(newBatch("C", 1L, "c"));
+        }
+        finally
+        {
+            stranger.stop();
+        }
+        nodeA.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "a"), true);
+
+        long end = System.currentTimeMillis() + 10000L;
+        while (recorderB.events.isEmpty() && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(10L);
+        }
+        Thread.sleep(100L);
+        assertEquals("Only events from peers should be delivered", Collections.singletonList(new RefreshableCacheRefreshEvent(CACHE_ID, "a")), recorderB.events);
+    }
+
+    public void testDatagramsRestrictedToLoopback() throws Exception
+    {
+        DatagramRefreshableCacheEventTransport transport = new DatagramRefreshableCacheEventTransport();
+        transport.setBindAddress("0.0.0.0");
+        try
+        {
+            newRegistry("A", transport, 0L);
+            fail("Wildcard address should not be allowed");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            // Expected
+        }
+        transport.setBindAddress("127.0.0.1");
+        transport.setPeerList("192.0.2.1:5000");
+        try
+        {
+            newRegistry("A", transport, 0L);
+            fail("Remote peers should not be allowed");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            // Expected
+        }
+        transport.setTrustedNetwork(true);
+        newRegistry("A", transport, 0L);
+        assertTrue(transport.getLocalPort() > 0);
+    }
+
+    public void testOnlyKnownClassesReadFromBatches() throws Exception
+    {
+        Map<RefreshableCacheEvent, Boolean> events = new LinkedHashMap<RefreshableCacheEvent, Boolean>();
+        RefreshableCacheRefreshEvent event = new RefreshableCacheRefreshEvent(CACHE_ID, "a", new ArrayList<String>());
+        events.put(event, Boolean.TRUE);
+        assertFalse(RefreshableCacheEventBatch.isTransportable(event));
+        byte[] data = new RefreshableCacheEventBatch("A", 1L, 1L, events).toBytes();
+        try
+        {
+            RefreshableCacheEventBatch.fromBytes(data);
+            fail("Batch with a class that is not allowed should be refused");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            // Expected
+        }
+
+        LoopbackRefreshableCacheEventTransport.Channel channel = new LoopbackRefreshableCacheEventTransport.Channel();
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeA = newRegistry("A", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        DefaultAsynchronouslyRefreshedCacheRegistry nodeB = newRegistry("B", new LoopbackRefreshableCacheEventTransport(channel), 0L);
+        EventRecorder recorderB = new EventRecorder();
+        nodeB.register(recorderB);
+        nodeA.broadcastEvent(event, true);
+        nodeA.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "b", 42L), true);
+        assertEquals("Change that cannot be read should be left out",
+                Arrays.asList(new RefreshableCacheRefreshEvent(CACHE_ID, "a"), new RefreshableCacheRefreshEvent(CACHE_ID, "b", 42L)),
+                recorderB.events);
+    }
+
+    public void testTargetedListenersOnlySeeTheirCache() throws Exception
+    {
+        DefaultAsynchronouslyRefreshedCacheRegistry registry = newRegistry("A", null, 0L);
+        EventRecorder untargeted = new EventRecorder();
+        TargetedEventRecorder targeted = new TargetedEventRecorder("other.cache");
+        registry.register(untargeted);
+        registry.register(targeted);
+
+        registry.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "a"), true);
+        registry.broadcastEvent(new RefreshableCacheRefreshEvent("other.cache", "b"), true);
+        registry.broadcastEvent(new RefreshableCacheRefreshEvent("other.cache", "c"), false);
+
+        assertEquals("Untargeted listeners see events for all caches", 2, untargeted.events.size());
+        assertEquals(2, targeted.events.size());
+        assertEquals("b", targeted.events.get(0).getKey());
+        assertEquals("c", targeted.events.get(1).getKey());
+    }
+
+    public void testQueuedDispatch() throws Exception
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        try
+        {
+            DefaultAsynchronouslyRefreshedCacheRegistry registry = newRegistry("A", null, 0L);
+            registry.setDispatchExecutor(executor);
+            final CountDownLatch release = new CountDownLatch(1);
+            EventRecorder blocked = new EventRecorder()
+            {
+                @Override
+                public void onRefreshableCacheEvent(RefreshableCacheEvent refreshableCacheEvent)
+                {
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    super.onRefreshableCacheEvent(refreshableCacheEvent);
+                }
+            };
+            EventRecorder other = new TargetedEventRecorder(CACHE_ID);
+            registry.register(blocked);
+            registry.register(other);
+
+            for (int i = 0; i < 10; i++)
+            {
+                registry.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "k" + i), true);
+            }
+            long end = System.currentTimeMillis() + 10000L;
+            while (other.events.size() < 10 && System.currentTimeMillis() < end)
+            {
+                Thread.sleep(10L);
+            }
+            assertEquals("A slow listener should not hold up others", 10, other.events.size());
+            assertTrue("Events should be waiting for the slow listener", registry.getQueueDepth() >= 9);
+            assertTrue(registry.getMaxQueueDepth() >= 10);
+
+            release.countDown();
+            while ((blocked.events.size() < 10 || registry.getQueueDepth() > 0) && System.currentTimeMillis() < end)
+            {
+                Thread.sleep(10L);
+            }
+            assertEquals(0, registry.getQueueDepth());
+            for (int i = 0; i < 10; i++)
+            {
+                assertEquals("Events should be delivered in order", "k" + i, blocked.events.get(i).getKey());
+            }
+            assertEquals(20, registry.getDispatchedEventCount());
+            assertTrue(registry.getMaxDispatchLatency() >= registry.getAverageDispatchLatency());
+
+            // Synchronous dispatch for tests
+            registry.setSynchronousDispatch(true);
+            registry.broadcastEvent(new RefreshableCacheRefreshEvent(CACHE_ID, "sync"), true);
+            assertEquals(11, other.events.size());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private RefreshableCacheEventBatch newBatch(String originId, long sequence, String key)
+    {
+        return newBatch(originId, 1L, sequence, key);
+    }
+
+    private RefreshableCacheEventBatch newBatch(String originId, long epoch, long sequence, String key)
+    {
+        Map<RefreshableCacheEvent, Boolean> events = new LinkedHashMap<RefreshableCacheEvent, Boolean>();
+        events.put(new RefreshableCacheRefreshEvent(CACHE_ID, key), Boolean.FALSE);
+        return new RefreshableCacheEventBatch(originId, epoch, sequence, events);
+    }
+
+    private static class EventRecorder implements RefreshableCacheListener
+    {
+        protected final List<RefreshableCacheEvent> events = new CopyOnWriteArrayList<RefreshableCacheEvent>();
+
+        @Override
+        public void onRefreshableCacheEvent(RefreshableCacheEvent refreshableCacheEvent)
+        {
+            events.add(refreshableCacheEvent);
+        }
+
+        @Override
+        public String getCacheId()
+        {
+            return CACHE_ID;
+        }
+    }
+
+    private static class TargetedEventRecorder extends EventRecorder implements TargetedRefreshableCacheListener
+    {
+        private final String cacheId;
+
+        private TargetedEventRecorder(String cacheId)
+        {
+            this.cacheId = cacheId;
+        }
+
+        @Override
+        public String getCacheId()
+        {
+            return cacheId;
+        }
+    }
+}